@@ -8,7 +8,8 @@ import sys
 
 DELIM = ","
 
-TYPES = {"win" : lambda x : x == "true", "score" : int, "interval" : int, "value" : int} 
+TYPES = {"win" : lambda x : x == "true", "score" : int, "interval" : int, "value" : int,
+         "config" : str}
 
 def values_from_file(file_name):
   values = []
@@ -34,8 +35,12 @@ def values_from_folder(folder_name):
 
 if __name__ == "__main__":
   values = values_from_folder(sys.argv[1])
+  # Output of a sweep holds several configurations, pick one with the second argument
+  config = sys.argv[2] if len(sys.argv) > 2 else ""
   data_by_interval = defaultdict(lambda : defaultdict(lambda : [0] * 2))
   for value in values:
+    if value.get('config', "") != config:
+      continue
     place = 0
     if value['win']:
       place = 1
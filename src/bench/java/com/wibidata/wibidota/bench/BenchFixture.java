@@ -0,0 +1,86 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota.bench;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Loads the match JSON the benchmarks run over. By default this is the fixture bundled in
+ * src/bench/resources, set -Dwibidota.bench.fixture=/path/to/matches.gz to use another file.
+ */
+public final class BenchFixture {
+
+  /** System property naming a file to use instead of the bundled fixture. */
+  public static final String FIXTURE_PROPERTY = "wibidota.bench.fixture";
+
+  private static final String RESOURCE = "/matches-fixture.json.gz";
+
+  // This utility class should not be instantiated
+  private BenchFixture() {}
+
+  /**
+   * @return the lines of the fixture.
+   */
+  public static List<String> readLines() throws IOException {
+    final String file = System.getProperty(FIXTURE_PROPERTY);
+    InputStream in = (file == null)
+        ? BenchFixture.class.getResourceAsStream(RESOURCE)
+        : new FileInputStream(file);
+    if (in == null) {
+      throw new IOException("Could not find " + RESOURCE + " on the classpath");
+    }
+    if (file == null || file.endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    final List<String> lines = new ArrayList<String>();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isEmpty()) {
+          lines.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  /**
+   * @return the lines of the fixture as Text, as a bulk importer would get them.
+   */
+  public static Text[] readTexts() throws IOException {
+    final List<String> lines = readLines();
+    final Text[] texts = new Text[lines.size()];
+    for (int i = 0; i < texts.length; i++) {
+      texts[i] = new Text(lines.get(i));
+    }
+    return texts;
+  }
+}
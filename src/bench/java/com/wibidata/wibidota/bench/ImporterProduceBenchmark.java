@@ -0,0 +1,112 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.wibidata.wibidota.DotaMatchBulkImporter;
+import com.wibidata.wibidota.DotaPlayersBulkImporter;
+import com.wibidata.wibidota.MatchHeaders;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-line cost of the bulk importers' produce(), from the raw line to the encoded cells,
+ * run against an InMemoryTableContext. The storage options are parameters so their cost can
+ * be compared. Each call handles one line, cycling through the fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImporterProduceBenchmark {
+
+  /** Value of wibidota.matches.packed.header. */
+  @Param({"false", "true"})
+  public boolean packedHeader;
+
+  /** Value of wibidota.players.compact. */
+  @Param({"false", "true"})
+  public boolean compactPlayers;
+
+  private final InMemoryTableContext matchesTable = new InMemoryTableContext();
+  private final InMemoryTableContext playersTable = new InMemoryTableContext();
+  private final DotaMatchBulkImporter matchImporter = new DotaMatchBulkImporter();
+  private final DotaPlayersBulkImporter playersImporter = new DotaPlayersBulkImporter();
+  private final LongWritable filePos = new LongWritable();
+
+  private Text[] texts;
+  private int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    texts = BenchFixture.readTexts();
+    final Configuration conf = new Configuration(false);
+    conf.setBoolean(MatchHeaders.CONF_PACKED, packedHeader);
+    conf.setBoolean(DotaPlayersBulkImporter.CONF_COMPACT, compactPlayers);
+    matchImporter.setConf(conf);
+    playersImporter.setConf(conf);
+    matchImporter.setup(matchesTable.context());
+    playersImporter.setup(playersTable.context());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    matchImporter.cleanup(matchesTable.context());
+    playersImporter.cleanup(playersTable.context());
+    System.out.println();
+    System.out.println("dota_matches: " + matchesTable.cells() + " cells, "
+        + matchesTable.bytes() + " value bytes");
+    System.out.println("dota_players: " + playersTable.cells() + " cells, "
+        + playersTable.bytes() + " value bytes");
+  }
+
+  private Text nextLine() {
+    final int i = next;
+    next = (i + 1 == texts.length) ? 0 : i + 1;
+    filePos.set(i);
+    return texts[i];
+  }
+
+  @Benchmark
+  public void matchProduce() throws IOException {
+    matchImporter.produce(filePos, nextLine(), matchesTable.context());
+  }
+
+  @Benchmark
+  public void playersProduce() throws IOException {
+    playersImporter.produce(filePos, nextLine(), playersTable.context());
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.avro.specific.SpecificRecord;
+
+import org.kiji.mapreduce.KijiTableContext;
+
+/**
+ * A KijiTableContext that keeps nothing but still encodes every value it is given, so a
+ * bulk importer's produce() can be run without a cluster. Values are Avro encoded into a
+ * reused buffer, roughly the work the real context does before writing a KeyValue. Entity ids
+ * are not built, getEntityId() returns null.
+ */
+public final class InMemoryTableContext implements InvocationHandler {
+
+  private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(4096);
+  private BinaryEncoder encoder;
+  private final Map<Schema, SpecificDatumWriter<Object>> writers =
+      new HashMap<Schema, SpecificDatumWriter<Object>>();
+
+  private long cells = 0;
+  private long bytes = 0;
+
+  private final KijiTableContext context = (KijiTableContext) Proxy.newProxyInstance(
+      InMemoryTableContext.class.getClassLoader(), new Class<?>[]{KijiTableContext.class}, this);
+
+  /**
+   * @return the context to give the importer.
+   */
+  public KijiTableContext context() {
+    return context;
+  }
+
+  /** @return the number of cells put so far. */
+  public long cells() {
+    return cells;
+  }
+
+  /** @return the number of bytes the values put so far encode to. */
+  public long bytes() {
+    return bytes;
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    final String name = method.getName();
+    if ("put".equals(name)) {
+      encode(args[args.length - 1]);
+      return null;
+    } else if ("getEntityId".equals(name)) {
+      return null;
+    } else if ("getStatus".equals(name)) {
+      return "";
+    } else if ("toString".equals(name)) {
+      return "InMemoryTableContext";
+    } else if ("hashCode".equals(name)) {
+      return System.identityHashCode(proxy);
+    } else if ("equals".equals(name)) {
+      return proxy == args[0];
+    }
+    // Counters, progress, flush and close do nothing
+    return null;
+  }
+
+  private void encode(Object value) throws IOException {
+    buffer.reset();
+    encoder = EncoderFactory.get().binaryEncoder(buffer, encoder);
+    if (value instanceof SpecificRecord) {
+      final Schema schema = ((SpecificRecord) value).getSchema();
+      SpecificDatumWriter<Object> writer = writers.get(schema);
+      if (writer == null) {
+        writer = new SpecificDatumWriter<Object>(schema);
+        writers.put(schema, writer);
+      }
+      writer.write(value, encoder);
+    } else if (value instanceof Integer) {
+      encoder.writeInt((Integer) value);
+    } else if (value instanceof Long) {
+      encoder.writeLong((Long) value);
+    } else if (value instanceof Boolean) {
+      encoder.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      encoder.writeDouble((Double) value);
+    } else if (value != null) {
+      throw new IOException("Can not encode a " + value.getClass());
+    }
+    encoder.flush();
+    cells++;
+    bytes += buffer.size();
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota.bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.wibidata.wibidota.DotaMatchBulkImporter;
+import com.wibidata.wibidota.DotaMatchParser;
+import com.wibidata.wibidota.ParsedMatch;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-line cost of reading a match: the byte scanner the importers use, gson's tree parse
+ * on its own, and the extraction of the match, a player and its items and abilities from an
+ * already parsed tree. Each call handles one line, cycling through the fixture.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchParseBenchmark {
+
+  private final JsonParser gson = new JsonParser();
+  private final DotaMatchParser parser = new DotaMatchParser();
+
+  private Text[] texts;
+  private String[] strings;
+  private JsonObject[] trees;
+  private JsonObject[] players;
+  private int next = 0;
+
+  @Setup
+  public void setup() throws IOException {
+    texts = BenchFixture.readTexts();
+    final List<String> lines = BenchFixture.readLines();
+    strings = lines.toArray(new String[lines.size()]);
+    trees = new JsonObject[strings.length];
+    players = new JsonObject[strings.length];
+    for (int i = 0; i < strings.length; i++) {
+      trees[i] = gson.parse(strings[i]).getAsJsonObject();
+      players[i] = trees[i].get("players").getAsJsonArray().get(0).getAsJsonObject();
+    }
+  }
+
+  private int nextIndex() {
+    final int i = next;
+    next = (i + 1 == texts.length) ? 0 : i + 1;
+    return i;
+  }
+
+  /** The path the bulk importers take. */
+  @Benchmark
+  public ParsedMatch scannerParse() {
+    return parser.parse(texts[nextIndex()]);
+  }
+
+  /** The original path, gson tree then extraction. */
+  @Benchmark
+  public ParsedMatch treeParseAndExtract() {
+    return DotaMatchBulkImporter.extractMatch(
+        gson.parse(strings[nextIndex()]).getAsJsonObject());
+  }
+
+  /** gson's parse on its own. */
+  @Benchmark
+  public JsonElement treeParse() {
+    return gson.parse(strings[nextIndex()]);
+  }
+
+  /** Extraction of a whole match from a parsed tree. */
+  @Benchmark
+  public ParsedMatch extractMatch() {
+    return DotaMatchBulkImporter.extractMatch(trees[nextIndex()]);
+  }
+
+  /** Extraction of all ten players from a parsed tree. */
+  @Benchmark
+  public Players extractPlayers() {
+    return DotaMatchBulkImporter.extractPlayers(trees[nextIndex()]);
+  }
+
+  /** Extraction of one player, including readItems() and extractAbility(). */
+  @Benchmark
+  public Player extractPlayer() {
+    return DotaMatchBulkImporter.extractPlayer(players[nextIndex()]);
+  }
+}
@@ -0,0 +1,172 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.google.gson.JsonParseException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.mapreduce.KijiContext;
+
+/**
+ * Lets the bulk importers skip lines they can not read rather than failing the task. Enabled
+ * by setting wibidota.import.tolerant to true, each bad line is then counted under the
+ * category of its error and, if wibidota.import.quarantine.dir is set, written to
+ * &lt;dir&gt;/&lt;task attempt id&gt;.txt as tab separated
+ *
+ * <pre>
+ * &lt;input file or task attempt&gt; &lt;offset&gt; &lt;category&gt; &lt;error&gt; &lt;line&gt;
+ * </pre>
+ *
+ * Once a task has skipped more than wibidota.import.max.errors lines (default 1000, negative
+ * for no limit) it fails, so a job over badly broken input still stops.
+ */
+public final class BadLineQuarantine implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BadLineQuarantine.class);
+
+  /** True to skip bad lines rather than fail. */
+  public static final String CONF_TOLERANT = "wibidota.import.tolerant";
+
+  /** Directory to write the bad lines to, optional. */
+  public static final String CONF_QUARANTINE_DIR = "wibidota.import.quarantine.dir";
+
+  /** Number of bad lines a task may skip before it fails. */
+  public static final String CONF_MAX_ERRORS = "wibidota.import.max.errors";
+
+  private static final long DEFAULT_MAX_ERRORS = 1000L;
+
+  static enum Counters {
+    BAD_LINES,      // All lines skipped
+    MISSING_FIELD,  // A required field was absent or null
+    WRONG_TYPE,     // A field held the wrong kind of JSON value
+    BAD_NUMBER,     // A number that could not be read
+    MALFORMED_JSON, // The line was not valid JSON
+    OTHER           // Anything else
+  }
+
+  private static final byte[] TAB = new byte[]{'\t'};
+  private static final byte[] NEWLINE = new byte[]{'\n'};
+
+  private final long maxErrors;
+  private final String source;
+  private final FSDataOutputStream out;
+  private long errors = 0;
+  private boolean closed = false;
+
+  private BadLineQuarantine(Configuration conf) throws IOException {
+    maxErrors = conf.getLong(CONF_MAX_ERRORS, DEFAULT_MAX_ERRORS);
+    final String attempt = conf.get("mapreduce.task.attempt.id", conf.get("mapred.task.id"));
+    final String inputFile = conf.get("mapreduce.map.input.file", conf.get("map.input.file"));
+    source = inputFile != null ? inputFile : attempt;
+    final String dir = conf.get(CONF_QUARANTINE_DIR);
+    if (dir != null) {
+      final Path path = new Path(dir,
+          (attempt != null ? attempt : "local-" + System.currentTimeMillis()) + ".txt");
+      out = path.getFileSystem(conf).create(path, true);
+      LOG.info("Quarantining bad lines to " + path);
+    } else {
+      out = null;
+    }
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return the quarantine for this task, null if the job is not tolerant.
+   */
+  public static BadLineQuarantine open(Configuration conf) throws IOException {
+    if (conf == null || !conf.getBoolean(CONF_TOLERANT, false)) {
+      return null;
+    }
+    return new BadLineQuarantine(conf);
+  }
+
+  // Sorts an error into a counter
+  static Counters categorize(RuntimeException re) {
+    // Gson throws UnsupportedOperationException reading a number from an explicit null
+    if (re instanceof NullPointerException || re instanceof UnsupportedOperationException) {
+      return Counters.MISSING_FIELD;
+    } else if (re instanceof NumberFormatException) {
+      return Counters.BAD_NUMBER;
+    } else if (re instanceof JsonParseException) {
+      return Counters.MALFORMED_JSON;
+    } else if (re instanceof IllegalStateException || re instanceof ClassCastException) {
+      return Counters.WRONG_TYPE;
+    }
+    return Counters.OTHER;
+  }
+
+  /**
+   * Records a line that could not be imported.
+   *
+   * @param offset, the position of the line in its file.
+   * @param line, the line.
+   * @param re, the reason it could not be imported.
+   * @param context, the context of the task, for the counters.
+   * @throws IOException if the task has now skipped too many lines, the quarantine is then
+   *     closed.
+   */
+  public void add(long offset, Text line, RuntimeException re, KijiContext context)
+      throws IOException {
+    final Counters category = categorize(re);
+    context.incrementCounter(Counters.BAD_LINES);
+    context.incrementCounter(category);
+    errors++;
+    LOG.warn("Skipping line at " + offset + " (" + category + "): " + re);
+    if (out != null) {
+      write(out, String.valueOf(source));
+      out.write(TAB);
+      write(out, Long.toString(offset));
+      out.write(TAB);
+      write(out, category.name());
+      out.write(TAB);
+      write(out, String.valueOf(re).replace('\t', ' ').replace('\n', ' '));
+      out.write(TAB);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write(NEWLINE);
+    }
+    if (maxErrors >= 0 && errors > maxErrors) {
+      // The task fails, so the lines quarantined so far are flushed first
+      close();
+      throw new IOException("Skipped more than " + maxErrors + " bad lines, set "
+          + CONF_MAX_ERRORS + " to allow more", re);
+    }
+  }
+
+  private static void write(OutputStream out, String s) throws IOException {
+    out.write(s.getBytes("UTF-8"));
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (out != null && !closed) {
+      closed = true;
+      out.close();
+    }
+  }
+}
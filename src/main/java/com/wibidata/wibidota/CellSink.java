@@ -0,0 +1,95 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+import org.kiji.mapreduce.KijiTableContext;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableWriter;
+import org.kiji.schema.KijiURI;
+
+/**
+ * Somewhere the importers can write cells to, either the KijiTableContext of a bulk import
+ * (which ends up in HFiles) or a table written to directly.
+ */
+interface CellSink {
+
+  EntityId getEntityId(Object... components);
+
+  <T> void put(EntityId eid, String family, String qualifier, long timestamp, T value)
+      throws IOException;
+
+  /**
+   * Writes to the table a bulk-import job outputs to.
+   */
+  final class ContextSink implements CellSink {
+    private final KijiTableContext context;
+
+    ContextSink(KijiTableContext context) {
+      this.context = context;
+    }
+
+    public EntityId getEntityId(Object... components) {
+      return context.getEntityId(components);
+    }
+
+    public <T> void put(EntityId eid, String family, String qualifier, long timestamp, T value)
+        throws IOException {
+      context.put(eid, family, qualifier, timestamp, value);
+    }
+  }
+
+  /**
+   * Writes directly to a table, must be closed once done.
+   */
+  final class TableSink implements CellSink {
+    private final Kiji kiji;
+    private final KijiTable table;
+    private final KijiTableWriter writer;
+
+    TableSink(KijiURI uri, Configuration conf) throws IOException {
+      kiji = Kiji.Factory.open(uri, conf);
+      table = kiji.openTable(uri.getTable());
+      writer = table.openTableWriter();
+    }
+
+    public EntityId getEntityId(Object... components) {
+      return table.getEntityId(components);
+    }
+
+    public <T> void put(EntityId eid, String family, String qualifier, long timestamp, T value)
+        throws IOException {
+      writer.put(eid, family, qualifier, timestamp, value);
+    }
+
+    public void close() throws IOException {
+      try {
+        writer.close();
+      } finally {
+        table.release();
+        kiji.release();
+      }
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Sums of counts by key that a task keeps in memory and writes out in one go, so a job counting
+ * events writes each key once rather than once per event. Used by CountingGatherer and
+ * CountingMapper, which write the sums whenever the buffer passes its memory budget and at the
+ * end of the task. The budget is wibidota.count.buffer.mb megabytes (default 32), measured by
+ * a rough estimate of the size of each entry.
+ */
+public final class CountBuffer {
+
+  /** Memory the sums may use, in megabytes. */
+  public static final String CONF_BUFFER_MB = "wibidota.count.buffer.mb";
+
+  private static final int DEFAULT_BUFFER_MB = 32;
+
+  // Rough size of a map entry, its String and its long[] besides the characters of the key
+  private static final long ENTRY_OVERHEAD = 112;
+
+  static enum Counters {
+    COUNT_FLUSHES,      // Times the sums were written out
+    COUNT_KEYS_WRITTEN, // Sums written, the number of distinct keys in each flush added up
+    // The most distinct keys each task held at once, added up over the tasks as Hadoop does
+    // with every counter. Divided by the number of tasks it gives the mean, the most of each
+    // task is in its log.
+    COUNT_PEAK_KEYS_SUM
+  }
+
+  private final long budget;
+  private final Map<String, long[]> sums = new HashMap<String, long[]>();
+  private long bytes = 0;
+  private int maxKeys = 0;
+
+  /**
+   * @param conf, the job configuration.
+   */
+  public CountBuffer(Configuration conf) {
+    budget = (conf == null ? DEFAULT_BUFFER_MB : conf.getInt(CONF_BUFFER_MB, DEFAULT_BUFFER_MB))
+        * 1024L * 1024L;
+  }
+
+  /**
+   * Adds to the sum of a key.
+   *
+   * @param key, the key.
+   * @param n, the amount to add.
+   * @return true if the buffer is now over budget and should be flushed.
+   */
+  public boolean add(String key, long n) {
+    final long[] sum = sums.get(key);
+    if (sum != null) {
+      sum[0] += n;
+      return false;
+    }
+    sums.put(key, new long[]{n});
+    bytes += ENTRY_OVERHEAD + 2L * key.length();
+    maxKeys = Math.max(maxKeys, sums.size());
+    return bytes >= budget;
+  }
+
+  /**
+   * @return the sums held, each in the first element of its array.
+   */
+  public Map<String, long[]> sums() {
+    return sums;
+  }
+
+  /**
+   * @return the most distinct keys held at once.
+   */
+  public int getMaxKeys() {
+    return maxKeys;
+  }
+
+  /**
+   * Empties the buffer once its sums have been written.
+   */
+  public void clear() {
+    sums.clear();
+    bytes = 0;
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.mapreduce.gather.GathererContext;
+import org.kiji.mapreduce.gather.KijiGatherer;
+
+/**
+ * Base class for gatherers that count how often keys occur. Rather than writing a count of
+ * one per event, subclasses call count() and the sums are kept in a CountBuffer and written
+ * when it is full and at the end of the task. The output is the same text keys and
+ * LongWritable counts, so should still be summed with LongSumReducer. Subclasses that
+ * override setup() or cleanup() must call the super method.
+ */
+public abstract class CountingGatherer extends KijiGatherer<Text, LongWritable> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CountingGatherer.class);
+
+  private CountBuffer counts;
+
+  private final Text outKey = new Text();
+  private final LongWritable outValue = new LongWritable();
+
+  @Override
+  public void setup(GathererContext<Text, LongWritable> context) throws IOException {
+    counts = new CountBuffer(getConf());
+  }
+
+  /**
+   * Counts one occurrence of a key.
+   *
+   * @param key, the key.
+   * @param context, the context of the task.
+   */
+  protected void count(String key, GathererContext<Text, LongWritable> context)
+      throws IOException {
+    count(key, 1L, context);
+  }
+
+  /**
+   * Counts n occurrences of a key.
+   *
+   * @param key, the key.
+   * @param n, the number of occurrences.
+   * @param context, the context of the task.
+   */
+  protected void count(String key, long n, GathererContext<Text, LongWritable> context)
+      throws IOException {
+    if (counts.add(key, n)) {
+      flush(context);
+    }
+  }
+
+  // Writes out the sums held and empties the buffer
+  private void flush(GathererContext<Text, LongWritable> context) throws IOException {
+    context.incrementCounter(CountBuffer.Counters.COUNT_FLUSHES);
+    context.incrementCounter(CountBuffer.Counters.COUNT_KEYS_WRITTEN, counts.sums().size());
+    for (Map.Entry<String, long[]> sum : counts.sums().entrySet()) {
+      outKey.set(sum.getKey());
+      outValue.set(sum.getValue()[0]);
+      context.write(outKey, outValue);
+    }
+    counts.clear();
+  }
+
+  @Override
+  public void cleanup(GathererContext<Text, LongWritable> context) throws IOException {
+    flush(context);
+    LOG.info("Held at most " + counts.getMaxKeys() + " distinct keys");
+    context.incrementCounter(CountBuffer.Counters.COUNT_PEAK_KEYS_SUM, counts.getMaxKeys());
+  }
+
+  @Override
+  public Class<?> getOutputKeyClass() {
+    return Text.class;
+  }
+
+  @Override
+  public Class<?> getOutputValueClass() {
+    return LongWritable.class;
+  }
+}
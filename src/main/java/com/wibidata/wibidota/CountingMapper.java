@@ -0,0 +1,83 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Mapper counterpart of CountingGatherer for the jobs over the raw matches. Subclasses call
+ * count() and the sums are written when the CountBuffer is full and at the end of the task.
+ * Subclasses that override setup() or cleanup() must call the super method.
+ *
+ * @param <KEYIN> the input key type.
+ * @param <VALUEIN> the input value type.
+ */
+public abstract class CountingMapper<KEYIN, VALUEIN>
+    extends Mapper<KEYIN, VALUEIN, Text, LongWritable> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CountingMapper.class);
+
+  private CountBuffer counts;
+
+  private final Text outKey = new Text();
+  private final LongWritable outValue = new LongWritable();
+
+  @Override
+  protected void setup(Context context) throws IOException, InterruptedException {
+    counts = new CountBuffer(context.getConfiguration());
+  }
+
+  /**
+   * Counts one occurrence of a key.
+   *
+   * @param key, the key.
+   * @param context, the context of the task.
+   */
+  protected void count(String key, Context context) throws IOException, InterruptedException {
+    if (counts.add(key, 1L)) {
+      flush(context);
+    }
+  }
+
+  // Writes out the sums held and empties the buffer
+  private void flush(Context context) throws IOException, InterruptedException {
+    context.getCounter(CountBuffer.Counters.COUNT_FLUSHES).increment(1);
+    context.getCounter(CountBuffer.Counters.COUNT_KEYS_WRITTEN).increment(counts.sums().size());
+    for (Map.Entry<String, long[]> sum : counts.sums().entrySet()) {
+      outKey.set(sum.getKey());
+      outValue.set(sum.getValue()[0]);
+      context.write(outKey, outValue);
+    }
+    counts.clear();
+  }
+
+  @Override
+  protected void cleanup(Context context) throws IOException, InterruptedException {
+    flush(context);
+    LOG.info("Held at most " + counts.getMaxKeys() + " distinct keys");
+    context.getCounter(CountBuffer.Counters.COUNT_PEAK_KEYS_SUM).increment(counts.getMaxKeys());
+  }
+}
@@ -0,0 +1,364 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import org.kiji.mapreduce.KijiReducer;
+
+/**
+ * Estimates the number of distinct accounts that played, by period of start_time, hero_id and
+ * game_mode, with a HyperLogLogWritable for each. Anonymous accounts are not counted. The keys
+ * are of the form
+ *
+ * bucket=&lt;start of period&gt;,hero=&lt;hero_id&gt;,game_mode=&lt;game_mode&gt;
+ *
+ * and the output is a sequence file of the keys and their sketches. As the sketches of a set
+ * of keys merge into the sketch of the accounts seen under any of them, the stored output can
+ * be rolled up into longer periods, or over every hero or game mode, with the merge command
+ * rather than by reading the matches again. Options:
+ *
+ * <ul>
+ * <li>wibidota.distinct.bucket, the length of the periods in seconds (default a day).</li>
+ * <li>wibidota.distinct.precision, the precision of the sketches (default 12, see
+ * HyperLogLogWritable).</li>
+ * <li>wibidota.distinct.buffer.mb, the memory each task may hold sketches in before it writes
+ * them out (default 64).</li>
+ * <li>wibidota.distinct.estimates, true for the reducers to also write the estimated counts
+ * as text, one "key TAB count" line per key, to estimates/estimates-r-&lt;n&gt; in the output
+ * directory (default false). They are committed with the rest of each task's output.</li>
+ * </ul>
+ *
+ * Usage:
+ *
+ * <pre>
+ * DistinctAccounts scan &lt;raw or Avro matches&gt; &lt;output&gt;
+ * DistinctAccounts merge &lt;sketches&gt; &lt;output&gt;
+ * </pre>
+ *
+ * The merge command takes wibidota.distinct.merge.bucket, the length of the new periods which
+ * should be a multiple of the old, and wibidota.distinct.merge.drop, a list of the parts of the
+ * key (bucket, hero or game_mode) to merge over. DistinctAccountsGatherer gives the same output
+ * from dota_matches.
+ */
+public class DistinctAccounts extends Configured implements Tool {
+
+  /** Length of the periods in seconds. */
+  public static final String CONF_BUCKET = "wibidota.distinct.bucket";
+
+  /** Precision of the sketches. */
+  public static final String CONF_PRECISION = "wibidota.distinct.precision";
+
+  /** Memory the sketches of a task may use, in megabytes. */
+  public static final String CONF_BUFFER_MB = "wibidota.distinct.buffer.mb";
+
+  /** True to also write the estimated counts, under estimates/ in the output directory. */
+  public static final String CONF_ESTIMATES = "wibidota.distinct.estimates";
+
+  /** Length of the periods to merge into. */
+  public static final String CONF_MERGE_BUCKET = "wibidota.distinct.merge.bucket";
+
+  /** Parts of the key to merge over. */
+  public static final String CONF_MERGE_DROP = "wibidota.distinct.merge.drop";
+
+  public static final long DEFAULT_BUCKET = 24 * 60 * 60;
+
+  private static final int DEFAULT_BUFFER_MB = 64;
+
+  static enum Counters {
+    ACCOUNTS_ADDED,    // Non anonymous players added to the sketches
+    SKETCH_FLUSHES,    // Times a task wrote out its sketches before it was done
+    SKETCHES_WRITTEN   // Sketches written by the tasks
+  }
+
+  /**
+   * @return the key of the given period, hero and game mode.
+   */
+  public static String key(long bucket, int heroId, int gameMode) {
+    return "bucket=" + bucket + ",hero=" + heroId + ",game_mode=" + gameMode;
+  }
+
+  /**
+   * The sketches a task fills, by key, which should be written out whenever add() says the
+   * memory budget is used up and at the end of the task.
+   */
+  static final class SketchBuffer {
+    private final long bucket;
+    private final int precision;
+    private final long budget;
+    private final HashMap<String, HyperLogLogWritable> sketches =
+        new HashMap<String, HyperLogLogWritable>();
+    private final long sketchBytes;
+    private long added = 0;
+
+    SketchBuffer(Configuration conf) {
+      bucket = conf.getLong(CONF_BUCKET, DEFAULT_BUCKET);
+      precision = conf.getInt(CONF_PRECISION, HyperLogLogWritable.DEFAULT_PRECISION);
+      budget = conf.getInt(CONF_BUFFER_MB, DEFAULT_BUFFER_MB) * 1024L * 1024L;
+      // The registers, and about as much again for the key, the entry and the object
+      sketchBytes = (1L << precision) + 200L;
+    }
+
+    /**
+     * Adds the accounts of a match.
+     *
+     * @return true if the buffer is now over budget and should be flushed.
+     */
+    boolean add(long startTime, int gameMode, Players players) {
+      final long start = bucket > 0 ? startTime - startTime % bucket : 0L;
+      for (Player player : players.getPlayers()) {
+        final Integer accountId = player.getAccountId();
+        // -1 (4294967295 in the JSON) is an anonymous account
+        if (accountId == null || accountId == -1) {
+          continue;
+        }
+        final String key = key(start, player.getHeroId(), gameMode);
+        HyperLogLogWritable sketch = sketches.get(key);
+        if (sketch == null) {
+          sketch = new HyperLogLogWritable(precision);
+          sketches.put(key, sketch);
+        }
+        sketch.add(accountId & 0xffffffffL);
+        added++;
+      }
+      return sketches.size() * sketchBytes >= budget;
+    }
+
+    /** @return the number of accounts added so far. */
+    long getAdded() {
+      return added;
+    }
+
+    HashMap<String, HyperLogLogWritable> sketches() {
+      return sketches;
+    }
+
+    void clear() {
+      sketches.clear();
+    }
+  }
+
+  /**
+   * Mapper that sketches the raw matches.
+   */
+  public static class Map extends Mapper<LongWritable, ParsedMatch, Text, HyperLogLogWritable> {
+
+    private SketchBuffer buffer;
+
+    @Override
+    protected void setup(Context context) {
+      buffer = new SketchBuffer(context.getConfiguration());
+    }
+
+    public void map(LongWritable key, ParsedMatch value, Context context)
+        throws IOException, InterruptedException {
+      if (buffer.add(value.getStartTime(), value.getGameMode(), value.getPlayers())) {
+        context.getCounter(Counters.SKETCH_FLUSHES).increment(1);
+        flush(context);
+      }
+    }
+
+    private void flush(Context context) throws IOException, InterruptedException {
+      final Text outKey = new Text();
+      for (java.util.Map.Entry<String, HyperLogLogWritable> entry
+          : buffer.sketches().entrySet()) {
+        outKey.set(entry.getKey());
+        context.write(outKey, entry.getValue());
+      }
+      context.getCounter(Counters.SKETCHES_WRITTEN).increment(buffer.sketches().size());
+      buffer.clear();
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      flush(context);
+      context.getCounter(Counters.ACCOUNTS_ADDED).increment(buffer.getAdded());
+    }
+  }
+
+  /**
+   * Mapper that rekeys stored sketches for the merge command.
+   */
+  public static class MergeMap
+      extends Mapper<Text, HyperLogLogWritable, Text, HyperLogLogWritable> {
+
+    private long bucket;
+    private Set<String> drop;
+    private final Text outKey = new Text();
+
+    @Override
+    protected void setup(Context context) {
+      final Configuration conf = context.getConfiguration();
+      bucket = conf.getLong(CONF_MERGE_BUCKET, 0L);
+      drop = new HashSet<String>();
+      for (String part : conf.getTrimmedStrings(CONF_MERGE_DROP)) {
+        drop.add(part);
+      }
+    }
+
+    public void map(Text key, HyperLogLogWritable value, Context context)
+        throws IOException, InterruptedException {
+      final StringBuilder merged = new StringBuilder();
+      for (String part : key.toString().split(",")) {
+        final int eq = part.indexOf('=');
+        final String name = part.substring(0, eq);
+        if (drop.contains(name)) {
+          continue;
+        }
+        if (merged.length() > 0) {
+          merged.append(',');
+        }
+        if ("bucket".equals(name) && bucket > 0) {
+          final long start = Long.parseLong(part.substring(eq + 1));
+          merged.append("bucket=").append(start - start % bucket);
+        } else {
+          merged.append(part);
+        }
+      }
+      outKey.set(merged.toString());
+      context.write(outKey, value);
+    }
+  }
+
+  /**
+   * Reducer that merges the sketches of each key, and writes the estimated counts if
+   * wibidota.distinct.estimates is true.
+   */
+  public static class UnionReducer
+      extends KijiReducer<Text, HyperLogLogWritable, Text, HyperLogLogWritable> {
+
+    private Writer estimates;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      final Configuration conf = context.getConfiguration();
+      if (conf.getBoolean(CONF_ESTIMATES, false)) {
+        // The work path of the attempt, so each attempt has its own file until one is committed
+        final Path path = new Path(FileOutputFormat.getWorkOutputPath(context), "estimates/"
+            + String.format("estimates-r-%05d", context.getTaskAttemptID().getTaskID().getId()));
+        estimates = new OutputStreamWriter(path.getFileSystem(conf).create(path, true), "UTF-8");
+      }
+    }
+
+    public void reduce(Text key, Iterable<HyperLogLogWritable> values, Context context)
+        throws IOException, InterruptedException {
+      HyperLogLogWritable union = null;
+      for (HyperLogLogWritable sketch : values) {
+        // The values are reused, so the first is copied by merging it into an empty sketch
+        if (union == null) {
+          union = new HyperLogLogWritable(sketch.getPrecision());
+        }
+        union.merge(sketch);
+      }
+      context.write(key, union);
+      if (estimates != null) {
+        estimates.write(key + "\t" + union.estimate() + "\n");
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException {
+      if (estimates != null) {
+        estimates.close();
+      }
+    }
+
+    @Override
+    public Class<?> getOutputKeyClass() {
+      return Text.class;
+    }
+
+    @Override
+    public Class<?> getOutputValueClass() {
+      return HyperLogLogWritable.class;
+    }
+  }
+
+  /**
+   * Combiner that merges the sketches of each key without writing the estimates, as
+   * combiners also run while the reducers merge their inputs.
+   */
+  public static class UnionCombiner extends UnionReducer {
+    @Override
+    protected void setup(Context context) {
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new DistinctAccounts(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    if (args.length != 3 || !("scan".equals(args[0]) || "merge".equals(args[0]))) {
+      System.err.println("Usage: DistinctAccounts (scan|merge) <input> <output>");
+      return -1;
+    }
+    Job job = new Job(super.getConf(), "Dota Distinct Accounts");
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(HyperLogLogWritable.class);
+
+    if ("scan".equals(args[0])) {
+      job.setMapperClass(DistinctAccounts.Map.class);
+      job.setInputFormatClass(DotaMatchInputFormat.class);
+    } else {
+      job.setMapperClass(DistinctAccounts.MergeMap.class);
+      job.setInputFormatClass(SequenceFileInputFormat.class);
+    }
+    job.setCombinerClass(UnionCombiner.class);
+    job.setReducerClass(UnionReducer.class);
+
+    job.setJarByClass(DistinctAccounts.class);
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(HyperLogLogWritable.class);
+
+    FileInputFormat.addInputPath(job, new Path(args[1]));
+    FileOutputFormat.setOutputPath(job, new Path(args[2]));
+
+    if (job.waitForCompletion(true)) {
+      return 0;
+    } else {
+      return -1;
+    }
+  }
+}
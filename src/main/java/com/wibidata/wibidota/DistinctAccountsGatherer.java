@@ -0,0 +1,121 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.io.Text;
+
+import org.kiji.mapreduce.gather.GathererContext;
+import org.kiji.mapreduce.gather.KijiGatherer;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Sketches the distinct accounts of dota_matches by period, hero and game mode, as
+ * DistinctAccounts does for the raw matches and with the same options and output:
+ *
+ * <pre>
+ * kiji gather --gatherer=com.wibidata.wibidota.DistinctAccountsGatherer \
+ *   --combiner=com.wibidata.wibidota.DistinctAccounts\$UnionCombiner \
+ *   --reducer=com.wibidata.wibidota.DistinctAccounts\$UnionReducer \
+ *   -Dwibidota.distinct.estimates=true \
+ *   --input="format=kiji table=kiji://.env/wibidota/dota_matches" \
+ *   --output="format=seq file=hdfs://path/to/sketches nsplits=1" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ *
+ * Reads data:header if wibidota.matches.packed.header is true.
+ */
+public class DistinctAccountsGatherer extends KijiGatherer<Text, HyperLogLogWritable> {
+
+  private DistinctAccounts.SketchBuffer buffer;
+
+  @Override
+  public KijiDataRequest getDataRequest() {
+    KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef().withMaxVersions(1);
+    if (MatchHeaders.isPacked(getConf())) {
+      def.add("data", MatchHeaders.HEADER_COLUMN);
+    } else {
+      def.add("data", "start_time").add("data", "game_mode");
+    }
+    def.add("data", "player_data");
+    return builder.addColumns(def).build();
+  }
+
+  @Override
+  public void setup(GathererContext<Text, HyperLogLogWritable> context) throws IOException {
+    buffer = new DistinctAccounts.SketchBuffer(getConf());
+  }
+
+  @Override
+  public void gather(KijiRowData row, GathererContext<Text, HyperLogLogWritable> context)
+      throws IOException {
+    final Long startTime;
+    final Integer gameMode;
+    if (MatchHeaders.isPacked(getConf())) {
+      final MatchHeader header = row.getMostRecentValue("data", MatchHeaders.HEADER_COLUMN);
+      startTime = header == null ? null : header.getStartTime();
+      gameMode = header == null ? null : header.getGameMode();
+    } else {
+      startTime = row.getMostRecentValue("data", "start_time");
+      gameMode = row.getMostRecentValue("data", "game_mode");
+    }
+    final Players players = row.getMostRecentValue("data", "player_data");
+    if (startTime == null || gameMode == null || players == null) {
+      return;
+    }
+    if (buffer.add(startTime, gameMode, players)) {
+      context.incrementCounter(DistinctAccounts.Counters.SKETCH_FLUSHES);
+      flush(context);
+    }
+  }
+
+  private void flush(GathererContext<Text, HyperLogLogWritable> context) throws IOException {
+    final Text key = new Text();
+    for (Map.Entry<String, HyperLogLogWritable> entry : buffer.sketches().entrySet()) {
+      key.set(entry.getKey());
+      context.write(key, entry.getValue());
+    }
+    context.incrementCounter(DistinctAccounts.Counters.SKETCHES_WRITTEN,
+        buffer.sketches().size());
+    buffer.clear();
+  }
+
+  @Override
+  public void cleanup(GathererContext<Text, HyperLogLogWritable> context) throws IOException {
+    flush(context);
+    context.incrementCounter(DistinctAccounts.Counters.ACCOUNTS_ADDED, buffer.getAdded());
+  }
+
+  @Override
+  public Class<?> getOutputKeyClass() {
+    return Text.class;
+  }
+
+  @Override
+  public Class<?> getOutputValueClass() {
+    return HyperLogLogWritable.class;
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import com.wibidata.wibidota.avro.Match;
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.hadoop.io.NullWritable;
+
+import org.kiji.mapreduce.KijiTableContext;
+import org.kiji.mapreduce.avro.AvroKeyReader;
+import org.kiji.mapreduce.bulkimport.KijiBulkImporter;
+
+/**
+ * Bulk-importer that loads the dota_matches table from the Avro files written by
+ * DotaMatchAvroConverter rather than the raw JSON, so the input can be split and is not
+ * parsed again. Writes the same cells as DotaMatchBulkImporter and also honours
+ * wibidota.matches.packed.header, wibidota.import.derive and wibidota.times.uri.
+ *
+ * <pre>
+ * kiji bulk-import --importer=com.wibidata.wibidota.DotaAvroMatchBulkImporter \
+ *   --input="format=avro file=hdfs://path/to/matches/avro" \
+ *   --output="format=hfile file=hdfs://path/to/tmp/file nsplits=64 table=kiji://.env/wibidota/dota_matches" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ */
+public class DotaAvroMatchBulkImporter extends KijiBulkImporter<AvroKey<Match>, NullWritable>
+    implements AvroKeyReader {
+
+  // Whether to write a MatchHeader instead of the scalar columns
+  private boolean packedHeader;
+
+  // Skips the matches already imported in incremental mode, null otherwise
+  private ImportWatermark.Tracker watermark;
+
+  // Rules to write the derived_data columns with, null if they are not written
+  private MatchRules rules;
+
+  // Writes the start times to dota_match_times, null if they are not indexed
+  private MatchTimeIndex.Writer times;
+
+  @Override
+  public Schema getAvroKeyReaderSchema() throws IOException {
+    return Match.SCHEMA$;
+  }
+
+  @Override
+  public void setup(KijiTableContext context) throws IOException {
+    packedHeader = MatchHeaders.isPacked(getConf());
+    watermark = ImportWatermark.open(getConf());
+    rules = DotaMatchBulkImporter.openDerive(getConf());
+    times = MatchTimeIndex.open(getConf());
+  }
+
+  @Override
+  public void produce(AvroKey<Match> key, NullWritable value, KijiTableContext context)
+      throws IOException {
+    final ParsedMatch match = ParsedMatch.fromMatch(key.datum());
+    if (watermark != null && !watermark.accept(match, context)) {
+      return;
+    }
+    final DotaMatchBulkImporter.Derived derived =
+        rules == null ? null : DotaMatchBulkImporter.derive(match, rules, context);
+    final CellSink sink = new CellSink.ContextSink(context);
+    DotaMatchBulkImporter.putMatch(match, sink, packedHeader);
+    if (derived != null) {
+      DotaMatchBulkImporter.putDerived(match, derived, sink);
+    }
+    if (times != null) {
+      times.put(match);
+    }
+  }
+
+  @Override
+  public void cleanup(KijiTableContext context) throws IOException {
+    if (rules != null) {
+      DotaMatchBulkImporter.logViolations(rules);
+    }
+    try {
+      if (times != null) {
+        times.close();
+      }
+    } finally {
+      if (watermark != null) {
+        watermark.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import com.wibidata.wibidota.avro.Match;
+import org.apache.avro.Schema;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.hadoop.io.NullWritable;
+
+import org.kiji.mapreduce.KijiTableContext;
+import org.kiji.mapreduce.avro.AvroKeyReader;
+import org.kiji.mapreduce.bulkimport.KijiBulkImporter;
+
+/**
+ * Bulk-importer that loads the dota_players table from the Avro files written by
+ * DotaMatchAvroConverter rather than the raw JSON, so the input can be split and is not
+ * parsed again. Writes the same cells as DotaPlayersBulkImporter and also honours
+ * wibidota.players.compact.
+ *
+ * <pre>
+ * kiji bulk-import --importer=com.wibidata.wibidota.DotaAvroPlayersBulkImporter \
+ *   --input="format=avro file=hdfs://path/to/matches/avro" \
+ *   --output="format=hfile file=hdfs://path/to/tmp/file nsplits=64 table=kiji://.env/wibidota/dota_players" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ */
+public class DotaAvroPlayersBulkImporter extends KijiBulkImporter<AvroKey<Match>, NullWritable>
+    implements AvroKeyReader {
+
+  // Whether to write PlayerMatches
+  private boolean compact;
+
+  // Skips the matches already imported in incremental mode, null otherwise
+  private ImportWatermark.Tracker watermark;
+
+  @Override
+  public Schema getAvroKeyReaderSchema() throws IOException {
+    return Match.SCHEMA$;
+  }
+
+  @Override
+  public void setup(KijiTableContext context) throws IOException {
+    compact = DotaPlayersBulkImporter.isCompact(getConf());
+    watermark = ImportWatermark.open(getConf());
+  }
+
+  @Override
+  public void produce(AvroKey<Match> key, NullWritable value, KijiTableContext context)
+      throws IOException {
+    final ParsedMatch match = ParsedMatch.fromMatch(key.datum());
+    if (watermark != null && !watermark.accept(match, context)) {
+      return;
+    }
+    DotaPlayersBulkImporter.putPlayers(match,
+        new CellSink.ContextSink(context), compact);
+  }
+
+  @Override
+  public void cleanup(KijiTableContext context) throws IOException {
+    if (watermark != null) {
+      watermark.close();
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.mapreduce.KijiTableContext;
+import org.kiji.mapreduce.bulkimport.KijiBulkImporter;
+import org.kiji.schema.KijiURI;
+
+/**
+ * Bulk-importer that loads both the dota_matches and the dota_players tables from a single
+ * pass over the raw JSON, so each match is read and parsed once.
+ *
+ * <p>A bulk-import job can only produce HFiles for the one table it outputs to, so the
+ * other table is written to directly while the job runs. Which table that is depends on
+ * which of these properties is set (exactly one must be):
+ *
+ * <ul>
+ *   <li>wibidota.combined.players.uri: the job outputs to dota_matches and the players are
+ *   written to the dota_players table at this URI.</li>
+ *   <li>wibidota.combined.matches.uri: the job outputs to dota_players and the matches are
+ *   written to the dota_matches table at this URI.</li>
+ * </ul>
+ *
+ * Since the players table receives about ten times as many cells, the second is usually the
+ * faster choice:
+ *
+ * <pre>
+ * kiji bulk-import --importer=com.wibidata.wibidota.DotaCombinedBulkImporter \
+ *   -Dwibidota.combined.matches.uri=kiji://.env/wibidota/dota_matches \
+ *   --input="format=text file=hdfs://path/to/matches/json" \
+ *   --output="format=hfile file=hdfs://path/to/tmp/file nsplits=64 table=kiji://.env/wibidota/dota_players" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ *
+ * The cells written are the same as those of DotaMatchBulkImporter and DotaPlayersBulkImporter,
+ * and bad lines are handled the same way (see BadLineQuarantine). With wibidota.import.derive
+ * the derived_data columns are written to dota_matches too, and with wibidota.times.uri the
+ * matches are added to dota_match_times.
+ */
+public class DotaCombinedBulkImporter extends KijiBulkImporter<LongWritable, Text> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DotaCombinedBulkImporter.class);
+
+  /** URI of the dota_players table, if the job outputs to dota_matches. */
+  public static final String CONF_PLAYERS_URI = "wibidota.combined.players.uri";
+
+  /** URI of the dota_matches table, if the job outputs to dota_players. */
+  public static final String CONF_MATCHES_URI = "wibidota.combined.matches.uri";
+
+  // Parser for the raw lines, reads the Text's bytes without building a JsonObject
+  private final DotaMatchParser parser = new DotaMatchParser();
+
+  // The table that is not the job's output
+  private CellSink.TableSink tableSink;
+
+  // True if tableSink holds the matches
+  private boolean matchesDirect;
+
+  // Whether to write a MatchHeader instead of the scalar match columns
+  private boolean packedHeader;
+
+  // Whether to write PlayerMatches instead of copies of the match
+  private boolean compactPlayers;
+
+  // Where bad lines go in tolerant mode, null otherwise
+  private BadLineQuarantine quarantine;
+
+  // Skips the matches already imported in incremental mode, null otherwise
+  private ImportWatermark.Tracker watermark;
+
+  // Rules to write the derived_data columns with, null if they are not written
+  private MatchRules rules;
+
+  // Writes the start times to dota_match_times, null if they are not indexed
+  private MatchTimeIndex.Writer times;
+
+  @Override
+  public void setup(KijiTableContext context) throws IOException {
+    final String playersUri = getConf().get(CONF_PLAYERS_URI);
+    final String matchesUri = getConf().get(CONF_MATCHES_URI);
+    if ((playersUri == null) == (matchesUri == null)) {
+      throw new IOException("Exactly one of " + CONF_PLAYERS_URI + " and "
+          + CONF_MATCHES_URI + " must be set");
+    }
+    matchesDirect = matchesUri != null;
+    packedHeader = MatchHeaders.isPacked(getConf());
+    compactPlayers = DotaPlayersBulkImporter.isCompact(getConf());
+    quarantine = BadLineQuarantine.open(getConf());
+    watermark = ImportWatermark.open(getConf());
+    rules = DotaMatchBulkImporter.openDerive(getConf());
+    times = MatchTimeIndex.open(getConf());
+    final KijiURI uri = KijiURI.newBuilder(matchesDirect ? matchesUri : playersUri).build();
+    LOG.info("Writing " + (matchesDirect ? "matches" : "players") + " directly to " + uri);
+    tableSink = new CellSink.TableSink(uri, getConf());
+  }
+
+  @Override
+  public void produce(LongWritable filePos, Text line, KijiTableContext context)
+      throws IOException {
+    try {
+      final ParsedMatch match = parser.parse(line);
+      if (watermark != null && !watermark.accept(match, context)) {
+        return;
+      }
+      final DotaMatchBulkImporter.Derived derived =
+          rules == null ? null : DotaMatchBulkImporter.derive(match, rules, context);
+      final CellSink contextSink = new CellSink.ContextSink(context);
+      final CellSink matchSink = matchesDirect ? tableSink : contextSink;
+      DotaMatchBulkImporter.putMatch(match, matchSink, packedHeader);
+      if (derived != null) {
+        DotaMatchBulkImporter.putDerived(match, derived, matchSink);
+      }
+      if (times != null) {
+        times.put(match);
+      }
+      DotaPlayersBulkImporter.putPlayers(match, matchesDirect ? contextSink : tableSink,
+          compactPlayers);
+    } catch (RuntimeException re) {
+      if (quarantine != null) {
+        quarantine.add(filePos.get(), line, re, context);
+        return;
+      }
+      // For RunetimeExceptions we try to log additional information debugging purposes
+      try {
+        LOG.error("Runtime Exception! MatchId=" +
+            "\nLine\n" + line + "\nMessage:\n" + re.toString());
+      } catch (RuntimeException ex) {
+        LOG.debug("Error loggging the error: " + ex.getMessage());
+      }
+      throw re;
+    }
+  }
+
+  @Override
+  public void cleanup(KijiTableContext context) throws IOException {
+    if (rules != null) {
+      DotaMatchBulkImporter.logViolations(rules);
+    }
+    try {
+      if (tableSink != null) {
+        tableSink.close();
+      }
+    } finally {
+      try {
+        if (times != null) {
+          times.close();
+        }
+      } finally {
+        try {
+          if (watermark != null) {
+            watermark.close();
+          }
+        } finally {
+          if (quarantine != null) {
+            quarantine.close();
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,266 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * A Map Reduce job that profiles every field of the raw JSON in one pass, the match fields as
+ * match.&lt;name&gt; and those of the players as player.&lt;name&gt;. For each it writes
+ * one line of the form
+ *
+ * player.leaver_status  present=.. nulls=.. number=.. min=.. max=.. mean=.. distinct~.. top=..
+ *
+ * giving how many times the field appeared and was null, the JSON types of its values, the
+ * range and mean of the numbers, an estimate of the number of distinct values and the most
+ * frequent values with their counts (see FieldProfile). Arrays and objects other than players
+ * are counted but not looked into. The "match" and "player" lines count the matches and
+ * players read, so the number of times a field is missing is the difference. Options:
+ *
+ * <ul>
+ * <li>wibidota.profile.top.k, the number of frequent values to list (default 20). Five times
+ * as many are counted.</li>
+ * <li>wibidota.profile.precision, the precision of the distinct count sketches (default
+ * 12).</li>
+ * <li>wibidota.profile.null.values, values to count as nulls, as a list of
+ * &lt;field&gt;=&lt;value&gt; (default player.account_id=4294967295, the anonymous
+ * accounts).</li>
+ * </ul>
+ *
+ * Each mapper keeps the profiles of the fields it sees and writes them once it is done.
+ * Reads the JSON lines written by dota_slurp.py, lines that can not be parsed are counted and
+ * skipped.
+ *
+ * Usage: DotaFieldProfiler &lt;input&gt; &lt;output&gt;
+ */
+public class DotaFieldProfiler extends Configured implements Tool {
+
+  /** Number of frequent values to list for each field. */
+  public static final String CONF_TOP_K = "wibidota.profile.top.k";
+
+  /** Precision of the distinct count sketches. */
+  public static final String CONF_PRECISION = "wibidota.profile.precision";
+
+  /** Values counted as nulls, field=value. */
+  public static final String CONF_NULL_VALUES = "wibidota.profile.null.values";
+
+  private static final int DEFAULT_TOP_K = 20;
+
+  private static final String DEFAULT_NULL_VALUES = "player.account_id=4294967295";
+
+  static enum Counters {
+    MATCHES_PROFILED,
+    MALFORMED_LINES
+  }
+
+  private static FieldProfile newProfile(Configuration conf) {
+    return new FieldProfile(5 * conf.getInt(CONF_TOP_K, DEFAULT_TOP_K),
+        conf.getInt(CONF_PRECISION, HyperLogLogWritable.DEFAULT_PRECISION));
+  }
+
+  /**
+   * Mapper that profiles the fields of the matches it reads and writes the profiles at the end.
+   */
+  public static class Map extends Mapper<LongWritable, Text, Text, FieldProfile> {
+
+    private final JsonParser parser = new JsonParser();
+
+    private java.util.Map<String, FieldProfile> profiles;
+
+    private java.util.Map<String, String> nullValues;
+
+    private Configuration conf;
+
+    @Override
+    protected void setup(Context context) {
+      conf = context.getConfiguration();
+      profiles = new HashMap<String, FieldProfile>();
+      nullValues = new HashMap<String, String>();
+      for (String nullValue : conf.getTrimmedStrings(CONF_NULL_VALUES, DEFAULT_NULL_VALUES)) {
+        final int eq = nullValue.indexOf('=');
+        nullValues.put(nullValue.substring(0, eq), nullValue.substring(eq + 1));
+      }
+    }
+
+    private FieldProfile profile(String field) {
+      FieldProfile profile = profiles.get(field);
+      if (profile == null) {
+        profile = newProfile(conf);
+        profiles.put(field, profile);
+      }
+      return profile;
+    }
+
+    // Profiles one value, the players are gone through by the caller
+    private void add(String field, JsonElement value) {
+      final FieldProfile profile = profile(field);
+      if (value.isJsonNull()) {
+        profile.addNull();
+      } else if (value.isJsonArray()) {
+        profile.addContainer(FieldProfile.ARRAY);
+      } else if (value.isJsonObject()) {
+        profile.addContainer(FieldProfile.OBJECT);
+      } else {
+        final JsonPrimitive primitive = value.getAsJsonPrimitive();
+        final String text = primitive.getAsString();
+        if (text.equals(nullValues.get(field))) {
+          profile.addNull();
+        } else if (primitive.isNumber()) {
+          profile.addNumber(text, primitive.getAsDouble());
+        } else if (primitive.isBoolean()) {
+          profile.addValue(FieldProfile.BOOLEAN, text);
+        } else {
+          profile.addValue(FieldProfile.STRING, text);
+        }
+      }
+    }
+
+    // Profiles the fields of an object with the given prefix
+    private void addFields(String prefix, JsonObject object) {
+      for (java.util.Map.Entry<String, JsonElement> entry : object.entrySet()) {
+        add(prefix + entry.getKey(), entry.getValue());
+      }
+    }
+
+    public void map(LongWritable key, Text value, Context context)
+        throws IOException, InterruptedException {
+      final JsonObject match;
+      try {
+        match = parser.parse(value.toString()).getAsJsonObject();
+      } catch (JsonParseException jpe) {
+        context.getCounter(Counters.MALFORMED_LINES).increment(1);
+        return;
+      } catch (IllegalStateException ise) {
+        // Thrown by getAsJsonObject() for anything but an object
+        context.getCounter(Counters.MALFORMED_LINES).increment(1);
+        return;
+      }
+      profile("match").addContainer(FieldProfile.OBJECT);
+      for (java.util.Map.Entry<String, JsonElement> entry : match.entrySet()) {
+        if ("players".equals(entry.getKey()) && entry.getValue().isJsonArray()) {
+          profile("match.players").addContainer(FieldProfile.ARRAY);
+          for (JsonElement player : entry.getValue().getAsJsonArray()) {
+            if (player.isJsonObject()) {
+              profile("player").addContainer(FieldProfile.OBJECT);
+              addFields("player.", player.getAsJsonObject());
+            }
+          }
+        } else {
+          add("match." + entry.getKey(), entry.getValue());
+        }
+      }
+      context.getCounter(Counters.MATCHES_PROFILED).increment(1);
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+      final Text outKey = new Text();
+      for (java.util.Map.Entry<String, FieldProfile> entry : profiles.entrySet()) {
+        outKey.set(entry.getKey());
+        context.write(outKey, entry.getValue());
+      }
+    }
+  }
+
+  // Merges the profiles of a field
+  private static FieldProfile merge(Iterable<FieldProfile> values, Configuration conf) {
+    final FieldProfile merged = newProfile(conf);
+    for (FieldProfile profile : values) {
+      merged.merge(profile);
+    }
+    return merged;
+  }
+
+  /**
+   * Combiner that merges the profiles of each field.
+   */
+  public static class MergeProfiles extends Reducer<Text, FieldProfile, Text, FieldProfile> {
+
+    public void reduce(Text key, Iterable<FieldProfile> values, Context context)
+        throws IOException, InterruptedException {
+      context.write(key, merge(values, context.getConfiguration()));
+    }
+  }
+
+  /**
+   * Reducer that merges the profiles of each field and writes them as text.
+   */
+  public static class WriteProfiles extends Reducer<Text, FieldProfile, Text, Text> {
+
+    public void reduce(Text key, Iterable<FieldProfile> values, Context context)
+        throws IOException, InterruptedException {
+      final Configuration conf = context.getConfiguration();
+      context.write(key,
+          new Text(merge(values, conf).toString(conf.getInt(CONF_TOP_K, DEFAULT_TOP_K))));
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new DotaFieldProfiler(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    Job job = new Job(super.getConf(), "Dota Field Profiler");
+    job.setMapOutputKeyClass(Text.class);
+    job.setMapOutputValueClass(FieldProfile.class);
+
+    job.setMapperClass(Map.class);
+    job.setCombinerClass(MergeProfiles.class);
+    job.setReducerClass(WriteProfiles.class);
+
+    job.setJarByClass(DotaFieldProfiler.class);
+
+    job.setInputFormatClass(TextInputFormat.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    job.setOutputKeyClass(Text.class);
+    job.setOutputValueClass(Text.class);
+
+    FileInputFormat.addInputPath(job, new Path(args[0]));
+    FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+    if (job.waitForCompletion(true)) {
+      return 0;
+    } else {
+      return -1;
+    }
+  }
+}
@@ -18,153 +18,508 @@
 
 package com.wibidata.wibidota;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.wibidata.wibidota.avro.Match;
+import com.wibidata.wibidota.avro.Player;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.mapred.FsInput;
+import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 
 /**
  * A Map Reduce job built to gather example matches for each value  and columns could take,
- * Currently only works for fields in Player objects, Run on the raw JSON encoded data.
- * Useful if you need to manually check what values map to what in game events.
+ * Currently only works for fields in Player objects, Run on the raw JSON encoded data or the
+ * Avro files written by DotaMatchAvroConverter. Useful if you need to manually check what
+ * values map to what in game events.
+ *
+ * Runs in two steps. The job samples up to wibidota.examples.max (default 10) matches for
+ * each value of the player field wibidota.examples.field (default leaver_status), uniformly
+ * over the whole input, and writes a reference to each: its match_id, the player_slot that
+ * had the value and the file and offset the match was read from. Then the referenced matches
+ * alone are read back by a map-only job with one task per input file, so the files are read
+ * in parallel and each compressed one is decompressed once, and written out with a summary
+ * per value. Each mapper tracks at most wibidota.examples.max.values values (default 10000),
+ * so memory and the shuffle stay small whatever the field and however long the lines are.
+ *
+ * Usage: DotaGatherExampleValues &lt;input&gt; &lt;output&gt;, which leaves the references
+ * in &lt;output&gt;/samples and &lt;output&gt;/references, the matches read back in
+ * &lt;output&gt;/fetched and the examples in &lt;output&gt;/examples.txt.
  */
 public class DotaGatherExampleValues extends Configured implements Tool {
     private static final Logger LOG = LoggerFactory.getLogger(DotaGatherExampleValues.class);
 
-    static enum Counters {
-        MALFORMED_MATCH_LINES
-    }
+    /** Maximum number of examples to keep per a value. */
+    public static final String CONF_MAX_EXAMPLES = "wibidota.examples.max";
+
+    /** Player field to gather values from, by its name in the JSON or in Player. */
+    public static final String CONF_FIELD = "wibidota.examples.field";
+
+    /** Maximum number of values each mapper keeps examples of. */
+    public static final String CONF_MAX_VALUES = "wibidota.examples.max.values";
+
+    /** Seed of the sampling. */
+    public static final String CONF_SEED = "wibidota.examples.seed";
+
+    private static final int MAX_EXAMPLES = 10;
 
-    // Maximum number of examples to print per a value
-    private static int MAX_EXAMPLES = 10;
+    private static final String FIELD = "leaver_status";
 
-    // Field to gather values from
-    private static String FIELD = "leaver_status";
+    private static final int MAX_VALUES = 10000;
 
     // String to represent null
     private static String NULL_STR = "null";
 
+    static enum Counters {
+        VALUES_DROPPED  // Players skipped as their mapper had reached the max number of values
+    }
+
+    /**
+     * A sampled match, the random priority it was given and where it can be read again.
+     * Written as tab separated text, the priority first.
+     */
+    static final class Example {
+        private double priority;
+        private long matchId;
+        private int playerSlot;
+        private long offset;
+        private String path;
+
+        static Example parse(String text) {
+            String[] parts = text.split("\t", 5);
+            Example example = new Example();
+            example.priority = Double.parseDouble(parts[0]);
+            example.matchId = Long.parseLong(parts[1]);
+            example.playerSlot = Integer.parseInt(parts[2]);
+            example.offset = Long.parseLong(parts[3]);
+            example.path = parts[4];
+            return example;
+        }
+
+        // Without the priority, as the sampling job writes it out
+        String toReference() {
+            return matchId + "\t" + playerSlot + "\t" + offset + "\t" + path;
+        }
+
+        @Override
+        public String toString() {
+            return priority + "\t" + toReference();
+        }
+    }
+
+    // Orders the examples by descending priority, so the head of a queue is the one to drop
+    private static final Comparator<Example> BY_PRIORITY = new Comparator<Example>() {
+        @Override
+        public int compare(Example a, Example b) {
+            return Double.compare(b.priority, a.priority);
+        }
+    };
+
+    // Keeps the examples of lowest priority, which are a uniform sample of those offered
+    private static void offer(PriorityQueue<Example> sample, Example example, int max) {
+        if (sample.size() < max) {
+            sample.add(example);
+        } else if (example.priority < sample.peek().priority) {
+            sample.poll();
+            sample.add(example);
+        }
+    }
+
     /**
-     * A Mapper class that sends a limited number of examples
-     * to the reducers
+     * A Mapper class that keeps a sample of the matches of each value and sends their
+     * references to the reducers when it is done. Each example is given a random priority and
+     * the lowest are kept, so the samples of the mappers can be merged.
      */
-    public static class EnumGatherMap extends Mapper<LongWritable, Text, Text, Text> {
+    public static class EnumGatherMap extends Mapper<LongWritable, ParsedMatch, Text, Text> {
+
+        private final java.util.Map<String, PriorityQueue<Example>> samples =
+            new HashMap<String, PriorityQueue<Example>>();
 
-        private final static JsonParser PARSER = new JsonParser();
+        private Random random;
+        private Schema.Field field;
+        private int maxExamples;
+        private int maxValues;
+        private String path;
 
-        // Just to caches this value
-        private static final IntWritable ONE = new IntWritable(1);
+        // Values already sampled from the current match
+        private final List<String> matchValues = new ArrayList<String>();
 
-        private static final java.util.Map<String, Integer> VALUES_SENT = new HashMap<String, Integer>();
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            field = JsonNames.playerField(conf.get(CONF_FIELD, FIELD));
+            maxExamples = conf.getInt(CONF_MAX_EXAMPLES, MAX_EXAMPLES);
+            maxValues = conf.getInt(CONF_MAX_VALUES, MAX_VALUES);
+            random = new Random(conf.getLong(CONF_SEED, 0L) * 31
+                + context.getTaskAttemptID().getTaskID().getId());
+            path = ((FileSplit) context.getInputSplit()).getPath().toString();
+        }
 
-        public void map(LongWritable key, Text value, Context context)
+        public void map(LongWritable key, ParsedMatch value, Context context)
                 throws IOException, InterruptedException {
-            try{
-                JsonObject matchData = PARSER.parse(value.toString()).getAsJsonObject();
-                for (JsonElement playerElem : matchData.get("players").getAsJsonArray()) {
-                    JsonObject playerData = playerElem.getAsJsonObject();
-                    JsonElement fieldValue = playerData.get(FIELD);
-                    String fieldStr = (fieldValue == null ?
-                        NULL_STR : fieldValue.getAsString());
-                    if(VALUES_SENT.get(fieldStr) == null){
-                        VALUES_SENT.put(fieldStr, 1);
-                        context.write(new Text(fieldStr), value);
-                        break;
-                    } else {
-                        Integer cur = VALUES_SENT.get(fieldStr);
-                        if (cur < MAX_EXAMPLES){
-                            VALUES_SENT.put(fieldStr, cur + 1);
-                            context.write(new Text(fieldStr), value);
-                            break;
-                        }
+            matchValues.clear();
+            for (Player player : value.getPlayers().getPlayers()) {
+                Object fieldValue = player.get(field.pos());
+                String fieldStr = (fieldValue == null ?
+                    NULL_STR : fieldValue.toString());
+                if (matchValues.contains(fieldStr)) {
+                    continue;
+                }
+                matchValues.add(fieldStr);
+                PriorityQueue<Example> sample = samples.get(fieldStr);
+                if (sample == null) {
+                    if (samples.size() >= maxValues) {
+                        context.getCounter(Counters.VALUES_DROPPED).increment(1);
+                        continue;
                     }
+                    sample = new PriorityQueue<Example>(maxExamples, BY_PRIORITY);
+                    samples.put(fieldStr, sample);
                 }
-            } catch (IllegalStateException e) {
-                // Indicates malformed JSON.
-                context.getCounter(Counters.MALFORMED_MATCH_LINES).increment(1);
+                Example example = new Example();
+                example.priority = random.nextDouble();
+                example.matchId = value.getMatchId();
+                example.playerSlot = player.getPlayerSlot();
+                example.offset = key.get();
+                example.path = path;
+                offer(sample, example, maxExamples);
             }
         }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            Text outKey = new Text();
+            Text outValue = new Text();
+            for (java.util.Map.Entry<String, PriorityQueue<Example>> entry : samples.entrySet()) {
+                outKey.set(entry.getKey());
+                for (Example example : entry.getValue()) {
+                    outValue.set(example.toString());
+                    context.write(outKey, outValue);
+                }
+            }
+        }
+    }
+
+    // Merges the samples of a value
+    private static PriorityQueue<Example> merge(Iterable<Text> values, int max) {
+        PriorityQueue<Example> sample = new PriorityQueue<Example>(max, BY_PRIORITY);
+        for (Text text : values) {
+            offer(sample, Example.parse(text.toString()), max);
+        }
+        return sample;
     }
 
     /**
-     * Combiner class that aggregates lines
+     * Combiner class that merges the samples of the mappers
      */
-    public static class AppendText
+    public static class MergeSamples
             extends Reducer<Text, Text, Text, Text> {
 
         public void reduce(Text key, Iterable<Text> values, Context context)
                 throws IOException, InterruptedException {
-            StringBuilder out = new StringBuilder();
-            for(Text text : values){
-                out.append(text + "\n");
+            int max = context.getConfiguration().getInt(CONF_MAX_EXAMPLES, MAX_EXAMPLES);
+            for (Example example : merge(values, max)) {
+                context.write(key, new Text(example.toString()));
             }
-            context.write(key, new Text(out.toString()));
         }
     }
 
     /**
-     * Reducer, aggregates lines, creates a summary, throttles excess lines
+     * Reducer, merges the samples and writes the references of the examples
      */
     public static class EnumGatherReducer
             extends Reducer<Text, Text, Text, Text> {
 
-        private final static JsonParser PARSER = new JsonParser();
-
         public void reduce(Text key, Iterable<Text> values, Context context)
                 throws IOException, InterruptedException {
-            StringBuilder allLines = new StringBuilder();
-            StringBuilder summaryString = new StringBuilder("\n***** Key: " + key + " *****\nMatch ids:\n");
-            int valuesAdded = 0;
-            for(Text text : values){
-                for(String line : text.toString().split("\n")){
-                    valuesAdded++;
-                    JsonObject matchData = PARSER.parse(line).getAsJsonObject();
-                    long matchId = matchData.get("match_id").getAsLong();
-                    for (JsonElement playerElem : matchData.get("players").getAsJsonArray()) {
-                        JsonObject playerData = playerElem.getAsJsonObject();
-                        String fieldValue = (playerData.get(FIELD) == null ? NULL_STR :
-                            playerData.get(FIELD).getAsString());
-                        if(key.toString().equals(fieldValue)){
-                            summaryString.append("Match: " + matchId + " player: " +
-                                    playerData.get("player_slot").getAsInt() + " (" +
-                                    DotaValues.playerSlot(playerData.get("player_slot").getAsInt()) + ")\n");
+            int max = context.getConfiguration().getInt(CONF_MAX_EXAMPLES, MAX_EXAMPLES);
+            for (Example example : merge(values, max)) {
+                context.write(key, new Text(example.toReference()));
+            }
+        }
+    }
+
+    // Reads the line that starts at the given offset, the stream being at pos, with its newline
+    private static byte[] readLine(InputStream in, long pos, long offset) throws IOException {
+        long toSkip = offset - pos;
+        while (toSkip > 0) {
+            long skipped = in.skip(toSkip);
+            if (skipped <= 0) {
+                return null;
+            }
+            toSkip -= skipped;
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            line.write(b);
+            if (b == '\n') {
+                break;
+            }
+        }
+        return line.toByteArray();
+    }
+
+    /**
+     * Reads the sampled matches of one input file, in order of offset.
+     *
+     * @return the matches by their reference.
+     */
+    private static java.util.Map<String, String> fetch(Path path, List<Example> examples,
+            Configuration conf) throws IOException {
+        java.util.Map<String, String> lines = new HashMap<String, String>();
+        FileSystem fs = path.getFileSystem(conf);
+        if (DotaMatchInputFormat.isAvro(path)) {
+            DataFileReader<Match> reader = new DataFileReader<Match>(new FsInput(path, conf),
+                new SpecificDatumReader<Match>(Match.class));
+            try {
+                for (Example example : examples) {
+                    // The offset is the start of the block the match is in
+                    reader.seek(example.offset);
+                    while (reader.hasNext() && reader.previousSync() <= example.offset) {
+                        Match match = reader.next();
+                        if (match.getHeader().getMatchId() == example.matchId) {
+                            lines.put(example.toReference(), match.toString());
                             break;
                         }
                     }
-                    allLines.append(line);
-                    if(valuesAdded > MAX_EXAMPLES){
+                }
+            } finally {
+                reader.close();
+            }
+            return lines;
+        }
+
+        // The offsets of compressed files are in the uncompressed data, which is read through
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+        InputStream in = fs.open(path);
+        if (codec != null) {
+            in = codec.createInputStream(in);
+        }
+        in = new BufferedInputStream(in);
+        try {
+            long pos = 0;
+            String line = null;
+            for (Example example : examples) {
+                // Several values can sample the same match
+                if (example.offset >= pos) {
+                    byte[] bytes = readLine(in, pos, example.offset);
+                    if (bytes == null) {
                         break;
                     }
+                    pos = example.offset + bytes.length;
+                    line = new String(bytes, "UTF-8").trim();
+                }
+                lines.put(example.toReference(), line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Map-only job that reads back the referenced matches, each task given the references
+     * into one input file. They are read in order of offset, so a compressed file is only
+     * decompressed once.
+     */
+    public static class FetchMap extends Mapper<LongWritable, Text, Text, Text> {
+
+        private final List<Example> examples = new ArrayList<Example>();
+
+        public void map(LongWritable key, Text value, Context context) {
+            examples.add(Example.parse("0\t" + value.toString()));
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            java.util.Map<String, List<Example>> byPath = new HashMap<String, List<Example>>();
+            for (Example example : examples) {
+                if (!byPath.containsKey(example.path)) {
+                    byPath.put(example.path, new ArrayList<Example>());
                 }
-                if(valuesAdded > MAX_EXAMPLES){
-                    break;
+                byPath.get(example.path).add(example);
+            }
+            for (java.util.Map.Entry<String, List<Example>> entry : byPath.entrySet()) {
+                List<Example> inPath = entry.getValue();
+                Collections.sort(inPath, BY_OFFSET);
+                java.util.Map<String, String> lines = fetch(new Path(entry.getKey()), inPath,
+                    context.getConfiguration());
+                for (java.util.Map.Entry<String, String> line : lines.entrySet()) {
+                    context.write(new Text(line.getKey()), new Text(line.getValue()));
                 }
             }
-            context.write(key, new Text(summaryString.toString() +
-                "\n***** LINES *****\n" + allLines.toString()));
         }
     }
 
+    private static final Comparator<Example> BY_OFFSET = new Comparator<Example>() {
+        @Override
+        public int compare(Example a, Example b) {
+            return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+        }
+    };
+
+    /**
+     * Reads back the matches the sampling job referenced and writes them with a summary for
+     * each value. The references are written to &lt;base&gt;/references, one file per input
+     * file, and read by a FetchMap job into &lt;base&gt;/fetched.
+     *
+     * @param samples, the output of the sampling job.
+     * @param base, the output directory of the tool.
+     * @param output, the file to write the examples to.
+     * @return false if the fetch job failed.
+     */
+    private boolean fetchExamples(Path samples, Path base, Path output) throws Exception {
+        Configuration conf = getConf();
+        FileSystem fs = samples.getFileSystem(conf);
+
+        // The references by value, and by input file
+        java.util.Map<String, List<Example>> byValue = new LinkedHashMap<String, List<Example>>();
+        java.util.Map<String, List<Example>> byPath = new HashMap<String, List<Example>>();
+        for (FileStatus status : fs.listStatus(samples)) {
+            if (!status.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(fs.open(status.getPath()), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    Example example = Example.parse("0\t" + line.substring(tab + 1));
+                    String value = line.substring(0, tab);
+                    if (!byValue.containsKey(value)) {
+                        byValue.put(value, new ArrayList<Example>());
+                    }
+                    byValue.get(value).add(example);
+                    if (!byPath.containsKey(example.path)) {
+                        byPath.put(example.path, new ArrayList<Example>());
+                    }
+                    byPath.get(example.path).add(example);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        if (byPath.isEmpty()) {
+            LOG.warn("No examples were sampled");
+            return true;
+        }
+
+        // One file of references per input file, so each is read by a single task
+        Path references = new Path(base, "references");
+        fs.delete(references, true);
+        int file = 0;
+        for (List<Example> examples : byPath.values()) {
+            Writer out = new OutputStreamWriter(
+                fs.create(new Path(references, String.format("refs-%05d", file++))), "UTF-8");
+            try {
+                for (Example example : examples) {
+                    out.write(example.toReference() + "\n");
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        Path fetched = new Path(base, "fetched");
+        Job job = new Job(conf, "Dota Gatherer Example Values fetch");
+        job.setJarByClass(DotaGatherExampleValues.class);
+        job.setMapperClass(FetchMap.class);
+        job.setNumReduceTasks(0);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        job.setInputFormatClass(TextInputFormat.class);
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileInputFormat.addInputPath(job, references);
+        FileInputFormat.setMinInputSplitSize(job, Long.MAX_VALUE);
+        FileOutputFormat.setOutputPath(job, fetched);
+        if (!job.waitForCompletion(true)) {
+            return false;
+        }
+
+        java.util.Map<String, String> lines = new HashMap<String, String>();
+        for (FileStatus status : fs.listStatus(fetched)) {
+            if (!status.getPath().getName().startsWith("part-")) {
+                continue;
+            }
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+            try {
+                Text reference = new Text();
+                Text line = new Text();
+                while (reader.next(reference, line)) {
+                    lines.put(reference.toString(), line.toString());
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        Writer out = new OutputStreamWriter(output.getFileSystem(conf).create(output, true),
+            "UTF-8");
+        try {
+            for (java.util.Map.Entry<String, List<Example>> entry : byValue.entrySet()) {
+                StringBuilder summaryString = new StringBuilder(
+                    "\n***** Key: " + entry.getKey() + " *****\nMatch ids:\n");
+                StringBuilder allLines = new StringBuilder();
+                for (Example example : entry.getValue()) {
+                    summaryString.append("Match: " + example.matchId + " player: " +
+                        example.playerSlot + " (" +
+                        DotaValues.playerSlot(example.playerSlot) + ")\n");
+                    String line = lines.get(example.toReference());
+                    if (line == null) {
+                        LOG.warn("Could not read match " + example.matchId + " from "
+                            + example.path + " at " + example.offset);
+                        continue;
+                    }
+                    allLines.append(line).append('\n');
+                }
+                out.write(summaryString.toString() + "\n***** LINES *****\n"
+                    + allLines.toString());
+            }
+        } finally {
+            out.close();
+        }
+        return true;
+    }
+
     /**
      * Runs the job, requires that the gson package is made
      * available to the cluster.
@@ -184,21 +539,22 @@ public class DotaGatherExampleValues extends Configured implements Tool {
         job.setMapOutputValueClass(Text.class);
 
         job.setMapperClass(EnumGatherMap.class);
-        job.setCombinerClass(AppendText.class);
+        job.setCombinerClass(MergeSamples.class);
         job.setReducerClass(EnumGatherReducer.class);
 
         job.setJarByClass(DotaGatherExampleValues.class);
 
-        job.setInputFormatClass(TextInputFormat.class);
+        job.setInputFormatClass(DotaMatchInputFormat.class);
         job.setOutputFormatClass(TextOutputFormat.class);
 
+        Path samples = new Path(args[1], "samples");
         FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        FileOutputFormat.setOutputPath(job, samples);
 
-        if (job.waitForCompletion(true)) {
-            return 0;
-        } else {
+        if (!job.waitForCompletion(true)) {
             return -1;
         }
+        Path base = new Path(args[1]);
+        return fetchExamples(samples, base, new Path(base, "examples.txt")) ? 0 : -1;
     }
 }
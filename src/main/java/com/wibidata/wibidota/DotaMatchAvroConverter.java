@@ -0,0 +1,199 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.wibidata.wibidota.avro.Match;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Map-only job that rewrites the gzipped JSON written by dota_slurp.py as deflate compressed
+ * Avro container files of Match records, which unlike the gzip files can be split between
+ * mappers. The jobs reading DotaMatchInputFormat accept either.
+ *
+ * Conversion is incremental, the names of the JSON files already converted are kept in
+ * &lt;avro dir&gt;/_converted and only new files are read on later runs. Each run adds its
+ * files to the avro dir as batch-&lt;time&gt;-part-m-NNNNN.avro.
+ *
+ * Usage: DotaMatchAvroConverter &lt;json dir&gt; &lt;avro dir&gt;
+ */
+public class DotaMatchAvroConverter extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DotaMatchAvroConverter.class);
+
+  /** Name of the file listing the JSON files already converted. */
+  public static final String MANIFEST = "_converted";
+
+  /**
+   * Mapper that wraps each parsed match in a Match record.
+   */
+  public static class ConvertMap
+      extends Mapper<LongWritable, ParsedMatch, AvroKey<Match>, NullWritable> {
+
+    private final AvroKey<Match> outKey = new AvroKey<Match>();
+
+    public void map(LongWritable key, ParsedMatch value, Context context)
+        throws IOException, InterruptedException {
+      outKey.datum(value.toMatch());
+      context.write(outKey, NullWritable.get());
+    }
+  }
+
+  // Reads the names listed in the manifest, if there is one
+  private static Set<String> readManifest(FileSystem fs, Path manifest) throws IOException {
+    final Set<String> names = new HashSet<String>();
+    if (!fs.exists(manifest)) {
+      return names;
+    }
+    final BufferedReader in =
+        new BufferedReader(new InputStreamReader(fs.open(manifest), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.isEmpty()) {
+          names.add(line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return names;
+  }
+
+  // Replaces the manifest with the given names
+  private static void writeManifest(FileSystem fs, Path manifest, Set<String> names)
+      throws IOException {
+    final Path tmp = new Path(manifest.getParent(), manifest.getName() + ".tmp");
+    final Writer out = new OutputStreamWriter(fs.create(tmp, true), "UTF-8");
+    try {
+      for (String name : names) {
+        out.write(name);
+        out.write('\n');
+      }
+    } finally {
+      out.close();
+    }
+    fs.delete(manifest, false);
+    if (!fs.rename(tmp, manifest)) {
+      throw new IOException("Could not rename " + tmp + " to " + manifest);
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new DotaMatchAvroConverter(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: DotaMatchAvroConverter <json dir> <avro dir>");
+      return -1;
+    }
+    final Path jsonDir = new Path(args[0]);
+    final Path avroDir = new Path(args[1]);
+    final FileSystem jsonFs = jsonDir.getFileSystem(getConf());
+    final FileSystem avroFs = avroDir.getFileSystem(getConf());
+    final Path manifest = new Path(avroDir, MANIFEST);
+
+    // Find the files that have not been converted yet
+    final Set<String> converted = readManifest(avroFs, manifest);
+    final List<Path> newFiles = new ArrayList<Path>();
+    for (FileStatus status : jsonFs.listStatus(jsonDir)) {
+      final String name = status.getPath().getName();
+      if (!status.isDirectory() && !name.startsWith("_") && !name.startsWith(".")
+          && !converted.contains(name)) {
+        newFiles.add(status.getPath());
+      }
+    }
+    if (newFiles.isEmpty()) {
+      LOG.info("No new files to convert in " + jsonDir);
+      return 0;
+    }
+    LOG.info("Converting " + newFiles.size() + " new files from " + jsonDir);
+
+    final String batch = "batch-" + System.currentTimeMillis();
+    final Path tmpDir = new Path(avroDir, "_" + batch);
+
+    Job job = new Job(super.getConf(), "Dota Match Avro Converter");
+    job.setJarByClass(DotaMatchAvroConverter.class);
+    job.setMapperClass(ConvertMap.class);
+    job.setNumReduceTasks(0);
+
+    job.setInputFormatClass(DotaMatchInputFormat.class);
+    job.setOutputFormatClass(AvroKeyOutputFormat.class);
+    job.setOutputKeyClass(AvroKey.class);
+    job.setOutputValueClass(NullWritable.class);
+    AvroJob.setOutputKeySchema(job, Match.SCHEMA$);
+    FileOutputFormat.setCompressOutput(job, true);
+    job.getConfiguration().set(AvroJob.CONF_OUTPUT_CODEC, "deflate");
+
+    for (Path file : newFiles) {
+      FileInputFormat.addInputPath(job, file);
+    }
+    FileOutputFormat.setOutputPath(job, tmpDir);
+
+    if (!job.waitForCompletion(true)) {
+      return -1;
+    }
+
+    // Move the batch next to the earlier ones, then record its inputs as converted
+    for (FileStatus status : avroFs.listStatus(tmpDir)) {
+      final String name = status.getPath().getName();
+      if (name.endsWith(DotaMatchInputFormat.AVRO_SUFFIX)) {
+        final Path dest = new Path(avroDir, batch + "-" + name);
+        if (!avroFs.rename(status.getPath(), dest)) {
+          throw new IOException("Could not rename " + status.getPath() + " to " + dest);
+        }
+      }
+    }
+    avroFs.delete(tmpDir, true);
+    for (Path file : newFiles) {
+      converted.add(file.getName());
+    }
+    writeManifest(avroFs, manifest, converted);
+    return 0;
+  }
+}
@@ -26,11 +26,13 @@ import com.wibidata.wibidota.avro.AbilityUpgrade;
 import com.wibidata.wibidota.avro.AdditionalUnit;
 import com.wibidata.wibidota.avro.Player;
 import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.kiji.mapreduce.KijiContext;
 import org.kiji.mapreduce.KijiTableContext;
 import org.kiji.mapreduce.bulkimport.KijiBulkImporter;
 import org.kiji.schema.EntityId;
@@ -50,7 +52,17 @@ import com.google.gson.JsonParser;
  * { "user_id" : "0", "play_time" : "1325725200000", "song_id" : "1" }
  * </pre>
  *
- * The result will be a HFile that can then be bulk-loaded into Kiji
+ * The result will be a HFile that can then be bulk-loaded into Kiji. If
+ * wibidota.matches.packed.header is true the scalar fields of each match are written as one
+ * MatchHeader to data:header rather than to a column each. Lines that can not be read fail
+ * the task unless wibidota.import.tolerant is set, see BadLineQuarantine.
+ *
+ * <p>If wibidota.import.derive is true each match is also checked against MatchRules and
+ * classified as SeriousMatchProducerMR would, writing derived_data:serious_match and
+ * derived_data:rule_violations (the number of rules broken) along with the match, so neither
+ * DotaCheckValues nor SeriousMatchProducerMR has to scan the table afterwards. If
+ * wibidota.times.uri is set the matches are also added to dota_match_times, see
+ * MatchTimeIndex.
  */
 public class DotaMatchBulkImporter extends KijiBulkImporter<LongWritable, Text> {
 
@@ -58,6 +70,25 @@ public class DotaMatchBulkImporter extends KijiBulkImporter<LongWritable, Text>
 
   static final JsonParser PARSER = new JsonParser();
 
+  /** If true the derived_data columns are written while importing. */
+  public static final String CONF_DERIVE = "wibidota.import.derive";
+
+  /** The derived_data column holding the number of rules a match broke. */
+  static final String RULE_VIOLATIONS = "rule_violations";
+
+  static enum Counters {
+    VALID_MATCHES,  // Matches that passed every rule
+    INVALID_MATCHES // Matches that broke at least one rule
+  }
+
+  /**
+   * @return the rules to derive the matches' validation status with, or null if
+   *     wibidota.import.derive is not set.
+   */
+  static MatchRules openDerive(Configuration conf) throws IOException {
+    return conf.getBoolean(CONF_DERIVE, false) ? MatchRules.fromConf(conf) : null;
+  }
+
   /**
    * Gets an Integer from a JsonElement that might be null.
    *
@@ -179,59 +210,182 @@ public class DotaMatchBulkImporter extends KijiBulkImporter<LongWritable, Text>
   }
 
 
+  /**
+   * Reads a match from a JsonObject. This is the tree based equivalent of
+   * DotaMatchParser.parse(), kept for tools that already hold a parsed JsonObject.
+   */
+  public static ParsedMatch extractMatch(JsonObject matchData){
+    final ParsedMatch match = new ParsedMatch();
+    match.matchId = matchData.get("match_id").getAsLong();
+    match.gameMode = matchData.get("game_mode").getAsInt();
+    match.lobbyType = matchData.get("lobby_type").getAsInt();
+    match.direTowersStatus = matchData.get("tower_status_dire").getAsInt();
+    match.radiantTowersStatus = matchData.get("tower_status_radiant").getAsInt();
+    match.direBarracksStatus = matchData.get("barracks_status_dire").getAsInt();
+    match.radiantBarracksStatus = matchData.get("barracks_status_radiant").getAsInt();
+    match.cluster = matchData.get("cluster").getAsInt();
+    match.season = getNullableInt(matchData.get("season"));
+    match.startTime = matchData.get("start_time").getAsLong();
+    match.matchSeqNum = matchData.get("match_seq_num").getAsLong();
+    match.leagueId = matchData.get("leagueid").getAsInt();
+    match.firstBloodTime = matchData.get("first_blood_time").getAsInt();
+    match.negativeVotes = matchData.get("negative_votes").getAsInt();
+    match.positiveVotes = matchData.get("positive_votes").getAsInt();
+    match.duration = matchData.get("duration").getAsInt();
+    match.radiantWin = matchData.get("radiant_win").getAsBoolean();
+    match.humanPlayers = matchData.get("human_players").getAsInt();
+    match.players = extractPlayers(matchData);
+    return match;
+  }
+
+  /**
+   * Writes the cells of a match to the dota_matches table.
+   *
+   * @param match, the match to write.
+   * @param sink, where to write it.
+   * @param packedHeader, true to write the scalar fields as a single MatchHeader in
+   *     data:header rather than one cell each.
+   */
+  static void putMatch(ParsedMatch match, CellSink sink, boolean packedHeader)
+      throws IOException {
+    final long startTime = match.getStartTime();
+    final EntityId eid = sink.getEntityId(match.getMatchId());
+    sink.put(eid, "data", "player_data", startTime, match.getPlayers());
+    if (packedHeader) {
+      sink.put(eid, "data", MatchHeaders.HEADER_COLUMN, startTime, match.toHeader());
+      return;
+    }
+    sink.put(eid, "data", "dire_towers_status", startTime, match.getDireTowersStatus());
+    sink.put(eid, "data", "radiant_towers_status", startTime, match.getRadiantTowersStatus());
+    sink.put(eid, "data", "dire_barracks_status", startTime, match.getDireBarracksStatus());
+    sink.put(eid, "data", "radiant_barracks_status", startTime,
+        match.getRadiantBarracksStatus());
+    sink.put(eid, "data", "cluster", startTime, match.getCluster());
+    sink.put(eid, "data", "season", startTime, match.getSeason());
+    sink.put(eid, "data", "start_time", startTime, startTime);
+    sink.put(eid, "data", "match_seq_num", startTime, match.getMatchSeqNum());
+    sink.put(eid, "data", "league_id", startTime, match.getLeagueId());
+    sink.put(eid, "data", "first_blood_time", startTime, match.getFirstBloodTime());
+    sink.put(eid, "data", "negative_votes", startTime, match.getNegativeVotes());
+    sink.put(eid, "data", "positive_votes", startTime, match.getPositiveVotes());
+    sink.put(eid, "data", "duration", startTime, match.getDuration());
+    sink.put(eid, "data", "radiant_win", startTime, match.getRadiantWin());
+    sink.put(eid, "data", "game_mode", startTime, match.getGameMode());
+    sink.put(eid, "data", "lobby_type", startTime, match.getLobbyType());
+    sink.put(eid, "data", "human_players", startTime, match.getHumanPlayers());
+  }
+
+  /**
+   * The derived_data values of a match, worked out before any of its cells are written so a
+   * match is either imported whole or not at all.
+   */
+  static final class Derived {
+    final long violations;
+    final boolean serious;
+
+    Derived(long violations, boolean serious) {
+      this.violations = violations;
+      this.serious = serious;
+    }
+  }
+
+  /**
+   * Checks a match against the rules and classifies it as SeriousMatchProducerMR would.
+   * Neither throws whatever the values of the match.
+   *
+   * @param match, the match to derive the values of.
+   * @param rules, the rules to check it with.
+   * @param context, where to count the results, in Counters and SeriousMatchProducerMR's.
+   * @return the derived values.
+   */
+  static Derived derive(ParsedMatch match, MatchRules rules, KijiContext context) {
+    final long violations = rules.check(match.toHeader(), match.getPlayers());
+    context.incrementCounter(
+        violations == 0 ? Counters.VALID_MATCHES : Counters.INVALID_MATCHES);
+    return new Derived(violations, SeriousMatchProducerMR.isSerious(match.getGameMode(),
+        match.getLobbyType(), match.getPlayers(), context));
+  }
+
+  /**
+   * Writes the derived_data columns of a match, its validation status and whether it is
+   * serious, with the timestamp 0 SeriousMatchProducerMR uses.
+   *
+   * @param match, the match to write for.
+   * @param derived, its values from derive().
+   * @param sink, where to write.
+   */
+  static void putDerived(ParsedMatch match, Derived derived, CellSink sink)
+      throws IOException {
+    final EntityId eid = sink.getEntityId(match.getMatchId());
+    sink.put(eid, "derived_data", RULE_VIOLATIONS, 0L, (double) derived.violations);
+    if (derived.serious) {
+      sink.put(eid, "derived_data", SeriousMatchProducerMR.SERIOUS_MATCH, 0L, 1.0);
+    }
+  }
+
+  /**
+   * Logs the rules the matches of a task broke, the per rule counts DotaCheckValues would
+   * have written.
+   */
+  static void logViolations(MatchRules rules) {
+    for (int i = 0; i < rules.getCounterCount(); i++) {
+      if (rules.getCount(i) > 0) {
+        LOG.info(rules.getCounterName(i) + ": " + rules.getCount(i));
+      }
+    }
+  }
+
+  // Parser for the raw lines, reads the Text's bytes without building a JsonObject
+  private final DotaMatchParser parser = new DotaMatchParser();
+
+  // Whether to write a MatchHeader instead of the scalar columns
+  private boolean packedHeader;
+
+  // Where bad lines go in tolerant mode, null otherwise
+  private BadLineQuarantine quarantine;
+
+  // Skips the matches already imported in incremental mode, null otherwise
+  private ImportWatermark.Tracker watermark;
+
+  // Rules to write the derived_data columns with, null if they are not written
+  private MatchRules rules;
+
+  // Writes the start times to dota_match_times, null if they are not indexed
+  private MatchTimeIndex.Writer times;
+
+  @Override
+  public void setup(KijiTableContext context) throws IOException {
+    packedHeader = MatchHeaders.isPacked(getConf());
+    quarantine = BadLineQuarantine.open(getConf());
+    watermark = ImportWatermark.open(getConf());
+    rules = openDerive(getConf());
+    times = MatchTimeIndex.open(getConf());
+  }
+
   @Override
   public void produce(LongWritable filePos, Text line, KijiTableContext context)
       throws IOException {
 
       try {
-          // Parse the JSON and wrap a JSONplayerData over it
-          final JsonObject matchData = PARSER.parse(line.toString()).getAsJsonObject();
-
-          // Collect the values we need
-          final long matchId = matchData.get("match_id").getAsLong();
-          final int gameMode = matchData.get("game_mode").getAsInt();
-          final int lobbyType = matchData.get("lobby_type").getAsInt();
-          final int direTowers = matchData.get("tower_status_dire").getAsInt();
-          final int radiantTowers = matchData.get("tower_status_radiant").getAsInt();
-          final int direBarracks = matchData.get("barracks_status_dire").getAsInt();
-          final int radiantBarracks = matchData.get("barracks_status_radiant").getAsInt();
-          final int cluster = matchData.get("cluster").getAsInt();
-          final Integer season = getNullableInt(matchData.get("season"));
-          final long startTime = matchData.get("start_time").getAsLong();
-          final long seqNum = matchData.get("match_seq_num").getAsLong();
-          final int leagueId = matchData.get("leagueid").getAsInt();
-          final int firstBloodTime = matchData.get("first_blood_time").getAsInt();
-          final int negativeVotes = matchData.get("negative_votes").getAsInt();
-          final int positiveVotes = matchData.get("positive_votes").getAsInt();
-          final int duration = matchData.get("duration").getAsInt();
-          final boolean radiantWin = matchData.get("radiant_win").getAsBoolean();
-          final int humanPlayers = matchData.get("human_players").getAsInt();
-
-          // Build and parse the match stats
-          final Players players = extractPlayers(matchData);
-
-          EntityId eid = context.getEntityId(matchId);
-
-          // Produce all our data
-          context.put(eid, "data", "dire_towers_status", startTime, direTowers);
-          context.put(eid, "data", "radiant_towers_status", startTime, radiantTowers);
-          context.put(eid, "data", "dire_barracks_status", startTime, direBarracks);
-          context.put(eid, "data", "radiant_barracks_status", startTime, radiantBarracks);
-          context.put(eid, "data", "cluster", startTime, cluster);
-          context.put(eid, "data", "season", startTime, season);
-          context.put(eid, "data", "start_time", startTime, startTime);
-          context.put(eid, "data", "match_seq_num", startTime, seqNum);
-          context.put(eid, "data", "league_id", startTime, leagueId);
-          context.put(eid, "data", "first_blood_time", startTime, firstBloodTime);
-          context.put(eid, "data", "negative_votes", startTime, negativeVotes);
-          context.put(eid, "data", "positive_votes", startTime, positiveVotes);
-          context.put(eid, "data", "duration", startTime, duration);
-          context.put(eid, "data", "radiant_win", startTime, radiantWin);
-          context.put(eid, "data", "player_data", startTime, players);
-          context.put(eid, "data", "game_mode", startTime, gameMode);
-          context.put(eid, "data", "lobby_type", startTime, lobbyType);
-          context.put(eid, "data", "human_players", startTime, humanPlayers);
+          // Parse the JSON straight into the values we need and produce all our data
+          final ParsedMatch match = parser.parse(line);
+          if (watermark != null && !watermark.accept(match, context)) {
+              return;
+          }
+          final Derived derived = rules == null ? null : derive(match, rules, context);
+          final CellSink sink = new CellSink.ContextSink(context);
+          putMatch(match, sink, packedHeader);
+          if (derived != null) {
+              putDerived(match, derived, sink);
+          }
+          if (times != null) {
+              times.put(match);
+          }
       } catch (RuntimeException re){
+          if (quarantine != null) {
+              quarantine.add(filePos.get(), line, re, context);
+              return;
+          }
           // For RunetimeExceptions we try to log additional information debugging purposes
           try {
               LOG.error("Runtime Exception! MatchId=" +
@@ -242,4 +396,26 @@ public class DotaMatchBulkImporter extends KijiBulkImporter<LongWritable, Text>
           throw re;
       }
   }
+
+  @Override
+  public void cleanup(KijiTableContext context) throws IOException {
+    if (rules != null) {
+      logViolations(rules);
+    }
+    try {
+      if (times != null) {
+        times.close();
+      }
+    } finally {
+      try {
+        if (watermark != null) {
+          watermark.close();
+        }
+      } finally {
+        if (quarantine != null) {
+          quarantine.close();
+        }
+      }
+    }
+  }
 }
@@ -0,0 +1,215 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import com.wibidata.wibidota.avro.Match;
+import org.apache.avro.mapred.AvroKey;
+import org.apache.avro.mapred.AvroValue;
+import org.apache.avro.mapreduce.AvroJob;
+import org.apache.avro.mapreduce.AvroKeyOutputFormat;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * A Map Reduce job that removes duplicate matches from the raw data before it is imported.
+ * dota_slurp.py re-requests overlapping ranges of sequence numbers when it recovers, so the
+ * same match can be in several input files. Matches are grouped by match_id and only the copy
+ * with the highest match_seq_num is kept.
+ *
+ * If wibidota.dedup.seed.filter is set to the output of MatchIdFilterGatherer, matches that
+ * are already in dota_matches are dropped as well. The filter rules out most new matches,
+ * the rest are looked up in the table at wibidota.matches.uri to rule out false positives.
+ *
+ * The output is Avro files of Match records, for DotaAvroMatchBulkImporter and
+ * DotaAvroPlayersBulkImporter. The input is read with DotaMatchInputFormat so can be the raw
+ * JSON or the output of DotaMatchAvroConverter.
+ *
+ * Usage: DotaMatchDeduplicator &lt;input&gt; &lt;output&gt;
+ */
+public class DotaMatchDeduplicator extends Configured implements Tool {
+  private static final Logger LOG = LoggerFactory.getLogger(DotaMatchDeduplicator.class);
+
+  /** Path of the filter of match ids already imported, optional. */
+  public static final String CONF_SEED_FILTER = "wibidota.dedup.seed.filter";
+
+  static enum Counters {
+    UNIQUE_MATCHES,      // Matches written
+    DUPLICATES,          // Extra copies of a match in the input
+    ALREADY_IMPORTED,    // Matches found in dota_matches
+    FILTER_FALSE_POSITIVES  // Matches the filter matched that were not in dota_matches
+  }
+
+  /**
+   * Mapper that keys each match by its id.
+   */
+  public static class Map
+      extends Mapper<LongWritable, ParsedMatch, LongWritable, AvroValue<Match>> {
+
+    private final LongWritable outKey = new LongWritable();
+    private final AvroValue<Match> outValue = new AvroValue<Match>();
+
+    public void map(LongWritable key, ParsedMatch value, Context context)
+        throws IOException, InterruptedException {
+      outKey.set(value.getMatchId());
+      outValue.datum(value.toMatch());
+      context.write(outKey, outValue);
+    }
+  }
+
+  // Finds the copy with the highest sequence number, copying it as the values are reused
+  private static Match latest(Iterable<AvroValue<Match>> values,
+      TaskInputOutputContext<?, ?, ?, ?> context) {
+    Match best = null;
+    for (AvroValue<Match> value : values) {
+      final Match match = value.datum();
+      if (best == null) {
+        best = Match.newBuilder(match).build();
+      } else {
+        context.getCounter(Counters.DUPLICATES).increment(1);
+        if (match.getHeader().getMatchSeqNum() > best.getHeader().getMatchSeqNum()) {
+          best = Match.newBuilder(match).build();
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Combiner that drops the duplicates a single mapper saw.
+   */
+  public static class KeepLatest
+      extends Reducer<LongWritable, AvroValue<Match>, LongWritable, AvroValue<Match>> {
+
+    private final AvroValue<Match> outValue = new AvroValue<Match>();
+
+    public void reduce(LongWritable key, Iterable<AvroValue<Match>> values, Context context)
+        throws IOException, InterruptedException {
+      outValue.datum(latest(values, context));
+      context.write(key, outValue);
+    }
+  }
+
+  /**
+   * Reducer that writes one copy of each match not yet in dota_matches.
+   */
+  public static class DedupReducer
+      extends Reducer<LongWritable, AvroValue<Match>, AvroKey<Match>, NullWritable> {
+
+    private final AvroKey<Match> outKey = new AvroKey<Match>();
+
+    // Ids already imported, null if not checking the table
+    private BloomFilter seed;
+
+    private MatchFetcher fetcher;
+
+    private KijiDataRequest request;
+
+    @Override
+    protected void setup(Context context) throws IOException {
+      final Configuration conf = context.getConfiguration();
+      final String seedPath = conf.get(CONF_SEED_FILTER);
+      if (seedPath != null) {
+        seed = MatchIdFilterGatherer.read(new Path(seedPath), conf);
+        fetcher = MatchFetcher.fromConf(conf);
+        KijiDataRequestBuilder builder = KijiDataRequest.builder();
+        builder.addColumns(builder.newColumnsDef().withMaxVersions(1).add("data", "player_data"));
+        request = builder.build();
+      }
+    }
+
+    public void reduce(LongWritable key, Iterable<AvroValue<Match>> values, Context context)
+        throws IOException, InterruptedException {
+      final Match match = latest(values, context);
+      if (seed != null && seed.membershipTest(MatchIdFilterGatherer.toKey(key.get()))) {
+        final KijiRowData row = fetcher.fetch(key.get(), request);
+        if (row.containsColumn("data", "player_data")) {
+          context.getCounter(Counters.ALREADY_IMPORTED).increment(1);
+          return;
+        }
+        context.getCounter(Counters.FILTER_FALSE_POSITIVES).increment(1);
+      }
+      context.getCounter(Counters.UNIQUE_MATCHES).increment(1);
+      outKey.datum(match);
+      context.write(outKey, NullWritable.get());
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException {
+      if (fetcher != null) {
+        fetcher.close();
+      }
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new DotaMatchDeduplicator(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    Job job = new Job(super.getConf(), "Dota Match Deduplicator");
+    job.setMapOutputKeyClass(LongWritable.class);
+    job.setMapOutputValueClass(AvroValue.class);
+    AvroJob.setMapOutputValueSchema(job, Match.SCHEMA$);
+
+    job.setMapperClass(Map.class);
+    job.setCombinerClass(KeepLatest.class);
+    job.setReducerClass(DedupReducer.class);
+
+    job.setJarByClass(DotaMatchDeduplicator.class);
+
+    job.setInputFormatClass(DotaMatchInputFormat.class);
+    job.setOutputFormatClass(AvroKeyOutputFormat.class);
+    job.setOutputKeyClass(AvroKey.class);
+    job.setOutputValueClass(NullWritable.class);
+    AvroJob.setOutputKeySchema(job, Match.SCHEMA$);
+    FileOutputFormat.setCompressOutput(job, true);
+    job.getConfiguration().set(AvroJob.CONF_OUTPUT_CODEC, "deflate");
+
+    FileInputFormat.addInputPath(job, new Path(args[0]));
+    FileOutputFormat.setOutputPath(job, new Path(args[1]));
+
+    if (job.waitForCompletion(true)) {
+      return 0;
+    } else {
+      return -1;
+    }
+  }
+}
@@ -0,0 +1,471 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.gson.stream.JsonWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes synthetic matches in the format of dota_slurp.py, gzipped files of one JSON match per
+ * line named matches_&lt;first seq num&gt;-&lt;last seq num + 1&gt;.gz, for testing the jobs
+ * at scale without the real data. Every field the importers read is written.
+ *
+ * The output only depends on the options, so the same seed always gives the same files.
+ * Heroes, items and abilities are drawn from the ids in the json files DotaValues reads, some
+ * far more often than others, or from fixed ranges if the files are not in the CP. Players come
+ * from a pool of accounts, a few of which play many of the matches, so the player table and the
+ * streaks look like real ones. The options are
+ *
+ * <ul>
+ * <li>wibidota.generator.seed, the seed (default 0).</li>
+ * <li>wibidota.generator.accounts, the size of the account pool (default one account per two
+ * matches, about 20 matches each).</li>
+ * <li>wibidota.generator.anonymous.rate, the fraction of players that are anonymous, written
+ * as 4294967295 (default 0.3).</li>
+ * <li>wibidota.generator.malformed.rate, the fraction of extra lines that are broken in one of
+ * the ways the importers reject (default 0).</li>
+ * <li>wibidota.generator.file.matches, the number of matches per file (default 100000).</li>
+ * </ul>
+ *
+ * Usage: DotaMatchGenerator &lt;output dir&gt; &lt;number of matches&gt;
+ */
+public class DotaMatchGenerator extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DotaMatchGenerator.class);
+
+  public static final String CONF_SEED = "wibidota.generator.seed";
+
+  public static final String CONF_ACCOUNTS = "wibidota.generator.accounts";
+
+  public static final String CONF_ANONYMOUS_RATE = "wibidota.generator.anonymous.rate";
+
+  public static final String CONF_MALFORMED_RATE = "wibidota.generator.malformed.rate";
+
+  public static final String CONF_FILE_MATCHES = "wibidota.generator.file.matches";
+
+  // Where the sequence numbers, match ids and start times begin
+  private static final long FIRST_SEQ_NUM = 100000000L;
+  private static final long FIRST_MATCH_ID = 120000000L;
+  private static final long FIRST_START_TIME = 1370000000L;
+
+  // 0xFFFFFFFF, the account id Valve gives anonymous players
+  private static final long ANONYMOUS_ACCOUNT = 4294967295L;
+
+  // The ability every hero can level instead of its own, attribute_bonus
+  private static final int STATS_ABILITY = 5002;
+
+  // Lone Druid, the hero with a unit that carries items
+  private static final int LONE_DRUID = 80;
+
+  private static final int[] GAME_MODES = {1, 2, 3, 4, 5, 12, 13};
+  private static final double[] GAME_MODE_WEIGHTS = {60, 5, 8, 10, 10, 4, 3};
+
+  private static final int[] LOBBY_TYPES = {-1, 0, 1, 2, 4, 5, 6};
+  private static final double[] LOBBY_TYPE_WEIGHTS = {2, 70, 5, 2, 5, 3, 13};
+
+  private static final int[] CLUSTERS = {111, 112, 113, 121, 122, 123, 131, 132, 133, 151, 181};
+
+  private final Random random;
+  private final double anonymousRate;
+  private final double malformedRate;
+
+  // Ids to draw from, with the cumulative weight of each
+  private final int[] heroes;
+  private final double[] heroWeights;
+  private final int[] items;
+  private final double[] itemWeights;
+
+  // The four abilities of each hero, the last is its ultimate
+  private final int[][] heroAbilities;
+
+  private final int accounts;
+  private final long accountSalt;
+
+  private long seqNum = FIRST_SEQ_NUM;
+  private long matchId = FIRST_MATCH_ID;
+  private long startTime = FIRST_START_TIME;
+
+  /**
+   * @param seed, the seed.
+   * @param accounts, the size of the account pool.
+   * @param anonymousRate, the fraction of players that are anonymous.
+   * @param malformedRate, the fraction of extra lines that are broken.
+   */
+  DotaMatchGenerator(long seed, int accounts, double anonymousRate, double malformedRate) {
+    random = new Random(seed);
+    this.accounts = Math.max(accounts, 10);
+    this.anonymousRate = anonymousRate;
+    this.malformedRate = malformedRate;
+    accountSalt = random.nextInt(1 << 30);
+
+    heroes = orDefault(DotaValues.heroIds(), 1, 110);
+    heroWeights = zipf(heroes.length, 0.8);
+    items = orDefault(DotaValues.itemIds(), 1, 220);
+    itemWeights = zipf(items.length, 1.1);
+    final int[] abilities = orDefault(DotaValues.abilityIds(), 5003, 5600);
+    heroAbilities = new int[heroes.length][4];
+    for (int i = 0; i < heroes.length; i++) {
+      for (int j = 0; j < 4; j++) {
+        heroAbilities[i][j] = abilities[(i * 4 + j) % abilities.length];
+      }
+    }
+  }
+
+  public DotaMatchGenerator() {
+    this(0L, 10, 0.0, 0.0);
+  }
+
+  private static int[] orDefault(int[] ids, int first, int last) {
+    if (ids != null && ids.length > 0) {
+      return ids;
+    }
+    final int[] range = new int[last - first + 1];
+    for (int i = 0; i < range.length; i++) {
+      range[i] = first + i;
+    }
+    return range;
+  }
+
+  // Cumulative weights that fall off with rank, in an order set by the seed
+  private double[] zipf(int n, double exponent) {
+    final int[] ranks = new int[n];
+    for (int i = 0; i < n; i++) {
+      ranks[i] = i;
+    }
+    for (int i = n - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int tmp = ranks[i];
+      ranks[i] = ranks[j];
+      ranks[j] = tmp;
+    }
+    final double[] cumulative = new double[n];
+    double total = 0;
+    for (int i = 0; i < n; i++) {
+      total += 1.0 / Math.pow(ranks[i] + 1, exponent);
+      cumulative[i] = total;
+    }
+    return cumulative;
+  }
+
+  private static double[] cumulative(double[] weights) {
+    final double[] cumulative = new double[weights.length];
+    double total = 0;
+    for (int i = 0; i < weights.length; i++) {
+      total += weights[i];
+      cumulative[i] = total;
+    }
+    return cumulative;
+  }
+
+  private static final double[] GAME_MODE_CUMULATIVE = cumulative(GAME_MODE_WEIGHTS);
+  private static final double[] LOBBY_TYPE_CUMULATIVE = cumulative(LOBBY_TYPE_WEIGHTS);
+
+  // Index drawn with the given cumulative weights
+  private int pick(double[] cumulative) {
+    final double r = random.nextDouble() * cumulative[cumulative.length - 1];
+    final int i = Arrays.binarySearch(cumulative, r);
+    return Math.min(i >= 0 ? i + 1 : -i - 1, cumulative.length - 1);
+  }
+
+  private int between(int min, int max) {
+    return min + random.nextInt(max - min + 1);
+  }
+
+  private int gaussian(double mean, double sd, int min, int max) {
+    return (int) Math.max(min, Math.min(max, Math.round(mean + sd * random.nextGaussian())));
+  }
+
+  // Account id of the given index in the pool, distinct for each index
+  private long accountId(int index) {
+    return ((index + 1 + accountSalt) * 0x9E3779B1L) & Integer.MAX_VALUE;
+  }
+
+  // An account from the pool, low indexes play far more often
+  private int pickAccount() {
+    return (int) (accounts * Math.pow(random.nextDouble(), 2.5));
+  }
+
+  private static boolean contains(int[] values, int n, int value) {
+    for (int i = 0; i < n; i++) {
+      if (values[i] == value) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the next match as one line of JSON.
+   */
+  String nextMatch() throws IOException {
+    seqNum++;
+    matchId += between(1, 4);
+    startTime += between(0, 3);
+
+    final int gameMode = GAME_MODES[pick(GAME_MODE_CUMULATIVE)];
+    final int lobbyType = LOBBY_TYPES[pick(LOBBY_TYPE_CUMULATIVE)];
+    final boolean bots = lobbyType == 4;
+    final boolean league = lobbyType == 2;
+    final int duration = gaussian(2400, 600, 300, 5400);
+    final boolean radiantWin = random.nextDouble() < 0.52;
+
+    final StringWriter out = new StringWriter(4096);
+    final JsonWriter json = new JsonWriter(out);
+    json.beginObject();
+
+    // Distinct heroes and accounts for the ten players
+    final int[] heroIndexes = new int[10];
+    final int[] accountIndexes = new int[10];
+    json.name("players").beginArray();
+    for (int i = 0; i < 10; i++) {
+      int hero;
+      do {
+        hero = pick(heroWeights);
+      } while (contains(heroIndexes, i, hero));
+      heroIndexes[i] = hero;
+      int account;
+      do {
+        account = pickAccount();
+      } while (contains(accountIndexes, i, account));
+      accountIndexes[i] = account;
+
+      final boolean radiant = i < 5;
+      writePlayer(json, radiant ? i : 128 + i - 5, hero, account, duration,
+          radiant == radiantWin, bots && !radiant);
+    }
+    json.endArray();
+
+    json.name("radiant_win").value(radiantWin);
+    json.name("duration").value(duration);
+    json.name("start_time").value(startTime);
+    json.name("match_id").value(matchId);
+    json.name("match_seq_num").value(seqNum);
+    json.name("tower_status_radiant").value(towers(radiantWin));
+    json.name("tower_status_dire").value(towers(!radiantWin));
+    json.name("barracks_status_radiant").value(barracks(radiantWin));
+    json.name("barracks_status_dire").value(barracks(!radiantWin));
+    json.name("cluster").value(CLUSTERS[random.nextInt(CLUSTERS.length)]);
+    json.name("first_blood_time").value(gaussian(90, 60, 0, 600));
+    json.name("lobby_type").value(lobbyType);
+    json.name("human_players").value(bots ? 5 : 10);
+    json.name("leagueid").value(league ? between(1, 100) : 0);
+    json.name("positive_votes").value(random.nextDouble() < 0.05 ? between(1, 5) : 0);
+    json.name("negative_votes").value(random.nextDouble() < 0.02 ? between(1, 3) : 0);
+    json.name("game_mode").value(gameMode);
+    if (league) {
+      json.name("season").value(between(1, 3));
+    }
+    json.endObject();
+    json.close();
+    return out.toString();
+  }
+
+  private void writePlayer(JsonWriter json, int slot, int heroIndex, int accountIndex,
+      int duration, boolean won, boolean bot) throws IOException {
+    final double minutes = duration / 60.0;
+    final int gpm = gaussian(won ? 480 : 400, 110, 150, 900);
+    final int xpm = gaussian(won ? 520 : 430, 120, 150, 1000);
+    final int level = Math.max(1, Math.min(25, (int) (xpm * minutes / 900) + between(-1, 1)));
+
+    json.beginObject();
+    if (!bot) {
+      json.name("account_id").value(random.nextDouble() < anonymousRate
+          ? ANONYMOUS_ACCOUNT : accountId(accountIndex));
+    }
+    json.name("player_slot").value(slot);
+    json.name("hero_id").value(heroes[heroIndex]);
+    for (int i = 0; i < 6; i++) {
+      json.name("item_" + i).value(item());
+    }
+    json.name("kills").value(gaussian(minutes / (won ? 6 : 9), 3, 0, 60));
+    json.name("deaths").value(gaussian(minutes / (won ? 9 : 6), 3, 0, 40));
+    json.name("assists").value(gaussian(minutes / 4, 4, 0, 60));
+    if (!bot) {
+      final double r = random.nextDouble();
+      json.name("leaver_status").value(r < 0.95 ? 0 : r < 0.97 ? 1 : between(2, 4));
+    }
+    json.name("gold").value(between(0, 4000));
+    json.name("last_hits").value((int) (gpm * minutes / 45 * random.nextDouble()));
+    json.name("denies").value(between(0, (int) minutes));
+    json.name("gold_per_min").value(gpm);
+    json.name("xp_per_min").value(xpm);
+    json.name("gold_spent").value((int) (gpm * minutes * (0.7 + 0.3 * random.nextDouble())));
+    json.name("hero_damage").value((int) (minutes * between(50, 600)));
+    json.name("tower_damage").value(
+        random.nextDouble() < 0.3 ? 0 : (int) (minutes * between(5, 150)));
+    json.name("hero_healing").value(
+        random.nextDouble() < 0.8 ? 0 : (int) (minutes * between(10, 200)));
+    json.name("level").value(level);
+
+    // The hero's skills in order, the ultimate at 6, 11 and 16
+    final int[] abilities = heroAbilities[heroIndex];
+    final int[] levels = new int[3];
+    json.name("ability_upgrades").beginArray();
+    int time = 0;
+    for (int l = 1; l <= level; l++) {
+      time += between(30, (int) Math.max(60, duration / level * 2));
+      int ability;
+      if (l == 6 || l == 11 || l == 16) {
+        ability = abilities[3];
+      } else {
+        final int skill = random.nextInt(3);
+        if (levels[skill] < 4) {
+          levels[skill]++;
+          ability = abilities[skill];
+        } else {
+          ability = STATS_ABILITY;
+        }
+      }
+      json.beginObject();
+      json.name("ability").value(ability);
+      json.name("time").value(Math.min(time, duration));
+      json.name("level").value(l);
+      json.endObject();
+    }
+    json.endArray();
+
+    if (heroes[heroIndex] == LONE_DRUID) {
+      json.name("additional_units").beginArray().beginObject();
+      json.name("unitname").value("spirit_bear");
+      for (int i = 0; i < 6; i++) {
+        json.name("item_" + i).value(item());
+      }
+      json.endObject().endArray();
+    }
+    json.endObject();
+  }
+
+  // An item, or 0 for an empty slot
+  private int item() {
+    return random.nextDouble() < 0.15 ? 0 : items[pick(itemWeights)];
+  }
+
+  // Towers standing, the winner keeps most of its and the loser few
+  private int towers(boolean won) {
+    int status = 0;
+    for (int i = 0; i < 11; i++) {
+      if (random.nextDouble() < (won ? 0.75 : 0.2)) {
+        status |= 1 << i;
+      }
+    }
+    return status;
+  }
+
+  private int barracks(boolean won) {
+    int status = 0;
+    for (int i = 0; i < 6; i++) {
+      if (random.nextDouble() < (won ? 0.95 : 0.3)) {
+        status |= 1 << i;
+      }
+    }
+    return status;
+  }
+
+  /**
+   * @return a line the importers reject, or null if none should be written.
+   */
+  String nextMalformed() throws IOException {
+    if (malformedRate <= 0 || random.nextDouble() >= malformedRate) {
+      return null;
+    }
+    switch (random.nextInt(4)) {
+      case 0:
+        // Cut off part way through, as a failed write would leave it
+        final String match = nextMatch();
+        seqNum--;
+        return match.substring(0, random.nextInt(match.length()));
+      case 1:
+        return "{\"match_seq_num\": " + seqNum + ", \"players\": []}";
+      case 2:
+        return "{\"match_id\": \"" + matchId + "\", \"duration\": \"unknown\"}";
+      default:
+        return "<html><body>503 Service Unavailable</body></html>";
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new DotaMatchGenerator(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: DotaMatchGenerator <output dir> <number of matches>");
+      return -1;
+    }
+    final Configuration conf = getConf();
+    final Path outDir = new Path(args[0]);
+    final long total = Long.parseLong(args[1]);
+    final int perFile = conf.getInt(CONF_FILE_MATCHES, 100000);
+    final DotaMatchGenerator generator = new DotaMatchGenerator(
+        conf.getLong(CONF_SEED, 0L),
+        conf.getInt(CONF_ACCOUNTS, (int) Math.min(Integer.MAX_VALUE / 2, Math.max(1, total / 2))),
+        conf.getFloat(CONF_ANONYMOUS_RATE, 0.3f),
+        conf.getFloat(CONF_MALFORMED_RATE, 0.0f));
+    final FileSystem fs = outDir.getFileSystem(conf);
+    fs.mkdirs(outDir);
+
+    long written = 0;
+    long malformed = 0;
+    while (written < total) {
+      final int count = (int) Math.min(perFile, total - written);
+      final long first = generator.seqNum + 1;
+      final Path tmp = new Path(outDir, "_matches_" + first + ".gz.tmp");
+      final OutputStream out = new GZIPOutputStream(fs.create(tmp, true));
+      try {
+        for (int i = 0; i < count; i++) {
+          out.write(generator.nextMatch().getBytes("UTF-8"));
+          out.write('\n');
+          final String bad = generator.nextMalformed();
+          if (bad != null) {
+            out.write(bad.getBytes("UTF-8"));
+            out.write('\n');
+            malformed++;
+          }
+        }
+      } finally {
+        out.close();
+      }
+      final Path dest = new Path(outDir, "matches_" + first + "-" + (generator.seqNum + 1) + ".gz");
+      if (!fs.rename(tmp, dest)) {
+        throw new IOException("Could not rename " + tmp + " to " + dest);
+      }
+      written += count;
+      LOG.info("Wrote " + count + " matches to " + dest);
+    }
+    System.out.println("Wrote " + written + " matches and " + malformed + " malformed lines to "
+        + outDir);
+    return 0;
+  }
+}
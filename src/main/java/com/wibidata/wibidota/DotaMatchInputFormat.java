@@ -0,0 +1,199 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import com.wibidata.wibidota.avro.Match;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.mapred.FsInput;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * InputFormat for the raw match data, reads either the JSON lines written by dota_slurp.py or
+ * the Avro container files written by DotaMatchAvroConverter and hands each match to the
+ * mapper already parsed. Files ending in .avro are read as containers and split on their
+ * sync markers, anything else is read as JSON lines (which can not be split if gzipped).
+ *
+ * Keys are the byte offset of the line for JSON and the position of the enclosing block for
+ * Avro. Lines that can not be parsed are skipped and counted. The values may be reused
+ * between calls to the mapper.
+ */
+public class DotaMatchInputFormat extends FileInputFormat<LongWritable, ParsedMatch> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DotaMatchInputFormat.class);
+
+  /** Suffix of the Avro container files. */
+  public static final String AVRO_SUFFIX = ".avro";
+
+  static enum Counters {
+    MALFORMED_MATCH_LINES
+  }
+
+  /**
+   * @param path, an input file.
+   * @return true if the file is an Avro container.
+   */
+  static boolean isAvro(Path path) {
+    return path.getName().endsWith(AVRO_SUFFIX);
+  }
+
+  @Override
+  protected boolean isSplitable(JobContext context, Path file) {
+    if (isAvro(file)) {
+      return true;
+    }
+    return new CompressionCodecFactory(context.getConfiguration()).getCodec(file) == null;
+  }
+
+  @Override
+  public RecordReader<LongWritable, ParsedMatch> createRecordReader(
+      InputSplit split, TaskAttemptContext context) {
+    if (isAvro(((FileSplit) split).getPath())) {
+      return new AvroMatchReader();
+    }
+    return new JsonMatchReader();
+  }
+
+  /**
+   * Reads the JSON lines, parsing each with a DotaMatchParser.
+   */
+  static final class JsonMatchReader extends RecordReader<LongWritable, ParsedMatch> {
+    private final LineRecordReader lines = new LineRecordReader();
+    private final DotaMatchParser parser = new DotaMatchParser();
+    private TaskAttemptContext context;
+    private ParsedMatch match;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      this.context = context;
+      lines.initialize(split, context);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      while (lines.nextKeyValue()) {
+        final Text line = lines.getCurrentValue();
+        try {
+          match = parser.parse(line);
+          return true;
+        } catch (RuntimeException re) {
+          LOG.debug("Skipping malformed line at " + lines.getCurrentKey() + ": " + re);
+          context.getCounter(Counters.MALFORMED_MATCH_LINES).increment(1);
+        }
+      }
+      match = null;
+      return false;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return lines.getCurrentKey();
+    }
+
+    @Override
+    public ParsedMatch getCurrentValue() {
+      return match;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      return lines.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      lines.close();
+    }
+  }
+
+  /**
+   * Reads the Match records of an Avro container, starting at the first sync marker in the
+   * split and stopping at the first one past its end.
+   */
+  static final class AvroMatchReader extends RecordReader<LongWritable, ParsedMatch> {
+    private final LongWritable key = new LongWritable();
+    private DataFileReader<Match> reader;
+    private Match record;
+    private ParsedMatch match;
+    private long start;
+    private long end;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      final FileSplit fileSplit = (FileSplit) split;
+      reader = new DataFileReader<Match>(
+          new FsInput(fileSplit.getPath(), context.getConfiguration()),
+          new SpecificDatumReader<Match>(Match.class));
+      start = fileSplit.getStart();
+      end = start + fileSplit.getLength();
+      reader.sync(start);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      if (!reader.hasNext() || reader.pastSync(end)) {
+        match = null;
+        return false;
+      }
+      key.set(reader.previousSync());
+      record = reader.next(record);
+      match = ParsedMatch.fromMatch(record);
+      return true;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public ParsedMatch getCurrentValue() {
+      return match;
+    }
+
+    @Override
+    public float getProgress() throws IOException {
+      if (end == start) {
+        return 0.0f;
+      }
+      return Math.min(1.0f, (reader.previousSync() - start) / (float) (end - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (reader != null) {
+        reader.close();
+      }
+    }
+  }
+}
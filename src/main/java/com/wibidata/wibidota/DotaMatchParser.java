@@ -0,0 +1,557 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.wibidata.wibidota.avro.AbilityUpgrade;
+import com.wibidata.wibidota.avro.AdditionalUnit;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.io.Text;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Streaming reader for the raw match JSON written by dota_slurp.py.
+ *
+ * <p>Scans the UTF-8 bytes backing a Text line directly and fills the Avro records in a
+ * single pass, without building a JsonObject tree or copying the line into a String.
+ * Numbers are read straight from the bytes and field names are matched without being
+ * decoded.
+ *
+ * <p>The scanner only handles the plain JSON that the Dota API returns. Anything else (escaped
+ * strings, quoted numbers, decimals where ints are expected, explicit nulls, missing fields)
+ * makes it give up on the line and read it through DotaMatchBulkImporter.extractMatch()
+ * instead, so the values returned and the exceptions thrown are always the same as those
+ * of the JsonObject based importers.
+ *
+ * <p>Instances are not thread safe, use one per task.
+ */
+public final class DotaMatchParser {
+
+  private static final JsonParser PARSER = new JsonParser();
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // Longest run of digits we can read into a long without overflowing
+  private static final int MAX_DIGITS = 18;
+
+  // Thrown when the fast path can not read a line, no stack trace since it is not an error
+  private static final class Fallback extends RuntimeException {
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static final Fallback FALLBACK = new Fallback();
+
+  /**
+   * Maps field names, as raw bytes, to their position in a list of names.
+   */
+  private static final class NameTable {
+    private final byte[][] names;
+    // Open addressed table of index + 1 into names, 0 is empty
+    private final int[] slots;
+
+    NameTable(String... fields) {
+      names = new byte[fields.length][];
+      slots = new int[Integer.highestOneBit(fields.length * 4)];
+      for (int i = 0; i < fields.length; i++) {
+        names[i] = fields[i].getBytes(UTF8);
+        int slot = hash(names[i], 0, names[i].length) & (slots.length - 1);
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & (slots.length - 1);
+        }
+        slots[slot] = i + 1;
+      }
+    }
+
+    static int hash(byte[] buf, int start, int len) {
+      int h = 0;
+      for (int i = start; i < start + len; i++) {
+        h = 31 * h + buf[i];
+      }
+      return h ^ (h >>> 16);
+    }
+
+    /** @return the index of the name in buf, -1 if it is not in the table */
+    int find(byte[] buf, int start, int len, int hash) {
+      int slot = hash & (slots.length - 1);
+      while (slots[slot] != 0) {
+        final byte[] name = names[slots[slot] - 1];
+        if (name.length == len && equal(name, buf, start)) {
+          return slots[slot] - 1;
+        }
+        slot = (slot + 1) & (slots.length - 1);
+      }
+      return -1;
+    }
+
+    private static boolean equal(byte[] name, byte[] buf, int start) {
+      for (int i = 0; i < name.length; i++) {
+        if (name[i] != buf[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  // Field indexes are also the bits used to track which fields we have seen
+  private static final NameTable MATCH_FIELDS = new NameTable(
+      "match_id", "match_seq_num", "start_time", "game_mode", "lobby_type",
+      "tower_status_dire", "tower_status_radiant", "barracks_status_dire",
+      "barracks_status_radiant", "cluster", "leagueid", "first_blood_time",
+      "negative_votes", "positive_votes", "duration", "radiant_win", "human_players",
+      "players", "season");
+
+  // Every match field but season is required
+  private static final long REQUIRED_MATCH_FIELDS = (1L << 18) - 1;
+
+  private static final NameTable PLAYER_FIELDS = new NameTable(
+      "assists", "deaths", "denies", "xp_per_min", "hero_id", "last_hits", "level",
+      "player_slot", "tower_damage", "gold_spent", "gold", "gold_per_min", "hero_damage",
+      "hero_healing", "kills", "item_0", "item_1", "item_2", "item_3", "item_4", "item_5",
+      "account_id", "leaver_status", "ability_upgrades", "additional_units");
+
+  // The stats and items are required, the last four fields are optional
+  private static final long REQUIRED_PLAYER_FIELDS = (1L << 21) - 1;
+
+  // Index of item_0 in PLAYER_FIELDS
+  private static final int ITEM_OFFSET = 15;
+
+  private static final NameTable UNIT_FIELDS = new NameTable(
+      "item_0", "item_1", "item_2", "item_3", "item_4", "item_5", "unitname");
+
+  private static final long REQUIRED_UNIT_FIELDS = (1L << 7) - 1;
+
+  private static final NameTable ABILITY_FIELDS = new NameTable("level", "ability", "time");
+
+  private static final long REQUIRED_ABILITY_FIELDS = (1L << 3) - 1;
+
+  // The line being read
+  private byte[] buf;
+  private int pos;
+  private int limit;
+
+  // Number of lines that had to be read through the JsonObject tree
+  private long fallbacks = 0;
+
+  /**
+   * Reads a match from one line of raw JSON.
+   *
+   * @param line, the UTF-8 encoded JSON object.
+   * @return the match.
+   * @throws RuntimeException for the lines DotaMatchBulkImporter.extractMatch() rejects.
+   */
+  public ParsedMatch parse(Text line) {
+    buf = line.getBytes();
+    pos = 0;
+    limit = line.getLength();
+    try {
+      final ParsedMatch match = readMatch();
+      if (skipWhitespace() >= 0) {
+        throw FALLBACK;
+      }
+      return match;
+    } catch (Fallback f) {
+      fallbacks++;
+      return DotaMatchBulkImporter.extractMatch(PARSER.parse(line.toString()).getAsJsonObject());
+    }
+  }
+
+  /**
+   * @return the number of lines this parser could not read directly.
+   */
+  public long getFallbackCount() {
+    return fallbacks;
+  }
+
+  private ParsedMatch readMatch() {
+    final ParsedMatch match = new ParsedMatch();
+    long seen = 0;
+    expect('{');
+    if (!consume('}')) {
+      do {
+        final int field = readName(MATCH_FIELDS);
+        switch (field) {
+          case -1: skipValue(); continue;
+          case 0: match.matchId = readLong(); break;
+          case 1: match.matchSeqNum = readLong(); break;
+          case 2: match.startTime = readLong(); break;
+          case 3: match.gameMode = readInt(); break;
+          case 4: match.lobbyType = readInt(); break;
+          case 5: match.direTowersStatus = readInt(); break;
+          case 6: match.radiantTowersStatus = readInt(); break;
+          case 7: match.direBarracksStatus = readInt(); break;
+          case 8: match.radiantBarracksStatus = readInt(); break;
+          case 9: match.cluster = readInt(); break;
+          case 10: match.leagueId = readInt(); break;
+          case 11: match.firstBloodTime = readInt(); break;
+          case 12: match.negativeVotes = readInt(); break;
+          case 13: match.positiveVotes = readInt(); break;
+          case 14: match.duration = readInt(); break;
+          case 15: match.radiantWin = readBoolean(); break;
+          case 16: match.humanPlayers = readInt(); break;
+          case 17: match.players = readPlayers(); break;
+          case 18: match.season = readInt(); break;
+          default: throw new AssertionError(field);
+        }
+        seen |= 1L << field;
+      } while (consume(','));
+      expect('}');
+    }
+    checkRequired(seen, REQUIRED_MATCH_FIELDS);
+    return match;
+  }
+
+  private Players readPlayers() {
+    final List<Player> players = new ArrayList<Player>(10);
+    expect('[');
+    if (!consume(']')) {
+      do {
+        players.add(readPlayer());
+      } while (consume(','));
+      expect(']');
+    }
+    return Players.newBuilder().setPlayers(players).build();
+  }
+
+  private Player readPlayer() {
+    final Player player = new Player();
+    final Integer[] items = new Integer[6];
+    long seen = 0;
+    expect('{');
+    if (!consume('}')) {
+      do {
+        final int field = readName(PLAYER_FIELDS);
+        switch (field) {
+          case -1: skipValue(); continue;
+          case 0: player.setAssists(readInt()); break;
+          case 1: player.setDeaths(readInt()); break;
+          case 2: player.setDenies(readInt()); break;
+          case 3: player.setExpPerMinute(readDouble()); break;
+          case 4: player.setHeroId(readInt()); break;
+          case 5: player.setLastHits(readInt()); break;
+          case 6: player.setLevel(readInt()); break;
+          case 7: player.setPlayerSlot(readInt()); break;
+          case 8: player.setTowerDamage(readInt()); break;
+          case 9: player.setGoldSpent(readInt()); break;
+          case 10: player.setGold(readInt()); break;
+          case 11: player.setGoldPerMinute(readDouble()); break;
+          case 12: player.setHeroDamage(readInt()); break;
+          case 13: player.setHeroHealing(readInt()); break;
+          case 14: player.setKills(readInt()); break;
+          case 15: case 16: case 17: case 18: case 19: case 20:
+            items[field - ITEM_OFFSET] = readInt();
+            break;
+          case 21: player.setAccountId(readInt()); break;
+          case 22: player.setLeaverStatus(readInt()); break;
+          case 23: player.setAbilityUpgrades(readAbilities()); break;
+          case 24: player.setAdditionalUnits(readAdditionalUnits()); break;
+          default: throw new AssertionError(field);
+        }
+        seen |= 1L << field;
+      } while (consume(','));
+      expect('}');
+    }
+    checkRequired(seen, REQUIRED_PLAYER_FIELDS);
+    // ability_upgrades can be missing (players have no abilities selected yet?)
+    if (player.getAbilityUpgrades() == null) {
+      player.setAbilityUpgrades(new ArrayList<AbilityUpgrade>(0));
+    }
+    player.setItemIds(toList(items));
+    return player;
+  }
+
+  private List<AbilityUpgrade> readAbilities() {
+    final List<AbilityUpgrade> abilityUpgrades = new ArrayList<AbilityUpgrade>();
+    expect('[');
+    if (consume(']')) {
+      return abilityUpgrades;
+    }
+    do {
+      final AbilityUpgrade ability = new AbilityUpgrade();
+      long seen = 0;
+      expect('{');
+      if (!consume('}')) {
+        do {
+          final int field = readName(ABILITY_FIELDS);
+          switch (field) {
+            case -1: skipValue(); continue;
+            case 0: ability.setLevel(readInt()); break;
+            case 1: ability.setAbilityId(readInt()); break;
+            case 2: ability.setTime(readInt()); break;
+            default: throw new AssertionError(field);
+          }
+          seen |= 1L << field;
+        } while (consume(','));
+        expect('}');
+      }
+      checkRequired(seen, REQUIRED_ABILITY_FIELDS);
+      abilityUpgrades.add(ability);
+    } while (consume(','));
+    expect(']');
+    return abilityUpgrades;
+  }
+
+  // additional_units is sometimes contained in a list, in which case the first entry is used
+  private AdditionalUnit readAdditionalUnits() {
+    if (!consume('[')) {
+      return readAdditionalUnit();
+    }
+    final AdditionalUnit unit = readAdditionalUnit();
+    while (consume(',')) {
+      skipValue();
+    }
+    expect(']');
+    return unit;
+  }
+
+  private AdditionalUnit readAdditionalUnit() {
+    final AdditionalUnit unit = new AdditionalUnit();
+    final Integer[] items = new Integer[6];
+    long seen = 0;
+    expect('{');
+    if (!consume('}')) {
+      do {
+        final int field = readName(UNIT_FIELDS);
+        if (field < 0) {
+          skipValue();
+          continue;
+        } else if (field < items.length) {
+          items[field] = readInt();
+        } else {
+          unit.setName(readString());
+        }
+        seen |= 1L << field;
+      } while (consume(','));
+      expect('}');
+    }
+    checkRequired(seen, REQUIRED_UNIT_FIELDS);
+    unit.setItemIds(toList(items));
+    return unit;
+  }
+
+  private static List<Integer> toList(Integer[] items) {
+    final List<Integer> itemIds = new ArrayList<Integer>(items.length);
+    Collections.addAll(itemIds, items);
+    return itemIds;
+  }
+
+  private static void checkRequired(long seen, long required) {
+    if ((seen & required) != required) {
+      throw FALLBACK;
+    }
+  }
+
+  // ***** Scanning primitives, anything unexpected throws FALLBACK *****
+
+  /** @return the next non whitespace byte without consuming it, -1 at the end of the line */
+  private int skipWhitespace() {
+    while (pos < limit) {
+      final byte b = buf[pos];
+      if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+        return b;
+      }
+      pos++;
+    }
+    return -1;
+  }
+
+  // The byte at pos inside of a string, the Text's buffer may extend past the line
+  private byte nextStringByte() {
+    if (pos >= limit) {
+      throw FALLBACK;
+    }
+    return buf[pos];
+  }
+
+  private void expect(char c) {
+    if (skipWhitespace() != c) {
+      throw FALLBACK;
+    }
+    pos++;
+  }
+
+  private boolean consume(char c) {
+    if (skipWhitespace() == c) {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  /** Reads a field name and the following colon, returns its index in table or -1. */
+  private int readName(NameTable table) {
+    expect('"');
+    final int start = pos;
+    int h = 0;
+    byte b;
+    while ((b = nextStringByte()) != '"') {
+      if (b == '\\') {
+        throw FALLBACK;
+      }
+      h = 31 * h + b;
+      pos++;
+    }
+    final int len = pos - start;
+    pos++;
+    expect(':');
+    return table.find(buf, start, len, h ^ (h >>> 16));
+  }
+
+  private long readLong() {
+    int c = skipWhitespace();
+    final boolean negative = c == '-';
+    if (negative) {
+      pos++;
+    }
+    final int start = pos;
+    long value = 0;
+    while (pos < limit && (c = buf[pos]) >= '0' && c <= '9') {
+      value = value * 10 + (c - '0');
+      pos++;
+    }
+    final int digits = pos - start;
+    if (digits == 0 || digits > MAX_DIGITS
+        || (pos < limit && (c == '.' || c == 'e' || c == 'E'))) {
+      throw FALLBACK;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Reads an int the way JsonElement.getAsInt() does, whole numbers outside of the int range
+   * (such as the unsigned anonymous account id) are truncated rather than rejected.
+   */
+  private int readInt() {
+    return (int) readLong();
+  }
+
+  private double readDouble() {
+    skipWhitespace();
+    final int start = pos;
+    boolean whole = true;
+    int c;
+    while (pos < limit && (((c = buf[pos]) >= '0' && c <= '9') || c == '-' || c == '+'
+        || c == '.' || c == 'e' || c == 'E')) {
+      whole &= (c >= '0' && c <= '9') || (c == '-' && pos == start);
+      pos++;
+    }
+    if (pos == start) {
+      throw FALLBACK;
+    }
+    if (whole && pos - start <= MAX_DIGITS) {
+      pos = start;
+      return readLong();
+    }
+    try {
+      return Double.parseDouble(new String(buf, start, pos - start, UTF8));
+    } catch (NumberFormatException nfe) {
+      throw FALLBACK;
+    }
+  }
+
+  private boolean readBoolean() {
+    final int c = skipWhitespace();
+    if (c == 't' && matchLiteral("true")) {
+      return true;
+    } else if (c == 'f' && matchLiteral("false")) {
+      return false;
+    }
+    throw FALLBACK;
+  }
+
+  private boolean matchLiteral(String literal) {
+    if (pos + literal.length() > limit) {
+      return false;
+    }
+    for (int i = 0; i < literal.length(); i++) {
+      if (buf[pos + i] != literal.charAt(i)) {
+        return false;
+      }
+    }
+    pos += literal.length();
+    return true;
+  }
+
+  private String readString() {
+    expect('"');
+    final int start = pos;
+    byte b;
+    while ((b = nextStringByte()) != '"') {
+      if (b == '\\') {
+        throw FALLBACK;
+      }
+      pos++;
+    }
+    pos++;
+    return new String(buf, start, pos - start - 1, UTF8);
+  }
+
+  private void skipString() {
+    expect('"');
+    byte b;
+    while ((b = nextStringByte()) != '"') {
+      // Skip whatever is escaped, including quotes
+      pos += b == '\\' ? 2 : 1;
+    }
+    pos++;
+  }
+
+  private void skipValue() {
+    final int c = skipWhitespace();
+    if (c == '{') {
+      pos++;
+      if (!consume('}')) {
+        do {
+          skipString();
+          expect(':');
+          skipValue();
+        } while (consume(','));
+        expect('}');
+      }
+    } else if (c == '[') {
+      pos++;
+      if (!consume(']')) {
+        do {
+          skipValue();
+        } while (consume(','));
+        expect(']');
+      }
+    } else if (c == '"') {
+      skipString();
+    } else if (c == 't' || c == 'f' || c == 'n' || c == '-' || (c >= '0' && c <= '9')) {
+      // A literal or number, scan to the end of it
+      int b;
+      while (pos < limit && (b = buf[pos]) != ',' && b != '}' && b != ']'
+          && b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+        pos++;
+      }
+    } else {
+      throw FALLBACK;
+    }
+  }
+}
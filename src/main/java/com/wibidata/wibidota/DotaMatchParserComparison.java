@@ -0,0 +1,164 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.io.Text;
+
+import com.google.gson.JsonParser;
+
+/**
+ * Compares the JsonObject tree extraction used by DotaMatchBulkImporter.extractMatch() with
+ * the streaming DotaMatchParser on a local file of raw match JSON (gziped or not).
+ *
+ * <p>Every line is first read both ways and the results checked to be identical, then each
+ * path is timed over the whole file. Usage:
+ *
+ * <pre>
+ * java com.wibidata.wibidota.DotaMatchParserComparison matches_1-100000.gz [passes]
+ * </pre>
+ */
+public final class DotaMatchParserComparison {
+
+  private static final JsonParser PARSER = new JsonParser();
+
+  // This utility class should not be instantiated
+  private DotaMatchParserComparison() {}
+
+  private static List<Text> readLines(String filename) throws IOException {
+    InputStream in = new FileInputStream(filename);
+    if (filename.endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    final List<Text> lines = new ArrayList<Text>();
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lines.add(new Text(line));
+      }
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+
+  private static ParsedMatch treeParse(Text line) {
+    return DotaMatchBulkImporter.extractMatch(PARSER.parse(line.toString()).getAsJsonObject());
+  }
+
+  /**
+   * Checks both paths agree on every line.
+   *
+   * @return the number of lines where they did not.
+   */
+  private static int verify(List<Text> lines, DotaMatchParser parser) {
+    int mismatches = 0;
+    for (int i = 0; i < lines.size(); i++) {
+      ParsedMatch expected = null;
+      ParsedMatch actual = null;
+      String treeError = null;
+      String streamError = null;
+      try {
+        expected = treeParse(lines.get(i));
+      } catch (RuntimeException re) {
+        treeError = re.toString();
+      }
+      try {
+        actual = parser.parse(lines.get(i));
+      } catch (RuntimeException re) {
+        streamError = re.toString();
+      }
+      if (treeError != null && streamError != null) {
+        // Both rejected the line, the importer will fail on it either way
+        continue;
+      }
+      if (expected == null || !expected.equals(actual)) {
+        mismatches++;
+        System.err.println("Line " + (i + 1) + " differs, tree: "
+            + (treeError == null ? expected : treeError) + " streaming: "
+            + (streamError == null ? actual : streamError));
+      }
+    }
+    return mismatches;
+  }
+
+  // Returns the time in nanoseconds to read every line, lines that fail are skipped
+  private static long time(List<Text> lines, DotaMatchParser parser, boolean streaming) {
+    final long start = System.nanoTime();
+    for (Text line : lines) {
+      try {
+        if (streaming) {
+          parser.parse(line);
+        } else {
+          treeParse(line);
+        }
+      } catch (RuntimeException re) {
+        // Counted by verify()
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static void report(String name, long lines, long bytes, long nanos) {
+    final double seconds = nanos / 1e9;
+    System.out.println(String.format("%-10s %10.0f lines/s %8.2f MB/s (%.2fs)",
+        name, lines / seconds, bytes / seconds / (1024 * 1024), seconds));
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: DotaMatchParserComparison <json file> [passes]");
+      System.exit(1);
+    }
+    final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    final List<Text> lines = readLines(args[0]);
+    long bytes = 0;
+    for (Text line : lines) {
+      bytes += line.getLength();
+    }
+    final DotaMatchParser parser = new DotaMatchParser();
+
+    final int mismatches = verify(lines, parser);
+    System.out.println("Read " + lines.size() + " lines, " + mismatches + " differed");
+
+    // The first pass of each only warms up the JIT
+    time(lines, parser, false);
+    time(lines, parser, true);
+    long treeNanos = 0;
+    long streamNanos = 0;
+    for (int i = 0; i < passes; i++) {
+      treeNanos += time(lines, parser, false);
+      streamNanos += time(lines, parser, true);
+    }
+    final long total = (long) lines.size() * passes;
+    report("tree", total, bytes * passes, treeNanos);
+    report("streaming", total, bytes * passes, streamNanos);
+    System.out.println(String.format("speedup    %.2fx", (double) treeNanos / streamNanos));
+    System.exit(mismatches == 0 ? 0 : 2);
+  }
+}
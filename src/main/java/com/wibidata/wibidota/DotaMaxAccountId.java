@@ -18,9 +18,7 @@
 
 package com.wibidata.wibidota;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.wibidata.wibidota.avro.Player;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
@@ -31,7 +29,6 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -44,36 +41,33 @@ import java.util.HashMap;
 
 /**
  * A Map Reduce job built to find the maximum value the 'account id' field can take in the
- * raw  dota-matches JSON excluding anonmous accounts
+ * raw  dota-matches JSON excluding anonmous accounts. Reads either the raw JSON or the Avro
+ * files written by DotaMatchAvroConverter.
+ *
+ * @deprecated DotaFieldProfiler gives the max of player.account_id, among the rest, in the
+ * same pass over the archive.
  */
+@Deprecated
 public class DotaMaxAccountId extends Configured implements Tool {
     private static final Logger LOG = LoggerFactory.getLogger(DotaMaxAccountId.class);
 
-    public static class Map extends Mapper<LongWritable, Text, Text, LongWritable> {
-
-      private final static JsonParser PARSER = new JsonParser();
+    public static class Map extends Mapper<LongWritable, ParsedMatch, Text, LongWritable> {
 
       private static long max = Long.MIN_VALUE;
 
-      public void map(LongWritable key, Text value, Context context)
+      public void map(LongWritable key, ParsedMatch value, Context context)
           throws IOException, InterruptedException {
-        try{
-          JsonObject matchData = PARSER.parse(value.toString()).getAsJsonObject();
-          for (JsonElement playerElem : matchData.get("players").getAsJsonArray()) {
-            JsonObject playerData = playerElem.getAsJsonObject();
-            JsonElement acccountElem = playerData.get("account_id");
-            if(acccountElem != null){
-              long accountId = acccountElem.getAsLong();
-              // 4294967295L indicates anonymous and so can be ignored
-              if(accountId != 4294967295L && accountId > max){
-                context.write(new Text("account_id"), new LongWritable(accountId));
-                max = accountId;
-              }
+        for (Player player : value.getPlayers().getPlayers()) {
+          Integer accountId = player.getAccountId();
+          // -1 (4294967295 in the JSON) indicates anonymous and so can be ignored
+          if(accountId != null && accountId != -1){
+            // Ids are unsigned in the JSON
+            long id = accountId & 0xffffffffL;
+            if(id > max){
+              context.write(new Text("account_id"), new LongWritable(id));
+              max = id;
             }
           }
-
-        } catch (IllegalStateException e) {
-          // Ignore
         }
       }
     }
@@ -114,7 +108,7 @@ public class DotaMaxAccountId extends Configured implements Tool {
 
     job.setJarByClass(DotaMaxAccountId.class);
 
-    job.setInputFormatClass(TextInputFormat.class);
+    job.setInputFormatClass(DotaMatchInputFormat.class);
     job.setOutputFormatClass(TextOutputFormat.class);
 
     FileInputFormat.addInputPath(job, new Path(args[0]));
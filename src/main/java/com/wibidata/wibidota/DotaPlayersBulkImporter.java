@@ -1,9 +1,10 @@
 package com.wibidata.wibidota;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.PlayerMatch;
+import com.wibidata.wibidota.avro.PlayerRef;
 import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.kiji.mapreduce.KijiTableContext;
@@ -19,78 +20,187 @@ import java.util.LinkedList;
 import java.util.List;
 
 /**
- *  Class to bulk-import data into the dota_players table from the raw Json files.
+ * Class to bulk-import data into the dota_players table from the raw Json files.
+ *
+ * By default each player's row gets a copy of every match field along with the stats of
+ * the other nine players. If wibidota.players.compact is true a single PlayerMatch is
+ * written to data:match instead, holding the player's own stats, the match fields the player
+ * analyses use and the hero, account and slot of the other players. The rest of the match
+ * can then be read from dota_matches with MatchFetcher. Lines that can not be read fail the
+ * task unless wibidota.import.tolerant is set, see BadLineQuarantine.
  */
 public class DotaPlayersBulkImporter extends KijiBulkImporter<LongWritable, Text> {
 
   private static final Logger LOG = LoggerFactory.getLogger(DotaPlayersBulkImporter.class);
 
-  private static final JsonParser PARSER = new JsonParser();
+  /** True to write a PlayerMatch to data:match rather than a copy of the match. */
+  public static final String CONF_COMPACT = "wibidota.players.compact";
+
+  /** Column holding the PlayerMatch of compact rows. */
+  public static final String MATCH_COLUMN = "match";
+
+  // Parser for the raw lines, reads the Text's bytes without building a JsonObject
+  private final DotaMatchParser parser = new DotaMatchParser();
+
+  // Whether to write PlayerMatches
+  private boolean compact;
+
+  // Where bad lines go in tolerant mode, null otherwise
+  private BadLineQuarantine quarantine;
+
+  // Skips the matches already imported in incremental mode, null otherwise
+  private ImportWatermark.Tracker watermark;
+
+  /**
+   * @param conf, the job configuration.
+   * @return true if dota_players is stored as PlayerMatches.
+   */
+  public static boolean isCompact(Configuration conf) {
+    return conf != null && conf.getBoolean(CONF_COMPACT, false);
+  }
+
+  /**
+   * Writes the cells of a match to the dota_players table, one row for each non-anonymous
+   * player in it. Does not modify the match.
+   *
+   * @param match, the match to write.
+   * @param sink, where to write it.
+   * @param compact, true to write a PlayerMatch rather than a copy of the match.
+   */
+  static void putPlayers(ParsedMatch match, CellSink sink, boolean compact)
+      throws IOException {
+    if (compact) {
+      putPlayerMatches(match, sink);
+      return;
+    }
+    // Collect the values we need
+    final long matchId = match.getMatchId();
+    final int gameMode = match.getGameMode();
+    final int lobbyType = match.getLobbyType();
+    final int direTowers = match.getDireTowersStatus();
+    final int radiantTowers = match.getRadiantTowersStatus();
+    final int direBarracks = match.getDireBarracksStatus();
+    final int radiantBarracks = match.getRadiantBarracksStatus();
+    final int cluster = match.getCluster();
+    final Integer season = match.getSeason();
+    final long startTime = match.getStartTime();
+    final long seqNum = match.getMatchSeqNum();
+    final int leagueId = match.getLeagueId();
+    final int firstBloodTime = match.getFirstBloodTime();
+    final int negativeVotes = match.getNegativeVotes();
+    final int positiveVotes = match.getPositiveVotes();
+    final int duration = match.getDuration();
+    final boolean radiantWin = match.getRadiantWin();
+    final int humanPlayers = match.getHumanPlayers();
+
+    final List<Player> allPlayers = match.getPlayers().getPlayers();
+
+    // Reused for each player, the cells are serialized as they are put
+    final List<Player> others = new ArrayList<Player>(allPlayers.size());
+    final Players otherPlayers = new Players(others);
+    for(int i = 0; i < allPlayers.size(); i++){
+      Player player = allPlayers.get(i);
+      Integer accountId = player.getAccountId();
+      if(accountId != null && accountId != -1){
+        others.clear();
+        for(int j = 0; j < allPlayers.size(); j++){
+          if(j != i){
+            others.add(allPlayers.get(j));
+          }
+        }
+        EntityId eid = sink.getEntityId(accountId);
+        sink.put(eid, "data", "match_id", startTime, matchId);
+        sink.put(eid, "data", "dire_towers_status", startTime, direTowers);
+        sink.put(eid, "data", "radiant_towers_status", startTime, radiantTowers);
+        sink.put(eid, "data", "dire_barracks_status", startTime, direBarracks);
+        sink.put(eid, "data", "radiant_barracks_status", startTime, radiantBarracks);
+        sink.put(eid, "data", "cluster", startTime, cluster);
+        sink.put(eid, "data", "season", startTime, season);
+        sink.put(eid, "data", "match_seq_num", startTime, seqNum);
+        sink.put(eid, "data", "league_id", startTime, leagueId);
+        sink.put(eid, "data", "first_blood_time", startTime, firstBloodTime);
+        sink.put(eid, "data", "negative_votes", startTime, negativeVotes);
+        sink.put(eid, "data", "positive_votes", startTime, positiveVotes);
+        sink.put(eid, "data", "duration", startTime, duration);
+        sink.put(eid, "data", "radiant_win", startTime, radiantWin);
+        sink.put(eid, "data", "game_mode", startTime, gameMode);
+        sink.put(eid, "data", "lobby_type", startTime, lobbyType);
+        sink.put(eid, "data", "human_players", startTime, humanPlayers);
+        sink.put(eid, "data", "other_players", startTime, otherPlayers);
+        sink.put(eid, "data", "player", startTime, player);
+      }
+    }
+  }
+
+  // Writes a PlayerMatch for each non-anonymous player
+  private static void putPlayerMatches(ParsedMatch match, CellSink sink) throws IOException {
+    final long startTime = match.getStartTime();
+    final List<Player> allPlayers = match.getPlayers().getPlayers();
+    final int n = allPlayers.size();
+
+    // Each player shows up in the other rows as a PlayerRef, build those once
+    final PlayerRef[] refs = new PlayerRef[n];
+    final boolean[] radiant = new boolean[n];
+    for(int i = 0; i < n; i++){
+      Player player = allPlayers.get(i);
+      refs[i] = new PlayerRef(player.getAccountId(), player.getHeroId(), player.getPlayerSlot());
+      radiant[i] = DotaValues.radiantPlayer(player.getPlayerSlot());
+    }
+
+    for(int i = 0; i < n; i++){
+      Player player = allPlayers.get(i);
+      Integer accountId = player.getAccountId();
+      if(accountId == null || accountId == -1){
+        continue;
+      }
+      List<PlayerRef> teammates = new ArrayList<PlayerRef>(n / 2);
+      List<PlayerRef> opponents = new ArrayList<PlayerRef>(n / 2);
+      for(int j = 0; j < n; j++){
+        if(j == i){
+          continue;
+        }
+        if(radiant[j] == radiant[i]){
+          teammates.add(refs[j]);
+        } else {
+          opponents.add(refs[j]);
+        }
+      }
+      PlayerMatch playerMatch = PlayerMatch.newBuilder()
+          .setMatchId(match.getMatchId())
+          .setGameMode(match.getGameMode())
+          .setLobbyType(match.getLobbyType())
+          .setDuration(match.getDuration())
+          .setRadiantWin(match.getRadiantWin())
+          .setPlayer(player)
+          .setTeammates(teammates)
+          .setOpponents(opponents)
+          .build();
+      sink.put(sink.getEntityId(accountId), "data", MATCH_COLUMN, startTime, playerMatch);
+    }
+  }
+
+  @Override
+  public void setup(KijiTableContext context) throws IOException {
+    compact = isCompact(getConf());
+    quarantine = BadLineQuarantine.open(getConf());
+    watermark = ImportWatermark.open(getConf());
+  }
 
   @Override
   public void produce(LongWritable filePos, Text line, KijiTableContext context)
     throws IOException {
 
     try {
-      // Parse the JSON
-      final JsonObject matchData = PARSER.parse(line.toString()).getAsJsonObject();
-
-      // Collect the values we need
-      final long matchId = matchData.get("match_id").getAsLong();
-      final int gameMode = matchData.get("game_mode").getAsInt();
-      final int lobbyType = matchData.get("lobby_type").getAsInt();
-      final int direTowers = matchData.get("tower_status_dire").getAsInt();
-      final int radiantTowers = matchData.get("tower_status_radiant").getAsInt();
-      final int direBarracks = matchData.get("barracks_status_dire").getAsInt();
-      final int radiantBarracks = matchData.get("barracks_status_radiant").getAsInt();
-      final int cluster = matchData.get("cluster").getAsInt();
-      final Integer season = DotaMatchBulkImporter.getNullableInt(matchData.get("season"));
-      final long startTime = matchData.get("start_time").getAsLong();
-      final long seqNum = matchData.get("match_seq_num").getAsLong();
-      final int leagueId = matchData.get("leagueid").getAsInt();
-      final int firstBloodTime = matchData.get("first_blood_time").getAsInt();
-      final int negativeVotes = matchData.get("negative_votes").getAsInt();
-      final int positiveVotes = matchData.get("positive_votes").getAsInt();
-      final int duration = matchData.get("duration").getAsInt();
-      final boolean radiantWin = matchData.get("radiant_win").getAsBoolean();
-      final int humanPlayers = matchData.get("human_players").getAsInt();
-
-      final Players players = DotaMatchBulkImporter.extractPlayers(matchData);
-
-      List<Player> allPlayers = new ArrayList<Player>();
-      List<Player> otherPlayers = new ArrayList<Player>();
-      allPlayers.addAll(players.getPlayers());
-      otherPlayers.addAll(players.getPlayers());
-      for(int i = 0; i < allPlayers.size(); i++){
-        Player player = allPlayers.get(i);
-        Integer accountId = player.getAccountId();
-        if(accountId != null && accountId != -1){
-          otherPlayers.remove(i);
-          players.setPlayers(otherPlayers);
-          EntityId eid = context.getEntityId(accountId);
-          context.put(eid, "data", "match_id", startTime, matchId);
-          context.put(eid, "data", "dire_towers_status", startTime, direTowers);
-          context.put(eid, "data", "radiant_towers_status", startTime, radiantTowers);
-          context.put(eid, "data", "dire_barracks_status", startTime, direBarracks);
-          context.put(eid, "data", "radiant_barracks_status", startTime, radiantBarracks);
-          context.put(eid, "data", "cluster", startTime, cluster);
-          context.put(eid, "data", "season", startTime, season);
-          context.put(eid, "data", "match_seq_num", startTime, seqNum);
-          context.put(eid, "data", "league_id", startTime, leagueId);
-          context.put(eid, "data", "first_blood_time", startTime, firstBloodTime);
-          context.put(eid, "data", "negative_votes", startTime, negativeVotes);
-          context.put(eid, "data", "positive_votes", startTime, positiveVotes);
-          context.put(eid, "data", "duration", startTime, duration);
-          context.put(eid, "data", "radiant_win", startTime, radiantWin);
-          context.put(eid, "data", "game_mode", startTime, gameMode);
-          context.put(eid, "data", "lobby_type", startTime, lobbyType);
-          context.put(eid, "data", "human_players", startTime, humanPlayers);
-          context.put(eid, "data", "other_players", startTime, players);
-          context.put(eid, "data", "player", startTime, player);
-          otherPlayers.add(i, player);
-        }
+      final ParsedMatch match = parser.parse(line);
+      if (watermark != null && !watermark.accept(match, context)) {
+        return;
       }
+      putPlayers(match, new CellSink.ContextSink(context), compact);
     } catch (RuntimeException re){
+      if (quarantine != null) {
+        quarantine.add(filePos.get(), line, re, context);
+        return;
+      }
       // For RunetimeExceptions we try to log additional information debugging purposes
       try {
         LOG.error("Runtime Exception! MatchId=" +
@@ -101,4 +211,17 @@ public class DotaPlayersBulkImporter extends KijiBulkImporter<LongWritable, Text
       throw re;
     }
   }
+
+  @Override
+  public void cleanup(KijiTableContext context) throws IOException {
+    try {
+      if (watermark != null) {
+        watermark.close();
+      }
+    } finally {
+      if (quarantine != null) {
+        quarantine.close();
+      }
+    }
+  }
 }
@@ -16,117 +16,339 @@
 * limitations under the License.
 */
 
+
 package com.wibidata.wibidota;
 
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.avro.Schema;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
-import org.kiji.mapreduce.KijiMapReduceJob;
 import org.kiji.mapreduce.gather.GathererContext;
-import org.kiji.mapreduce.gather.KijiGatherJobBuilder;
 import org.kiji.mapreduce.gather.KijiGatherer;
-import org.kiji.mapreduce.lib.reduce.LongSumReducer;
-import org.kiji.mapreduce.output.MapReduceJobOutputs;
 import org.kiji.schema.KijiRowData;
 import org.kiji.schema.KijiDataRequestBuilder;
 import org.kiji.schema.KijiDataRequest;
-import org.kiji.schema.KijiURI;
-import org.kiji.schema.KijiColumnName;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Collects and counts values and from the Kiji dota table and returns the
  * number of times those values appeared. Can be subdived by start_time of
  * the game. Output is of the form:
  *
- * <Columns>=<Value> (<start_range>-<end_range>)  <number of occurances>
+ * <Columns>=<Value> [<start_range>-<end_range>)  <number of occurances>
+ *
+ * The histograms to compute are listed by id in wibidota.histograms and all computed in
+ * the same scan. Each is set up by wibidota.histogram.&lt;id&gt;.&lt;option&gt;:
+ *
+ * <ul>
+ * <li>column, the column counted, such as data:game_mode, or player:&lt;field&gt; for a
+ * field of each Player in data:player_data, such as player:leaver_status.</li>
+ * <li>bucket, the width in seconds of the start_time ranges to subdivide by (default none).</li>
+ * <li>width, the width of the ranges of values counted together (default 1).</li>
+ * <li>nulls, "count" to count missing values as NULL (default) or "skip".</li>
+ * </ul>
+ *
+ * Without wibidota.histograms, data:game_mode by 6 hour range is counted. The values must be
+ * numbers or booleans. Reads data:header for the match fields if
+ * wibidota.matches.packed.header is true. Should be run with LongSumReducer.
  */
-public abstract class DotaValueHistogram extends KijiGatherer {
+public class DotaValueHistogram extends KijiGatherer<Text, LongWritable> {
 
   private static final Logger LOG =
       LoggerFactory.getLogger(DotaValueHistogram.class);
 
-  private static final LongWritable ONE = new LongWritable(1);
+  /** Ids of the histograms to compute. */
+  public static final String CONF_HISTOGRAMS = "wibidota.histograms";
+
+  private static final String CONF_PREFIX = "wibidota.histogram.";
+
+  // Prefix of the columns that are fields of the players
+  private static final String PLAYER_PREFIX = "player:";
+
+  private static final String NULL_STR = "NULL";
 
   private static int rows = 0;
 
-  public interface KeyGenerator {
-    public String getKey(KijiRowData row) throws IOException;
-    public String[] getColumnNames();
+  // The kinds of values, for writing the keys
+  private static final byte NUMBER = 1;
+  private static final byte BOOLEAN = 2;
+
+  /**
+   * Counts of (start_time range, value) pairs, kept in flat arrays with open addressing
+   * rather than a map of boxed keys.
+   */
+  static final class PairCounter {
+    private long[] slots = new long[64];
+    private long[] values = new long[64];
+    // 0 for empty, 1 for a value, 2 for null
+    private byte[] used = new byte[64];
+    private long[] counts = new long[64];
+    private int size = 0;
+
+    void add(long slot, long value, boolean isNull){
+      if(2 * (size + 1) > used.length){
+        rehash(used.length * 2);
+      }
+      final byte kind = isNull ? (byte) 2 : (byte) 1;
+      if(isNull){
+        value = 0;
+      }
+      final int mask = used.length - 1;
+      long h = (slot * 0x9E3779B97F4A7C15L) ^ (value * 0xC2B2AE3D27D4EB4FL);
+      int i = (int) (h ^ (h >>> 32)) & mask;
+      while(used[i] != 0){
+        if(used[i] == kind && slots[i] == slot && values[i] == value){
+          counts[i]++;
+          return;
+        }
+        i = (i + 1) & mask;
+      }
+      used[i] = kind;
+      slots[i] = slot;
+      values[i] = value;
+      counts[i] = 1;
+      size++;
+    }
+
+    private void rehash(int capacity){
+      final long[] oldSlots = slots;
+      final long[] oldValues = values;
+      final byte[] oldUsed = used;
+      final long[] oldCounts = counts;
+      slots = new long[capacity];
+      values = new long[capacity];
+      used = new byte[capacity];
+      counts = new long[capacity];
+      final int mask = capacity - 1;
+      for(int j = 0; j < oldUsed.length; j++){
+        if(oldUsed[j] != 0){
+          long h = (oldSlots[j] * 0x9E3779B97F4A7C15L) ^ (oldValues[j] * 0xC2B2AE3D27D4EB4FL);
+          int i = (int) (h ^ (h >>> 32)) & mask;
+          while(used[i] != 0){
+            i = (i + 1) & mask;
+          }
+          used[i] = oldUsed[j];
+          slots[i] = oldSlots[j];
+          values[i] = oldValues[j];
+          counts[i] = oldCounts[j];
+        }
+      }
+    }
   }
 
-  private static class ValueByTime implements KeyGenerator {
+  // One histogram and its counts for this task
+  private static final class Histogram {
+    private final String column;
+    private final String family;
+    private final String qualifier;
+    private final boolean player;
+    private final Schema.Field playerField;
+    private final long bucket;
+    private final long width;
+    private final boolean skipNulls;
+    private final PairCounter counts = new PairCounter();
+    private byte kind = NUMBER;
 
-    public final String family;
-    public final String column;
-    public final Long interval;
-    public final String nullStr;
+    Histogram(String id, Configuration conf){
+      final String prefix = CONF_PREFIX + id + ".";
+      column = conf.get(prefix + "column");
+      if(column == null || column.indexOf(':') < 0){
+        throw new IllegalArgumentException("Histogram " + id + " needs " + prefix
+            + "column set to family:qualifier or player:field");
+      }
+      family = column.substring(0, column.indexOf(':'));
+      qualifier = column.substring(column.indexOf(':') + 1);
+      player = column.startsWith(PLAYER_PREFIX);
+      playerField = player ? Player.SCHEMA$.getField(qualifier) : null;
+      if(player && playerField == null){
+        throw new IllegalArgumentException("Player has no field " + qualifier);
+      }
+      bucket = conf.getLong(prefix + "bucket", 0L);
+      width = Math.max(1L, conf.getLong(prefix + "width", 1L));
+      String nulls = conf.get(prefix + "nulls", "count");
+      if(!nulls.equals("count") && !nulls.equals("skip")){
+        throw new IllegalArgumentException(prefix + "nulls must be count or skip");
+      }
+      skipNulls = nulls.equals("skip");
+    }
 
-    public ValueByTime(String family, String column, Long interval) {
-      this.family = family;
-      this.column = column;
-      this.interval = interval;
-      this.nullStr = "NULL";
+    // The default histogram, game_mode by 6 hours
+    Histogram(){
+      column = "data:game_mode";
+      family = "data";
+      qualifier = "game_mode";
+      player = false;
+      playerField = null;
+      bucket = 21600L;
+      width = 1L;
+      skipNulls = false;
     }
 
-    public String[] getColumnNames() {
-      return new String[]{
-          family +":" + column,
-          "data:start_time"
-      };
+    void add(Object value, long startTime){
+      final long slot = bucket > 0 ? startTime / bucket : 0L;
+      if(value == null){
+        if(!skipNulls){
+          counts.add(slot, 0L, true);
+        }
+        return;
+      }
+      long v;
+      if(value instanceof Boolean){
+        kind = BOOLEAN;
+        v = (Boolean) value ? 1L : 0L;
+      } else if(value instanceof Double || value instanceof Float){
+        v = (long) Math.floor(((Number) value).doubleValue() / width) * width;
+      } else if(value instanceof Number){
+        final long n = ((Number) value).longValue();
+        v = n - n % width;
+        if(v > n){
+          v -= width;
+        }
+      } else {
+        throw new IllegalArgumentException(column + " holds " + value.getClass().getName()
+            + " values, only numbers and booleans can be counted");
+      }
+      counts.add(slot, v, false);
     }
 
-    public String getKey(KijiRowData row) throws IOException {
-      Integer value = row.getMostRecentValue(family, column);
-      StringBuilder sb = new StringBuilder();
-      sb.append(family + ":" + column + "=" + (value == null ? nullStr : value));
-      if(interval != null){
-        Long startTime = row.getMostRecentValue("data"  , "start_time");
-        long slot = startTime / interval;
-        sb.append(" [" + slot * interval + "-" + (slot + 1) * interval + ")");
+    String key(int i){
+      StringBuilder sb = new StringBuilder(column).append('=');
+      if(counts.used[i] == 2){
+        sb.append(NULL_STR);
+      } else if(kind == BOOLEAN){
+        sb.append(counts.values[i] != 0);
+      } else {
+        sb.append(counts.values[i]);
+      }
+      if(bucket > 0){
+        final long slot = counts.slots[i];
+        sb.append(" [").append(slot * bucket).append('-').append((slot + 1) * bucket)
+            .append(')');
       }
       return sb.toString();
     }
   }
 
-  private static final KeyGenerator[] KEYS = new KeyGenerator[] {
-      new ValueByTime("data", "game_mode", 21600L)
-  };
+  private Histogram[] histograms;
+
+  // Whether any histogram needs the start time or the players
+  private boolean needsStartTime;
+  private boolean needsPlayers;
+
+  private Histogram[] readHistograms(){
+    String[] ids = getConf() == null
+        ? new String[0] : getConf().getTrimmedStrings(CONF_HISTOGRAMS);
+    if(ids.length == 0){
+      return new Histogram[]{new Histogram()};
+    }
+    Histogram[] read = new Histogram[ids.length];
+    for(int i = 0; i < ids.length; i++){
+      read[i] = new Histogram(ids[i], getConf());
+    }
+    return read;
+  }
 
   @Override
   public KijiDataRequest getDataRequest() {
+    final boolean packed = MatchHeaders.isPacked(getConf());
+    Set<String> columns = new LinkedHashSet<String>();
+    for(Histogram histogram : readHistograms()){
+      if(histogram.player){
+        columns.add("data:player_data");
+      } else if(packed && histogram.family.equals("data")
+          && MatchHeaders.isHeaderColumn(histogram.qualifier)){
+        columns.add("data:" + MatchHeaders.HEADER_COLUMN);
+      } else {
+        columns.add(histogram.column);
+      }
+      if(histogram.bucket > 0){
+        columns.add(packed ? "data:" + MatchHeaders.HEADER_COLUMN : "data:start_time");
+      }
+    }
     KijiDataRequestBuilder builder = KijiDataRequest.builder();
     KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef();
     def.withMaxVersions(1);
-    HashSet<String> colsAdded = new HashSet<String>();
-    for(KeyGenerator kg : KEYS){
-      for(String s : kg.getColumnNames()){
-        if(!colsAdded.contains(s)){
-          def.add(new KijiColumnName(s));
-          colsAdded.add(s);
-        }
-      }
+    for(String column : columns){
+      int colon = column.indexOf(':');
+      def.add(column.substring(0, colon), column.substring(colon + 1));
     }
     return builder.addColumns(def).build();
   }
 
   @Override
-  public void gather(KijiRowData input, GathererContext context)
+  public void setup(GathererContext<Text, LongWritable> context) throws IOException {
+    histograms = readHistograms();
+    needsStartTime = false;
+    needsPlayers = false;
+    for(Histogram histogram : histograms){
+      needsStartTime |= histogram.bucket > 0;
+      needsPlayers |= histogram.player;
+    }
+  }
+
+  @Override
+  public void gather(KijiRowData input, GathererContext<Text, LongWritable> context)
       throws IOException {
     rows++;
-    for(KeyGenerator kg: KEYS){
-      context.write(new Text(kg.getKey(input)), ONE);
+    final MatchHeader header = MatchHeaders.isPacked(getConf())
+        ? input.<MatchHeader>getMostRecentValue("data", MatchHeaders.HEADER_COLUMN) : null;
+    long startTime = 0L;
+    if(needsStartTime){
+      Long time = header != null ? header.getStartTime()
+          : input.<Long>getMostRecentValue("data", "start_time");
+      startTime = time == null ? 0L : time;
+    }
+    List<Player> players = null;
+    if(needsPlayers){
+      Players playerData = input.getMostRecentValue("data", "player_data");
+      players = playerData == null ? null : playerData.getPlayers();
+    }
+
+    for(Histogram histogram : histograms){
+      if(histogram.player){
+        if(players != null){
+          for(Player player : players){
+            histogram.add(player.get(histogram.playerField.pos()), startTime);
+          }
+        }
+      } else if(header != null && histogram.family.equals("data")
+          && MatchHeaders.isHeaderColumn(histogram.qualifier)){
+        histogram.add(MatchHeaders.get(header, histogram.qualifier), startTime);
+      } else {
+        histogram.add(input.getMostRecentValue(histogram.family, histogram.qualifier),
+            startTime);
+      }
     }
     if(rows % 1000 == 0){
       LOG.info("Processes row: " + rows);
     }
   }
 
+  @Override
+  public void cleanup(GathererContext<Text, LongWritable> context) throws IOException {
+    final Text key = new Text();
+    final LongWritable count = new LongWritable();
+    for(Histogram histogram : histograms){
+      final PairCounter counts = histogram.counts;
+      for(int i = 0; i < counts.used.length; i++){
+        if(counts.used[i] != 0){
+          key.set(histogram.key(i));
+          count.set(counts.counts[i]);
+          context.write(key, count);
+        }
+      }
+    }
+  }
+
   @Override
   public Class<?> getOutputKeyClass() {
     return Text.class;
@@ -137,4 +359,3 @@ public abstract class DotaValueHistogram extends KijiGatherer {
     return LongWritable.class;
   }
 }
-
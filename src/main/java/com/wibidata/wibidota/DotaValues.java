@@ -26,6 +26,7 @@ import org.kiji.schema.KijiColumnName;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -118,6 +119,50 @@ public final class DotaValues {
     }
   }
 
+  // The sorted ids in one of the maps, null if its file is not in the CP
+  private static int[] ids(String filename, Map<Integer, String> map){
+    if(ClassLoader.getSystemResource(filename) == null){
+      return null;
+    }
+    int[] ids = new int[map.size()];
+    int i = 0;
+    for(Integer id : map.keySet()){
+      ids[i++] = id;
+    }
+    Arrays.sort(ids);
+    return ids;
+  }
+
+  /**
+   * @return the ids of every hero in heroes.json, null if it is not in the CP
+   */
+  static int[] heroIds(){
+    if(ClassLoader.getSystemResource(HEROES_JSON) != null){
+      getHeroName(0);
+    }
+    return ids(HEROES_JSON, heroNames);
+  }
+
+  /**
+   * @return the ids of every item in items.json, null if it is not in the CP
+   */
+  static int[] itemIds(){
+    if(ClassLoader.getSystemResource(ITEMS_JSON) != null){
+      getItemName(0);
+    }
+    return ids(ITEMS_JSON, itemNames);
+  }
+
+  /**
+   * @return the ids of every ability in abilities.json, null if it is not in the CP
+   */
+  static int[] abilityIds(){
+    if(ClassLoader.getSystemResource(ABILITIES_JSON) != null){
+      getAbilityName(0);
+    }
+    return ids(ABILITIES_JSON, abilityNames);
+  }
+
   /**
    * Translates hero ids to hero names
    *
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.util.Set;
 import java.util.HashSet;
 
+import org.apache.avro.Schema;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
 import org.apache.hadoop.fs.Path;
@@ -32,7 +33,6 @@ import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
-import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.Tool;
@@ -41,9 +41,8 @@ import org.kiji.mapreduce.lib.reduce.LongSumReducer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
 
 /**
  * A Map Reduce job built to gather statistics about the different values various fields stored
@@ -52,21 +51,22 @@ import com.google.gson.JsonParser;
  * on values older ones did not. The output will be pairs of the form
  * column::value (<start_match_sequence_num>-<end_match_sequence_num> <number of occurances>
  *
- * Used to do some pre-analysis on the values to help guide table construction.
+ * Used to do some pre-analysis on the values to help guide table construction. Reads
+ * either the raw JSON or the Avro files written by DotaMatchAvroConverter.
+ *
+ * @deprecated DotaFieldProfiler lists the most frequent values of every field in one pass.
+ * This is still the job to use to split the counts by match_seq_num.
  */
+@Deprecated
 public class DotaValuesCounter extends Configured implements Tool {
   private static final Logger LOG = LoggerFactory.getLogger(DotaValuesCounter.class);
 
-  static enum Counters {
-    MALFORMED_MATCH_LINES
-  }
-
   // Change these fields to change behavior
 
-  // The fields in the JSON to track
+  // The match fields to track, by their names in the JSON or in MatchHeader
   private static final String[] MATCH_FIELDS = new String[]{"game_mode"};
 
-  // The fields in the player JSONObjects to track
+  // The player fields to track, by their names in the JSON or in Player
   private static final String[] PLAYER_FIELDS = new String[]{"leaver_status"};
 
   // Interval to subdived the results by, can be null
@@ -78,15 +78,27 @@ public class DotaValuesCounter extends Configured implements Tool {
   }
 
   /**
-   * A Mapper class that simply outputs keys composed of the field, value, and interval
-   * with value 1 for every record it reads
+   * A Mapper class that counts keys composed of the field, value, and interval
+   * for every record it reads
    */
-  public static class Map extends Mapper<LongWritable, Text, Text, LongWritable> {
-
-    private final static JsonParser PARSER = new JsonParser();
-
-    // Just to caches this value
-    private static final LongWritable ONE = new LongWritable(1);
+  public static class Map extends CountingMapper<LongWritable, ParsedMatch> {
+
+    // The fields to track, resolved once so a name without a field fails the task
+    private Schema.Field[] matchFields;
+    private Schema.Field[] playerFields;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      super.setup(context);
+      matchFields = new Schema.Field[MATCH_FIELDS.length];
+      for(int i = 0; i < MATCH_FIELDS.length; i++){
+        matchFields[i] = JsonNames.matchField(MATCH_FIELDS[i]);
+      }
+      playerFields = new Schema.Field[PLAYER_FIELDS.length];
+      for(int i = 0; i < PLAYER_FIELDS.length; i++){
+        playerFields[i] = JsonNames.playerField(PLAYER_FIELDS[i]);
+      }
+    }
 
     private static String toReturnKey(String field, long slot, String value){
         return field + "::" + value +
@@ -94,32 +106,28 @@ public class DotaValuesCounter extends Configured implements Tool {
                " (" + slot * INTERVAL + "-" + (slot + 1) * INTERVAL + ")");
     }
 
-    public void map(LongWritable key, Text value, Context context)
+    public void map(LongWritable key, ParsedMatch value, Context context)
         throws IOException, InterruptedException {
-      try{
-        JsonObject matchData = PARSER.parse(value.toString()).getAsJsonObject();
-        long seqNum = matchData.get("match_seq_num").getAsLong();
-        long slot = seqNum / INTERVAL;
-        for(String field : MATCH_FIELDS){
-          context.write(new Text(toReturnKey(field, slot, safeToString(matchData.get(field)))), ONE);
-        }
+      long seqNum = value.getMatchSeqNum();
+      long slot = seqNum / INTERVAL;
+      MatchHeader header = value.toHeader();
+      for(int i = 0; i < MATCH_FIELDS.length; i++){
+        count(toReturnKey(MATCH_FIELDS[i], slot,
+            safeToString(header.get(matchFields[i].pos()))), context);
+      }
 
-        for (JsonElement playerElem : matchData.get("players").getAsJsonArray()) {
-          JsonObject playerData = playerElem.getAsJsonObject();
-          for(String field : PLAYER_FIELDS){
-            context.write(new Text(toReturnKey(field, slot, safeToString(playerData.get(field)))), ONE);
-          }
+      for (Player player : value.getPlayers().getPlayers()) {
+        for(int i = 0; i < PLAYER_FIELDS.length; i++){
+          Object playerValue = player.get(playerFields[i].pos());
+          count(toReturnKey(PLAYER_FIELDS[i], slot, safeToString(playerValue)), context);
         }
-      } catch (IllegalStateException e) {
-        // Indicates malformed JSON.
-        context.getCounter(Counters.MALFORMED_MATCH_LINES).increment(1);
       }
     }
   }
 
   /**
    * Runs the job, requires that the gson package is made
-   * available to the cluster.
+   * available to the cluster if run over the raw JSON.
    *
    * @args Should contain the input and output file path
    * @throws Exception is there was a problem running the job
@@ -141,7 +149,7 @@ public class DotaValuesCounter extends Configured implements Tool {
 
     job.setJarByClass(DotaValuesCounter.class);
 
-    job.setInputFormatClass(TextInputFormat.class);
+    job.setInputFormatClass(DotaMatchInputFormat.class);
     job.setOutputFormatClass(TextOutputFormat.class);
 
     FileInputFormat.addInputPath(job, new Path(args[0]));
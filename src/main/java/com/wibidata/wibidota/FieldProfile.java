@@ -0,0 +1,368 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * What DotaFieldProfiler finds out about one field of the raw JSON: how often it is present
+ * and null, the JSON types of its values, the min, max and mean of the numbers, an estimate
+ * of the number of distinct values and its most frequent values. Profiles of the same field
+ * can be merged, so the tasks each keep their own and the reducer adds them up.
+ *
+ * The frequent values are found with the space-saving algorithm, which keeps a fixed number
+ * of counters. A value's count can be overestimated by up to the error printed with it, but
+ * any value with more than 1 / counters of the occurrences is sure to be kept.
+ */
+public class FieldProfile implements Writable {
+
+  /** JSON types of the values, in the order they are counted. */
+  public static final int NUMBER = 0;
+  public static final int STRING = 1;
+  public static final int BOOLEAN = 2;
+  public static final int ARRAY = 3;
+  public static final int OBJECT = 4;
+
+  private static final String[] TYPE_NAMES =
+      new String[]{"number", "string", "boolean", "array", "object"};
+
+  private long nulls;
+  private final long[] types = new long[TYPE_NAMES.length];
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+  private double sum;
+  private HyperLogLogWritable distinct;
+
+  // The space-saving counters, a min-heap on the counts
+  private int capacity;
+  private int size;
+  private String[] values;
+  private long[] counts;
+  private long[] errors;
+  private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+  public FieldProfile() {
+    this(1, HyperLogLogWritable.DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param capacity, the number of values to keep counts of.
+   * @param precision, the precision of the distinct count sketch.
+   */
+  public FieldProfile(int capacity, int precision) {
+    distinct = new HyperLogLogWritable(precision);
+    reset(capacity);
+  }
+
+  private void reset(int newCapacity) {
+    capacity = newCapacity;
+    size = 0;
+    values = new String[capacity];
+    counts = new long[capacity];
+    errors = new long[capacity];
+    index.clear();
+  }
+
+  /** @return the number of times the field was seen, null or not. */
+  public long getPresent() {
+    long present = nulls;
+    for (long n : types) {
+      present += n;
+    }
+    return present;
+  }
+
+  public long getNulls() {
+    return nulls;
+  }
+
+  /** @return the number of values of the given type. */
+  public long getTypeCount(int type) {
+    return types[type];
+  }
+
+  /**
+   * Counts a null.
+   */
+  public void addNull() {
+    nulls++;
+  }
+
+  /**
+   * Counts an array or an object, which are not looked into.
+   */
+  public void addContainer(int type) {
+    types[type]++;
+  }
+
+  /**
+   * Counts a number.
+   *
+   * @param text, the number as it was written.
+   * @param value, the number.
+   */
+  public void addNumber(String text, double value) {
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+    sum += value;
+    addValue(NUMBER, text);
+  }
+
+  /**
+   * Counts a string or boolean.
+   */
+  public void addValue(int type, String text) {
+    types[type]++;
+    distinct.add(hash(text));
+    offer(text, 1L, 0L);
+  }
+
+  // 64 bit FNV-1a, HyperLogLogWritable mixes the bits further
+  private static long hash(String text) {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < text.length(); i++) {
+      h ^= text.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  // Adds to the count of a value, replacing the least counted value if it has no counter
+  private void offer(String value, long count, long error) {
+    final Integer i = index.get(value);
+    if (i != null) {
+      counts[i] += count;
+      errors[i] += error;
+      siftDown(i);
+    } else if (size < capacity) {
+      values[size] = value;
+      counts[size] = count;
+      errors[size] = error;
+      index.put(value, size);
+      siftUp(size++);
+    } else {
+      index.remove(values[0]);
+      values[0] = value;
+      errors[0] = counts[0] + error;
+      counts[0] += count;
+      index.put(value, 0);
+      siftDown(0);
+    }
+  }
+
+  private void swap(int i, int j) {
+    final String value = values[i];
+    values[i] = values[j];
+    values[j] = value;
+    long n = counts[i];
+    counts[i] = counts[j];
+    counts[j] = n;
+    n = errors[i];
+    errors[i] = errors[j];
+    errors[j] = n;
+    index.put(values[i], i);
+    index.put(values[j], j);
+  }
+
+  private void siftUp(int i) {
+    while (i > 0 && counts[(i - 1) / 2] > counts[i]) {
+      swap(i, (i - 1) / 2);
+      i = (i - 1) / 2;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int least = i;
+      final int left = 2 * i + 1;
+      if (left < size && counts[left] < counts[least]) {
+        least = left;
+      }
+      if (left + 1 < size && counts[left + 1] < counts[least]) {
+        least = left + 1;
+      }
+      if (least == i) {
+        return;
+      }
+      swap(i, least);
+      i = least;
+    }
+  }
+
+  // Smallest count kept, what a value without a counter may have had
+  private long floor() {
+    return size < capacity ? 0L : counts[0];
+  }
+
+  /**
+   * Merges the profile of the same field from another task into this one.
+   */
+  public void merge(FieldProfile other) {
+    nulls += other.nulls;
+    for (int t = 0; t < types.length; t++) {
+      types[t] += other.types[t];
+    }
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+    sum += other.sum;
+    distinct.merge(other.distinct);
+
+    // Values missing from one side may have had up to its smallest count there
+    final long floor = floor();
+    final long otherFloor = other.floor();
+    final Map<String, long[]> merged = new HashMap<String, long[]>();
+    for (int i = 0; i < size; i++) {
+      merged.put(values[i], new long[]{counts[i] + otherFloor, errors[i] + otherFloor});
+    }
+    for (int i = 0; i < other.size; i++) {
+      final long[] mine = merged.get(other.values[i]);
+      if (mine != null) {
+        mine[0] += other.counts[i] - otherFloor;
+        mine[1] += other.errors[i] - otherFloor;
+      } else {
+        merged.put(other.values[i],
+            new long[]{other.counts[i] + floor, other.errors[i] + floor});
+      }
+    }
+    final List<Map.Entry<String, long[]>> entries =
+        new ArrayList<Map.Entry<String, long[]>>(merged.entrySet());
+    Collections.sort(entries, BY_COUNT);
+    reset(Math.max(capacity, other.capacity));
+    for (int i = 0; i < entries.size() && i < capacity; i++) {
+      offer(entries.get(i).getKey(), entries.get(i).getValue()[0], entries.get(i).getValue()[1]);
+    }
+  }
+
+  private static final Comparator<Map.Entry<String, long[]>> BY_COUNT =
+      new Comparator<Map.Entry<String, long[]>>() {
+        @Override
+        public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+          final long x = a.getValue()[0];
+          final long y = b.getValue()[0];
+          return x > y ? -1 : (x == y ? a.getKey().compareTo(b.getKey()) : 1);
+        }
+      };
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVLong(out, nulls);
+    for (long n : types) {
+      WritableUtils.writeVLong(out, n);
+    }
+    out.writeDouble(min);
+    out.writeDouble(max);
+    out.writeDouble(sum);
+    distinct.write(out);
+    WritableUtils.writeVInt(out, capacity);
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      Text.writeString(out, values[i]);
+      WritableUtils.writeVLong(out, counts[i]);
+      WritableUtils.writeVLong(out, errors[i]);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    nulls = WritableUtils.readVLong(in);
+    for (int t = 0; t < types.length; t++) {
+      types[t] = WritableUtils.readVLong(in);
+    }
+    min = in.readDouble();
+    max = in.readDouble();
+    sum = in.readDouble();
+    distinct.readFields(in);
+    reset(WritableUtils.readVInt(in));
+    size = WritableUtils.readVInt(in);
+    for (int i = 0; i < size; i++) {
+      values[i] = Text.readString(in);
+      counts[i] = WritableUtils.readVLong(in);
+      errors[i] = WritableUtils.readVLong(in);
+      index.put(values[i], i);
+    }
+  }
+
+  // Numbers that are whole are printed without a fraction
+  private static String format(double value) {
+    if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+
+  /**
+   * @param k, the number of frequent values to list.
+   * @return the profile as one line of text.
+   */
+  public String toString(int k) {
+    final StringBuilder out = new StringBuilder();
+    out.append("present=").append(getPresent()).append(" nulls=").append(nulls);
+    for (int t = 0; t < types.length; t++) {
+      if (types[t] > 0) {
+        out.append(' ').append(TYPE_NAMES[t]).append('=').append(types[t]);
+      }
+    }
+    if (types[NUMBER] > 0) {
+      out.append(" min=").append(format(min)).append(" max=").append(format(max))
+          .append(" mean=").append(sum / types[NUMBER]);
+    }
+    if (size > 0) {
+      out.append(" distinct~").append(distinct.estimate()).append(" top=");
+      final Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          if (counts[a] != counts[b]) {
+            return counts[a] > counts[b] ? -1 : 1;
+          }
+          return errors[a] < errors[b] ? -1 : (errors[a] == errors[b] ? 0 : 1);
+        }
+      });
+      for (int i = 0; i < size && i < k; i++) {
+        final int j = order[i];
+        out.append(i == 0 ? "" : ",").append(values[j]).append(':').append(counts[j]);
+        if (errors[j] > 0) {
+          out.append("(err=").append(errors[j]).append(')');
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  @Override
+  public String toString() {
+    return toString(capacity);
+  }
+}
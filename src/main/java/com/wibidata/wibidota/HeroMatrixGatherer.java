@@ -0,0 +1,281 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import org.kiji.mapreduce.KijiReducer;
+import org.kiji.mapreduce.gather.GathererContext;
+import org.kiji.mapreduce.gather.KijiGatherer;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Builds hero synergy and counter-pick matrices from dota_matches, indexed by hero_id:
+ *
+ * <ul>
+ * <li>with_games and with_wins, the matches two heroes played on the same team and how many
+ * of those their team won (the same both ways round).</li>
+ * <li>vs_games and vs_wins, the matches the row hero played against the column hero and how
+ * many of those the row hero won.</li>
+ * </ul>
+ *
+ * Each task adds the matches it reads to its own matrices and writes them once it is done, so
+ * the shuffle holds four matrices per task whatever the number of matches. MatrixSumReducer
+ * adds them up, and MatrixSumCombiner does the same as the combiner. Output is a sequence file
+ * of the matrix names and LongMatrixWritables, and with wibidota.heromatrix.csv true each
+ * matrix is also written as csv/&lt;name&gt;.csv in the output directory, committed with the
+ * reduce task that wrote it:
+ *
+ * <pre>
+ * kiji gather --gatherer=com.wibidata.wibidota.HeroMatrixGatherer \
+ *   --combiner=com.wibidata.wibidota.HeroMatrixGatherer\$MatrixSumCombiner \
+ *   --reducer=com.wibidata.wibidota.HeroMatrixGatherer\$MatrixSumReducer \
+ *   -Dwibidota.heromatrix.csv=true \
+ *   --input="format=kiji table=kiji://.env/wibidota/dota_matches" \
+ *   --output="format=seq file=hdfs://path/to/matrices nsplits=1" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ *
+ * Only serious matches, as SeriousMatchProducerMR decides by game mode and lobby type, are
+ * counted unless wibidota.heromatrix.serious is false. Reads data:header if
+ * wibidota.matches.packed.header is true.
+ */
+public class HeroMatrixGatherer extends KijiGatherer<Text, LongMatrixWritable> {
+
+  /** False to count every match. */
+  public static final String CONF_SERIOUS = "wibidota.heromatrix.serious";
+
+  /** True to also write the final matrices as CSV, under csv/ in the output directory. */
+  public static final String CONF_CSV = "wibidota.heromatrix.csv";
+
+  public static final String WITH_GAMES = "with_games";
+  public static final String WITH_WINS = "with_wins";
+  public static final String VS_GAMES = "vs_games";
+  public static final String VS_WINS = "vs_wins";
+
+  // Enough for the heroes so far, the matrices grow if needed
+  private static final int HEROES = 128;
+
+  static enum Counters {
+    MATCHES_COUNTED,
+    MATCHES_FILTERED
+  }
+
+  private boolean seriousOnly;
+
+  private LongMatrixWritable withGames;
+  private LongMatrixWritable withWins;
+  private LongMatrixWritable vsGames;
+  private LongMatrixWritable vsWins;
+
+  // Heroes of each team in the match being read
+  private final int[] radiant = new int[5];
+  private final int[] dire = new int[5];
+
+  @Override
+  public KijiDataRequest getDataRequest() {
+    KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef().withMaxVersions(1);
+    if (MatchHeaders.isPacked(getConf())) {
+      def.add("data", MatchHeaders.HEADER_COLUMN);
+    } else {
+      def.add("data", "radiant_win").add("data", "game_mode").add("data", "lobby_type");
+    }
+    def.add("data", "player_data");
+    return builder.addColumns(def).build();
+  }
+
+  @Override
+  public void setup(GathererContext<Text, LongMatrixWritable> context) throws IOException {
+    seriousOnly = getConf().getBoolean(CONF_SERIOUS, true);
+    withGames = new LongMatrixWritable(HEROES);
+    withWins = new LongMatrixWritable(HEROES);
+    vsGames = new LongMatrixWritable(HEROES);
+    vsWins = new LongMatrixWritable(HEROES);
+  }
+
+  // True if the match passes the same checks as SeriousMatchProducerMR's game mode and lobby
+  private static boolean serious(Integer gameMode, Integer lobbyType) {
+    if (gameMode == null || lobbyType == null) {
+      return false;
+    }
+    if (gameMode < 0 || gameMode >= DotaValues.GameMode.values().length
+        || lobbyType < -1 || lobbyType + 1 >= DotaValues.LobbyType.values().length) {
+      return false;
+    }
+    return DotaValues.GameMode.seriousGame(DotaValues.GameMode.fromInt(gameMode))
+        && DotaValues.LobbyType.seriousLobby(DotaValues.LobbyType.fromInt(lobbyType));
+  }
+
+  @Override
+  public void gather(KijiRowData row, GathererContext<Text, LongMatrixWritable> context)
+      throws IOException {
+    final Boolean radiantWin;
+    final Integer gameMode;
+    final Integer lobbyType;
+    if (MatchHeaders.isPacked(getConf())) {
+      final MatchHeader header = row.getMostRecentValue("data", MatchHeaders.HEADER_COLUMN);
+      radiantWin = header == null ? null : header.getRadiantWin();
+      gameMode = header == null ? null : header.getGameMode();
+      lobbyType = header == null ? null : header.getLobbyType();
+    } else {
+      radiantWin = row.getMostRecentValue("data", "radiant_win");
+      gameMode = row.getMostRecentValue("data", "game_mode");
+      lobbyType = row.getMostRecentValue("data", "lobby_type");
+    }
+    final Players players = row.getMostRecentValue("data", "player_data");
+    if (radiantWin == null || players == null || (seriousOnly && !serious(gameMode, lobbyType))) {
+      context.incrementCounter(Counters.MATCHES_FILTERED);
+      return;
+    }
+
+    int radiantCount = 0;
+    int direCount = 0;
+    for (Player player : players.getPlayers()) {
+      final int hero = player.getHeroId();
+      if (hero <= 0) {
+        continue;
+      }
+      if (DotaValues.radiantPlayer(player.getPlayerSlot())) {
+        if (radiantCount < radiant.length) {
+          radiant[radiantCount++] = hero;
+        }
+      } else if (direCount < dire.length) {
+        dire[direCount++] = hero;
+      }
+    }
+    addTeam(radiant, radiantCount, radiantWin);
+    addTeam(dire, direCount, !radiantWin);
+    for (int i = 0; i < radiantCount; i++) {
+      for (int j = 0; j < direCount; j++) {
+        vsGames.add(radiant[i], dire[j], 1L);
+        vsGames.add(dire[j], radiant[i], 1L);
+        if (radiantWin) {
+          vsWins.add(radiant[i], dire[j], 1L);
+        } else {
+          vsWins.add(dire[j], radiant[i], 1L);
+        }
+      }
+    }
+    context.incrementCounter(Counters.MATCHES_COUNTED);
+  }
+
+  // Counts each pair of heroes on a team
+  private void addTeam(int[] heroes, int count, boolean won) {
+    for (int i = 0; i < count; i++) {
+      for (int j = i + 1; j < count; j++) {
+        withGames.add(heroes[i], heroes[j], 1L);
+        withGames.add(heroes[j], heroes[i], 1L);
+        if (won) {
+          withWins.add(heroes[i], heroes[j], 1L);
+          withWins.add(heroes[j], heroes[i], 1L);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void cleanup(GathererContext<Text, LongMatrixWritable> context) throws IOException {
+    context.write(new Text(WITH_GAMES), withGames);
+    context.write(new Text(WITH_WINS), withWins);
+    context.write(new Text(VS_GAMES), vsGames);
+    context.write(new Text(VS_WINS), vsWins);
+  }
+
+  @Override
+  public Class<?> getOutputKeyClass() {
+    return Text.class;
+  }
+
+  @Override
+  public Class<?> getOutputValueClass() {
+    return LongMatrixWritable.class;
+  }
+
+  /**
+   * Reducer that adds up the matrices of each name, and writes the sums as CSV if
+   * wibidota.heromatrix.csv is true.
+   */
+  public static class MatrixSumReducer
+      extends KijiReducer<Text, LongMatrixWritable, Text, LongMatrixWritable> {
+
+    // Where this attempt writes the CSVs, null if it does not
+    private Path csvDir;
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+      if (context.getConfiguration().getBoolean(CONF_CSV, false)) {
+        // The work path of the attempt, so the CSVs are committed with the task's output
+        csvDir = new Path(FileOutputFormat.getWorkOutputPath(context), "csv");
+      }
+    }
+
+    @Override
+    public void reduce(Text key, Iterable<LongMatrixWritable> values, Context context)
+        throws IOException, InterruptedException {
+      final LongMatrixWritable sum = new LongMatrixWritable(HEROES);
+      for (LongMatrixWritable matrix : values) {
+        sum.add(matrix);
+      }
+      context.write(key, sum);
+
+      if (csvDir != null) {
+        final Path path = new Path(csvDir, key.toString() + ".csv");
+        final Writer out = new OutputStreamWriter(
+            path.getFileSystem(context.getConfiguration()).create(path, true), "UTF-8");
+        try {
+          sum.writeCsv(out);
+        } finally {
+          out.close();
+        }
+      }
+    }
+
+    @Override
+    public Class<?> getOutputKeyClass() {
+      return Text.class;
+    }
+
+    @Override
+    public Class<?> getOutputValueClass() {
+      return LongMatrixWritable.class;
+    }
+  }
+
+  /**
+   * Combiner that adds up the matrices of each name without writing the CSVs, as combiners
+   * also run while the reducers merge their inputs.
+   */
+  public static class MatrixSumCombiner extends MatrixSumReducer {
+    @Override
+    protected void setup(Context context) {
+    }
+  }
+}
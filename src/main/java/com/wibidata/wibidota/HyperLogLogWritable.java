@@ -0,0 +1,183 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A HyperLogLog sketch of a set of longs, such as account ids, that estimates the number of
+ * distinct values to within about 1.04 / sqrt(2^precision). Sketches of the same precision
+ * can be merged, which gives the sketch of the union of their sets, so the distinct counts of
+ * any combination of stored sketches can be had without reading the values again.
+ *
+ * Written as the precision and either every register or, for the sketches of few values, the
+ * index and value of each register that is set.
+ */
+public class HyperLogLogWritable implements Writable {
+
+  /** Precision used unless another is given, 4096 registers and about 1.6% error. */
+  public static final int DEFAULT_PRECISION = 12;
+
+  private int precision;
+  private byte[] registers;
+
+  public HyperLogLogWritable() {
+    this(DEFAULT_PRECISION);
+  }
+
+  /**
+   * @param precision, the log2 of the number of registers, from 4 to 18.
+   */
+  public HyperLogLogWritable(int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("Precision must be from 4 to 18, not " + precision);
+    }
+    this.precision = precision;
+    registers = new byte[1 << precision];
+  }
+
+  public int getPrecision() {
+    return precision;
+  }
+
+  // The 64 bit finalizer of MurmurHash3, spreads sequential ids over every bit
+  private static long hash(long value) {
+    long h = value;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Adds a value to the set.
+   */
+  public void add(long value) {
+    final long h = hash(value);
+    final int index = (int) (h >>> (64 - precision));
+    // Rank of the first set bit in the rest of the hash, the sentinel bit caps it
+    final int rank = Long.numberOfLeadingZeros((h << precision) | (1L << (precision - 1))) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  /**
+   * Merges another sketch into this one.
+   *
+   * @throws IllegalArgumentException if the sketches have different precisions.
+   */
+  public void merge(HyperLogLogWritable other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge a sketch of precision " + other.precision
+          + " into one of " + precision);
+    }
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  /**
+   * @return the estimated number of distinct values added.
+   */
+  public long estimate() {
+    final int m = registers.length;
+    double sum = 0.0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    final double alpha = m == 16 ? 0.673 : m == 32 ? 0.697 : m == 64 ? 0.709
+        : 0.7213 / (1.0 + 1.079 / m);
+    final double raw = alpha * m * m / sum;
+    // Linear counting is more accurate while many registers are empty
+    if (raw <= 2.5 * m && zeros > 0) {
+      return Math.round(m * Math.log((double) m / zeros));
+    }
+    return Math.round(raw);
+  }
+
+  /**
+   * Empties the sketch.
+   */
+  public void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    int set = 0;
+    for (byte register : registers) {
+      if (register != 0) {
+        set++;
+      }
+    }
+    out.writeByte(precision);
+    // A set register takes about 3 bytes in the sparse form, and every register 1 in the dense
+    if (set * 3 < registers.length) {
+      WritableUtils.writeVInt(out, set);
+      for (int i = 0; i < registers.length; i++) {
+        if (registers[i] != 0) {
+          WritableUtils.writeVInt(out, i);
+          out.writeByte(registers[i]);
+        }
+      }
+    } else {
+      WritableUtils.writeVInt(out, -1);
+      out.write(registers);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    final int p = in.readByte();
+    if (p != precision) {
+      precision = p;
+      registers = new byte[1 << p];
+    } else {
+      clear();
+    }
+    final int set = WritableUtils.readVInt(in);
+    if (set < 0) {
+      in.readFully(registers);
+    } else {
+      for (int i = 0; i < set; i++) {
+        registers[WritableUtils.readVInt(in)] = in.readByte();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Long.toString(estimate());
+  }
+}
@@ -0,0 +1,283 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.mapreduce.KijiContext;
+
+/**
+ * Lets the bulk importers load only the matches that are newer than the last import. The
+ * highest match_seq_num imported so far is kept in a small state file named by
+ * wibidota.import.watermark. When that is set the importers skip every match at or below
+ * the mark, and each task records the range of what it did import next to the state file.
+ * Once the HFiles are bulk-loaded the new mark is committed with
+ *
+ * <pre>
+ * hadoop jar target/wibidota-1.0.0.jar com.wibidata.wibidota.ImportWatermark commit \
+ *   hdfs://path/to/dota_matches.watermark
+ * </pre>
+ *
+ * which also prints the earliest start_time imported, so the derived columns can be
+ * recomputed for just those matches (see SeriousMatchProducerMR). If the import failed use
+ * "discard" instead. Tables imported by separate jobs need a state file each.
+ *
+ * FilePathFilter skips whole files named matches_&lt;start&gt;-&lt;end&gt;.gz, as written by
+ * dota_slurp.py, that end at or below the mark.
+ */
+public final class ImportWatermark extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ImportWatermark.class);
+
+  /** Path of the state file. */
+  public static final String CONF_STATE = "wibidota.import.watermark";
+
+  // Keys in the state and pending files
+  private static final String SEQ_NUM = "match_seq_num";
+  private static final String MIN_START_TIME = "min_start_time";
+
+  static enum Counters {
+    BELOW_WATERMARK  // Matches skipped as they were already imported
+  }
+
+  /**
+   * @param state, the state file.
+   * @return the directory the tasks write their ranges to.
+   */
+  static Path pendingDir(Path state) {
+    return new Path(state.getParent(), state.getName() + ".pending");
+  }
+
+  // Reads a properties file, empty if it does not exist
+  private static Properties load(FileSystem fs, Path path) throws IOException {
+    final Properties props = new Properties();
+    if (fs.exists(path)) {
+      final InputStream in = fs.open(path);
+      try {
+        props.load(in);
+      } finally {
+        in.close();
+      }
+    }
+    return props;
+  }
+
+  // Writes a properties file, replacing any existing one
+  private static void store(FileSystem fs, Path path, Properties props) throws IOException {
+    final Path tmp = new Path(path.getParent(), "." + path.getName() + ".tmp");
+    final OutputStream out = fs.create(tmp, true);
+    try {
+      props.store(out, null);
+    } finally {
+      out.close();
+    }
+    fs.delete(path, false);
+    if (!fs.rename(tmp, path)) {
+      throw new IOException("Could not rename " + tmp + " to " + path);
+    }
+  }
+
+  private static long getLong(Properties props, String key, long defaultValue) {
+    final String value = props.getProperty(key);
+    return value == null ? defaultValue : Long.parseLong(value.trim());
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return the committed mark, -1 if there is none.
+   */
+  public static long read(Configuration conf) throws IOException {
+    final String state = conf.get(CONF_STATE);
+    if (state == null) {
+      return -1L;
+    }
+    final Path path = new Path(state);
+    return getLong(load(path.getFileSystem(conf), path), SEQ_NUM, -1L);
+  }
+
+  /**
+   * Tracks the matches one import task sees. Must be closed once done, which records the
+   * range imported in the pending directory.
+   */
+  public static final class Tracker implements Closeable {
+    private final long mark;
+    private final Configuration conf;
+    private final Path pending;
+    private long maxSeqNum = -1L;
+    private long minStartTime = Long.MAX_VALUE;
+
+    private Tracker(Configuration conf) throws IOException {
+      this.conf = conf;
+      final Path state = new Path(conf.get(CONF_STATE));
+      mark = read(conf);
+      final String attempt = conf.get("mapreduce.task.attempt.id", conf.get("mapred.task.id"));
+      pending = new Path(pendingDir(state),
+          attempt != null ? attempt : "local-" + System.currentTimeMillis());
+      LOG.info("Importing matches above match_seq_num " + mark);
+    }
+
+    /**
+     * @param match, a match about to be imported.
+     * @param context, the context of the task, for the counters.
+     * @return true if the match is above the mark and should be imported.
+     */
+    public boolean accept(ParsedMatch match, KijiContext context) {
+      final long seqNum = match.getMatchSeqNum();
+      if (seqNum <= mark) {
+        context.incrementCounter(Counters.BELOW_WATERMARK);
+        return false;
+      }
+      maxSeqNum = Math.max(maxSeqNum, seqNum);
+      minStartTime = Math.min(minStartTime, match.getStartTime());
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (maxSeqNum < 0) {
+        return;
+      }
+      final Properties props = new Properties();
+      props.setProperty(SEQ_NUM, Long.toString(maxSeqNum));
+      props.setProperty(MIN_START_TIME, Long.toString(minStartTime));
+      store(pending.getFileSystem(conf), pending, props);
+    }
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return a tracker for this task, null if the import is not incremental.
+   */
+  public static Tracker open(Configuration conf) throws IOException {
+    if (conf == null || conf.get(CONF_STATE) == null) {
+      return null;
+    }
+    return new Tracker(conf);
+  }
+
+  /**
+   * PathFilter for the inputs of an import that skips the files of dota_slurp.py that are
+   * entirely at or below the mark. Other names are accepted and filtered match by match.
+   * Set it with -Dmapreduce.input.pathFilter.class (mapred.input.pathFilter.class on MR1).
+   */
+  public static class FilePathFilter implements PathFilter, Configurable {
+    private static final Pattern NAME = Pattern.compile("matches_(\\d+)-(\\d+)(\\..*)?");
+
+    private Configuration conf;
+    private long mark = -1L;
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+      try {
+        mark = read(conf);
+      } catch (IOException ioe) {
+        throw new RuntimeException("Could not read " + conf.get(CONF_STATE), ioe);
+      }
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
+    @Override
+    public boolean accept(Path path) {
+      final Matcher m = NAME.matcher(path.getName());
+      // The files hold [start, end) so the last match they can have is end - 1
+      return !m.matches() || Long.parseLong(m.group(2)) - 1 > mark;
+    }
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new ImportWatermark(), args);
+    System.exit(res);
+  }
+
+  /**
+   * Usage: ImportWatermark (show|commit|discard) &lt;state file&gt;
+   */
+  public final int run(final String[] args) throws Exception {
+    if (args.length != 2) {
+      System.err.println("Usage: ImportWatermark (show|commit|discard) <state file>");
+      return -1;
+    }
+    final Path state = new Path(args[1]);
+    final FileSystem fs = state.getFileSystem(getConf());
+    final Path pendingDir = pendingDir(state);
+    final Properties committed = load(fs, state);
+
+    if ("show".equals(args[0])) {
+      System.out.println(SEQ_NUM + "=" + getLong(committed, SEQ_NUM, -1L));
+      return 0;
+    } else if ("discard".equals(args[0])) {
+      fs.delete(pendingDir, true);
+      return 0;
+    } else if (!"commit".equals(args[0])) {
+      System.err.println("Unknown command " + args[0]);
+      return -1;
+    }
+
+    // Combine what each task imported
+    long maxSeqNum = getLong(committed, SEQ_NUM, -1L);
+    long minStartTime = Long.MAX_VALUE;
+    if (fs.exists(pendingDir)) {
+      for (FileStatus status : fs.listStatus(pendingDir)) {
+        if (status.getPath().getName().startsWith(".")) {
+          continue;
+        }
+        final Properties task = load(fs, status.getPath());
+        maxSeqNum = Math.max(maxSeqNum, getLong(task, SEQ_NUM, -1L));
+        minStartTime = Math.min(minStartTime, getLong(task, MIN_START_TIME, Long.MAX_VALUE));
+      }
+    }
+    if (minStartTime == Long.MAX_VALUE) {
+      System.out.println("Nothing new was imported, " + SEQ_NUM + "=" + maxSeqNum);
+      return 0;
+    }
+    final Properties props = new Properties();
+    props.setProperty(SEQ_NUM, Long.toString(maxSeqNum));
+    props.setProperty(MIN_START_TIME, Long.toString(minStartTime));
+    store(fs, state, props);
+    fs.delete(pendingDir, true);
+    System.out.println(SEQ_NUM + "=" + maxSeqNum);
+    System.out.println("Recompute derived data with -D"
+        + SeriousMatchProducerMR.CONF_SINCE + "=" + minStartTime);
+    return 0;
+  }
+}
@@ -0,0 +1,461 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.mapreduce.KVOutputJob;
+import org.kiji.mapreduce.gather.GathererContext;
+import org.kiji.mapreduce.gather.KijiGatherer;
+import org.kiji.mapreduce.kvstore.KeyValueStoreReader;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Runs a gatherer over only the matches of dota_matches that a MatchIndex expression
+ * selects, reading them with bulk gets rather than scanning the table. For a selective
+ * expression this reads a small fraction of the rows:
+ *
+ * <pre>
+ * hadoop jar target/wibidota-1.0.0.jar com.wibidata.wibidota.IndexedGather \
+ *   -Dwibidota.matches.uri=kiji://.env/wibidota/dota_matches \
+ *   -Dwibidota.index.reducer=org.kiji.mapreduce.lib.reduce.LongSumReducer \
+ *   com.wibidata.wibidota.DotaCheckValues hdfs://path/to/index \
+ *   "game_mode=CAPTAINS_MODE &amp; lobby_type=TOURNAMENT &amp; start_time=1367366400..1370044800" \
+ *   hdfs://path/to/output
+ * </pre>
+ *
+ * The matches can instead be those that started in a range of time, in seconds with the end
+ * exclusive, listed by the dota_match_times table named by wibidota.times.uri (see
+ * MatchTimeIndex). This reads the rows of the range exactly, whatever its bounds:
+ *
+ * <pre>
+ * hadoop jar target/wibidota-1.0.0.jar com.wibidata.wibidota.IndexedGather \
+ *   -Dwibidota.matches.uri=kiji://.env/wibidota/dota_matches \
+ *   -Dwibidota.times.uri=kiji://.env/wibidota/dota_match_times \
+ *   -Dwibidota.index.reducer=org.kiji.mapreduce.lib.reduce.LongSumReducer \
+ *   com.wibidata.wibidota.DotaValueHistogram --times 1370044800..1370066400 \
+ *   hdfs://path/to/output
+ * </pre>
+ *
+ * The selected ids are written to &lt;output&gt;_ids in wibidota.index.splits files (default
+ * 16), each read by one map task that fetches the rows wibidota.index.batch (default 100) at a
+ * time with wibidota.index.fetch.threads (default 4) threads and passes them to the
+ * gatherer. The gatherer's output is reduced with the classes named by
+ * wibidota.index.combiner and wibidota.index.reducer, if set, and written as a sequence file.
+ * The gatherer can not use key-value stores. Since the bitmap index keeps start times by
+ * day, gatherers given a start_time term should still check the start time of their rows
+ * if the range does not fall on bucket boundaries.
+ *
+ * Usage: IndexedGather &lt;gatherer class&gt; &lt;index paths&gt; &lt;expression&gt;
+ * &lt;output&gt;
+ * or IndexedGather &lt;gatherer class&gt; --times &lt;min&gt;..&lt;max&gt; &lt;output&gt;
+ */
+public class IndexedGather extends Configured implements Tool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(IndexedGather.class);
+
+  /** Number of map tasks, the selected ids are split evenly between them. */
+  public static final String CONF_SPLITS = "wibidota.index.splits";
+
+  /** Number of rows read by each bulk get. */
+  public static final String CONF_BATCH = "wibidota.index.batch";
+
+  /** Number of threads each task fetches rows with. */
+  public static final String CONF_FETCH_THREADS = "wibidota.index.fetch.threads";
+
+  /** Class of the combiner, optional. */
+  public static final String CONF_COMBINER = "wibidota.index.combiner";
+
+  /** Class of the reducer, if not set the gatherer's output is written as is. */
+  public static final String CONF_REDUCER = "wibidota.index.reducer";
+
+  // Selects the matches from dota_match_times rather than the bitmap index
+  private static final String TIMES = "--times";
+
+  // Class of the gatherer, set by run() for the mappers
+  static final String CONF_GATHERER = "wibidota.index.gatherer";
+
+  private static final int DEFAULT_SPLITS = 16;
+
+  private static final int DEFAULT_BATCH = 100;
+
+  private static final int DEFAULT_FETCH_THREADS = 4;
+
+  static enum Counters {
+    ROWS_FETCHED,
+    ROWS_MISSING,  // Ids whose row does not exist, see MatchTimeIndex
+    BULK_GETS
+  }
+
+  /**
+   * Lets a gatherer write to and count with the context of a map task.
+   */
+  static final class MapperGathererContext implements GathererContext<Object, Object> {
+    private final Mapper<?, ?, Object, Object>.Context context;
+
+    MapperGathererContext(Mapper<?, ?, Object, Object>.Context context) {
+      this.context = context;
+    }
+
+    @Override
+    public void write(Object key, Object value) throws IOException {
+      try {
+        context.write(key, value);
+      } catch (InterruptedException ie) {
+        throw new IOException(ie);
+      }
+    }
+
+    @Override
+    public <K, V> KeyValueStoreReader<K, V> getStore(String name) throws IOException {
+      throw new IOException("Key-value stores are not available to an indexed gather");
+    }
+
+    @Override
+    public void incrementCounter(Enum<?> counter) {
+      incrementCounter(counter, 1L);
+    }
+
+    @Override
+    public void incrementCounter(Enum<?> counter, long amount) {
+      context.getCounter(counter).increment(amount);
+    }
+
+    @Override
+    public void progress() {
+      context.progress();
+    }
+
+    @Override
+    public void setStatus(String msg) throws IOException {
+      context.setStatus(msg);
+    }
+
+    @Override
+    public String getStatus() {
+      return context.getStatus();
+    }
+
+    @Override
+    public void flush() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+  }
+
+  // Creates the gatherer named in the configuration
+  @SuppressWarnings("unchecked")
+  static KijiGatherer<Object, Object> newGatherer(Configuration conf) throws IOException {
+    try {
+      return ReflectionUtils.newInstance(
+          conf.getClassByName(conf.get(CONF_GATHERER)).asSubclass(KijiGatherer.class), conf);
+    } catch (ClassNotFoundException cnfe) {
+      throw new IOException("No gatherer " + conf.get(CONF_GATHERER), cnfe);
+    }
+  }
+
+  /**
+   * Mapper that reads a file of match ids and runs the gatherer over their rows. The rows
+   * are fetched by a pool of threads, each with its own reader, while the gatherer works
+   * through the batches already fetched in the order of the ids.
+   */
+  public static class GatherMapper extends Mapper<LongWritable, Text, Object, Object> {
+
+    private KijiGatherer<Object, Object> gatherer;
+    private GathererContext<Object, Object> gathererContext;
+    private KijiDataRequest request;
+    private int batchSize;
+    private int threads;
+    private List<Long> batch = new ArrayList<Long>();
+
+    // The fetchers not in use by a thread
+    private final BlockingQueue<MatchFetcher> fetchers = new LinkedBlockingQueue<MatchFetcher>();
+    private final List<MatchFetcher> allFetchers = new ArrayList<MatchFetcher>();
+    private ExecutorService executor;
+
+    // The batches being fetched, oldest first
+    private final LinkedList<Future<List<KijiRowData>>> pending =
+        new LinkedList<Future<List<KijiRowData>>>();
+
+    // The number of ids in each of the pending batches
+    private final LinkedList<Integer> pendingIds = new LinkedList<Integer>();
+
+    @Override
+    protected void setup(Context context) throws IOException {
+      final Configuration conf = context.getConfiguration();
+      gatherer = newGatherer(conf);
+      gathererContext = new MapperGathererContext(context);
+      request = gatherer.getDataRequest();
+      batchSize = conf.getInt(CONF_BATCH, DEFAULT_BATCH);
+      threads = Math.max(1, conf.getInt(CONF_FETCH_THREADS, DEFAULT_FETCH_THREADS));
+      for (int i = 0; i < threads; i++) {
+        final MatchFetcher fetcher = MatchFetcher.fromConf(conf);
+        allFetchers.add(fetcher);
+        fetchers.add(fetcher);
+      }
+      executor = Executors.newFixedThreadPool(threads);
+      gatherer.setup(gathererContext);
+    }
+
+    public void map(LongWritable key, Text value, Context context) throws IOException {
+      batch.add(Long.parseLong(value.toString().trim()));
+      if (batch.size() >= batchSize) {
+        submit();
+        // Keeps every thread busy without holding more than two batches each
+        while (pending.size() > 2 * threads) {
+          gatherNext(context);
+        }
+      }
+    }
+
+    // Starts fetching the current batch
+    private void submit() {
+      if (batch.isEmpty()) {
+        return;
+      }
+      final List<Long> ids = batch;
+      batch = new ArrayList<Long>(batchSize);
+      pendingIds.add(ids.size());
+      pending.add(executor.submit(new Callable<List<KijiRowData>>() {
+        public List<KijiRowData> call() throws IOException, InterruptedException {
+          final MatchFetcher fetcher = fetchers.take();
+          try {
+            return fetcher.fetch(ids, request);
+          } finally {
+            fetchers.put(fetcher);
+          }
+        }
+      }));
+    }
+
+    // Waits for the oldest batch and gathers its rows
+    private void gatherNext(Context context) throws IOException {
+      final List<KijiRowData> rows;
+      final int ids = pendingIds.removeFirst();
+      try {
+        rows = pending.removeFirst().get();
+      } catch (InterruptedException ie) {
+        throw new IOException(ie);
+      } catch (ExecutionException ee) {
+        if (ee.getCause() instanceof IOException) {
+          throw (IOException) ee.getCause();
+        }
+        throw new IOException(ee.getCause());
+      }
+      context.getCounter(Counters.BULK_GETS).increment(1);
+      context.getCounter(Counters.ROWS_FETCHED).increment(rows.size());
+      context.getCounter(Counters.ROWS_MISSING).increment(ids - rows.size());
+      for (KijiRowData row : rows) {
+        gatherer.gather(row, gathererContext);
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context) throws IOException {
+      try {
+        submit();
+        while (!pending.isEmpty()) {
+          gatherNext(context);
+        }
+        gatherer.cleanup(gathererContext);
+      } finally {
+        executor.shutdownNow();
+        IOException closeError = null;
+        for (MatchFetcher fetcher : allFetchers) {
+          try {
+            fetcher.close();
+          } catch (IOException ioe) {
+            closeError = ioe;
+          }
+        }
+        if (closeError != null) {
+          throw closeError;
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes ids to files of about equal size, one id per line, keeping them in order so each
+   * task reads a contiguous run of them.
+   *
+   * @param ids, the ids to write in increasing order.
+   * @param count, the number of ids.
+   * @param dir, the directory to write the files to, replaced if it exists.
+   * @param splits, the number of files.
+   * @param conf, the job configuration.
+   */
+  static void writeIds(MatchIdBitmap.IdIterator ids, long count, Path dir, int splits,
+      Configuration conf) throws IOException {
+    final FileSystem fs = dir.getFileSystem(conf);
+    fs.delete(dir, true);
+    // Created even if there are no ids, so the job has an input
+    fs.mkdirs(dir);
+    final long perSplit = Math.max(1L, (count + splits - 1) / splits);
+    Writer out = null;
+    long written = 0;
+    try {
+      while (ids.hasNext()) {
+        if (written % perSplit == 0) {
+          if (out != null) {
+            out.close();
+          }
+          final Path file = new Path(dir, String.format("ids-%05d", written / perSplit));
+          out = new OutputStreamWriter(fs.create(file), "UTF-8");
+        }
+        out.write(Long.toString(ids.next()));
+        out.write('\n');
+        written++;
+      }
+    } finally {
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+
+  /**
+   * Runs a gatherer over the matches whose ids are in a directory written by writeIds().
+   *
+   * @param gatherer, the class of the gatherer.
+   * @param ids, the directory of ids.
+   * @param output, where to write the output.
+   * @return whether the job succeeded.
+   */
+  boolean runGather(String gatherer, Path ids, Path output) throws Exception {
+    final Configuration conf = getConf();
+    conf.set(CONF_GATHERER, gatherer);
+    final KijiGatherer<Object, Object> instance = newGatherer(conf);
+    Job job = new Job(conf, "Indexed gather " + gatherer);
+    job.setJarByClass(IndexedGather.class);
+
+    job.setInputFormatClass(TextInputFormat.class);
+    // One task per file of ids
+    FileInputFormat.setMinInputSplitSize(job, Long.MAX_VALUE);
+    FileInputFormat.addInputPath(job, ids);
+
+    job.setMapperClass(GatherMapper.class);
+    job.setMapOutputKeyClass(instance.getOutputKeyClass());
+    job.setMapOutputValueClass(instance.getOutputValueClass());
+    job.setOutputKeyClass(instance.getOutputKeyClass());
+    job.setOutputValueClass(instance.getOutputValueClass());
+    if (conf.get(CONF_COMBINER) != null) {
+      job.setCombinerClass(conf.getClassByName(conf.get(CONF_COMBINER))
+          .asSubclass(Reducer.class));
+    }
+    if (conf.get(CONF_REDUCER) != null) {
+      @SuppressWarnings("unchecked")
+      final Class<? extends Reducer<?, ?, ?, ?>> reducer = (Class<? extends Reducer<?, ?, ?, ?>>)
+          conf.getClassByName(conf.get(CONF_REDUCER)).asSubclass(Reducer.class);
+      job.setReducerClass(reducer);
+      // Created from the job's configuration, which has the map output classes that
+      // reducers such as LongSumReducer pass their keys through as
+      final Reducer<?, ?, ?, ?> reducerInstance =
+          ReflectionUtils.newInstance(reducer, job.getConfiguration());
+      if (reducerInstance instanceof KVOutputJob) {
+        final Class<?> keyClass = ((KVOutputJob) reducerInstance).getOutputKeyClass();
+        final Class<?> valueClass = ((KVOutputJob) reducerInstance).getOutputValueClass();
+        if (keyClass != null) {
+          job.setOutputKeyClass(keyClass);
+        }
+        if (valueClass != null) {
+          job.setOutputValueClass(valueClass);
+        }
+      }
+    } else {
+      job.setNumReduceTasks(0);
+    }
+
+    job.setOutputFormatClass(SequenceFileOutputFormat.class);
+    FileOutputFormat.setOutputPath(job, output);
+    return job.waitForCompletion(true);
+  }
+
+  public static void main(String args[]) throws Exception {
+    Configuration conf = new Configuration();
+    int res = ToolRunner.run(conf, new IndexedGather(), args);
+    System.exit(res);
+  }
+
+  public final int run(final String[] args) throws Exception {
+    if (args.length != 4) {
+      System.err.println(
+          "Usage: IndexedGather <gatherer class> <index paths> <expression> <output>\n"
+          + "       IndexedGather <gatherer class> --times <min>..<max> <output>");
+      return -1;
+    }
+    final Configuration conf = getConf();
+    final MatchIdBitmap selected;
+    if (TIMES.equals(args[1])) {
+      final int dots = args[2].indexOf("..");
+      if (dots < 0) {
+        System.err.println("Expected a range of start times <min>..<max>: " + args[2]);
+        return -1;
+      }
+      selected = MatchTimeIndex.select(conf, Long.parseLong(args[2].substring(0, dots)),
+          Long.parseLong(args[2].substring(dots + 2)));
+    } else {
+      selected = MatchIndex.read(args[1], conf).select(args[2]);
+    }
+    LOG.info(args[2] + " selects " + selected.getCardinality() + " matches");
+    final Path output = new Path(args[3]);
+    final Path ids = new Path(output.getParent(), output.getName() + "_ids");
+    writeIds(selected.iterator(), selected.getCardinality(), ids,
+        conf.getInt(CONF_SPLITS, DEFAULT_SPLITS), conf);
+    try {
+      return runGather(args[0], ids, output) ? 0 : -1;
+    } finally {
+      ids.getFileSystem(conf).delete(ids, true);
+    }
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
+import org.apache.avro.Schema;
+
+/**
+ * Resolves the names of the fields of the raw JSON to the fields of MatchHeader and Player,
+ * for the jobs that take field names from their users. The importers rename a few fields
+ * (leagueid is league_id, xp_per_min is exp_per_minute...), both names are accepted.
+ */
+final class JsonNames {
+
+  private static final Map<String, String> MATCH_NAMES = new HashMap<String, String>();
+
+  private static final Map<String, String> PLAYER_NAMES = new HashMap<String, String>();
+
+  static {
+    MATCH_NAMES.put("leagueid", "league_id");
+    MATCH_NAMES.put("tower_status_dire", "dire_towers_status");
+    MATCH_NAMES.put("tower_status_radiant", "radiant_towers_status");
+    MATCH_NAMES.put("barracks_status_dire", "dire_barracks_status");
+    MATCH_NAMES.put("barracks_status_radiant", "radiant_barracks_status");
+    PLAYER_NAMES.put("xp_per_min", "exp_per_minute");
+    PLAYER_NAMES.put("gold_per_min", "gold_per_minute");
+  }
+
+  // This utility class should not be instantiated
+  private JsonNames() {}
+
+  private static Schema.Field resolve(Schema schema, Map<String, String> names, String name) {
+    final String renamed = names.get(name);
+    final Schema.Field field = schema.getField(renamed != null ? renamed : name);
+    if (field == null) {
+      throw new IllegalArgumentException(schema.getName() + " has no field " + name
+          + (name.startsWith("item_") ? ", the items are in item_ids" : ""));
+    }
+    return field;
+  }
+
+  /**
+   * @param name, the name of a match field in the JSON or in MatchHeader.
+   * @return the field of MatchHeader.
+   * @throws IllegalArgumentException if MatchHeader has no such field.
+   */
+  static Schema.Field matchField(String name) {
+    return resolve(MatchHeader.SCHEMA$, MATCH_NAMES, name);
+  }
+
+  /**
+   * @param name, the name of a player field in the JSON or in Player.
+   * @return the field of Player.
+   * @throws IllegalArgumentException if Player has no such field.
+   */
+  static Schema.Field playerField(String name) {
+    return resolve(Player.SCHEMA$, PLAYER_NAMES, name);
+  }
+}
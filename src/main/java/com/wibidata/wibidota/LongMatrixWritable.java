@@ -0,0 +1,151 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A square matrix of longs, such as counts indexed by hero_id, that grows as larger indexes
+ * are used. Written as its size and a variable length long per cell, so the cells that are
+ * zero or small take a byte each.
+ */
+public class LongMatrixWritable implements Writable {
+
+  private int size;
+  private long[] cells;
+
+  public LongMatrixWritable() {
+    this(0);
+  }
+
+  /**
+   * @param size, the number of rows and columns to start with.
+   */
+  public LongMatrixWritable(int size) {
+    this.size = size;
+    cells = new long[size * size];
+  }
+
+  /**
+   * @return the number of rows and columns.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * @return the cell at the given row and column, 0 if outside the matrix.
+   */
+  public long get(int row, int column) {
+    return row < size && column < size ? cells[row * size + column] : 0L;
+  }
+
+  /**
+   * Adds to the cell at the given row and column, growing the matrix if needed.
+   */
+  public void add(int row, int column, long n) {
+    final int needed = Math.max(row, column) + 1;
+    if (needed > size) {
+      grow(Math.max(needed, size * 2));
+    }
+    cells[row * size + column] += n;
+  }
+
+  /**
+   * Adds another matrix to this one cell by cell, growing this one if needed.
+   */
+  public void add(LongMatrixWritable other) {
+    if (other.size > size) {
+      grow(other.size);
+    }
+    for (int r = 0; r < other.size; r++) {
+      final int from = r * other.size;
+      final int to = r * size;
+      for (int c = 0; c < other.size; c++) {
+        cells[to + c] += other.cells[from + c];
+      }
+    }
+  }
+
+  /**
+   * Sets every cell to 0.
+   */
+  public void clear() {
+    Arrays.fill(cells, 0L);
+  }
+
+  private void grow(int newSize) {
+    final long[] grown = new long[newSize * newSize];
+    for (int r = 0; r < size; r++) {
+      System.arraycopy(cells, r * size, grown, r * newSize, size);
+    }
+    size = newSize;
+    cells = grown;
+  }
+
+  /**
+   * Writes the matrix as comma separated values, a header row of the column indexes and
+   * then each row prefixed by its index.
+   *
+   * @param out, where to write.
+   */
+  public void writeCsv(Writer out) throws IOException {
+    out.write("id");
+    for (int c = 0; c < size; c++) {
+      out.write(",");
+      out.write(Integer.toString(c));
+    }
+    out.write("\n");
+    for (int r = 0; r < size; r++) {
+      out.write(Integer.toString(r));
+      for (int c = 0; c < size; c++) {
+        out.write(",");
+        out.write(Long.toString(cells[r * size + c]));
+      }
+      out.write("\n");
+    }
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    for (long cell : cells) {
+      WritableUtils.writeVLong(out, cell);
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    final int newSize = WritableUtils.readVInt(in);
+    if (newSize != size) {
+      size = newSize;
+      cells = new long[size * size];
+    }
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = WritableUtils.readVLong(in);
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.wibidata.wibidota.avro.PlayerMatch;
+import org.apache.hadoop.conf.Configuration;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+import org.kiji.schema.KijiURI;
+
+/**
+ * Reads the full match behind a PlayerMatch from the dota_matches table, for jobs over a
+ * compact dota_players table that need more than the PlayerMatch holds, or the matches
+ * IndexedGather selects. Must be closed once done.
+ */
+public final class MatchFetcher implements Closeable {
+
+  /** URI of the dota_matches table, for jobs that fetch matches. */
+  public static final String CONF_MATCHES_URI = "wibidota.matches.uri";
+
+  private final Kiji kiji;
+  private final KijiTable table;
+  private final KijiTableReader reader;
+
+  /**
+   * @param uri, the URI of the dota_matches table.
+   * @param conf, the configuration to connect with.
+   */
+  public MatchFetcher(KijiURI uri, Configuration conf) throws IOException {
+    kiji = Kiji.Factory.open(uri, conf);
+    table = kiji.openTable(uri.getTable());
+    reader = table.openTableReader();
+  }
+
+  /**
+   * Opens the dota_matches table named by wibidota.matches.uri.
+   *
+   * @param conf, the job configuration.
+   * @return the fetcher.
+   */
+  public static MatchFetcher fromConf(Configuration conf) throws IOException {
+    final String uri = conf.get(CONF_MATCHES_URI);
+    if (uri == null) {
+      throw new IOException(CONF_MATCHES_URI + " must be set to fetch matches");
+    }
+    return new MatchFetcher(KijiURI.newBuilder(uri).build(), conf);
+  }
+
+  /**
+   * @param matchId, the id of the match.
+   * @param request, the columns of dota_matches to read.
+   * @return the row of the match.
+   */
+  public KijiRowData fetch(long matchId, KijiDataRequest request) throws IOException {
+    return reader.get(table.getEntityId(matchId), request);
+  }
+
+  /**
+   * Reads several matches with one bulk get. The ids may come from dota_match_times, which is
+   * written apart from dota_matches (see MatchTimeIndex), so the rows that hold none of the
+   * requested columns are taken to be matches that were never loaded and are left out.
+   *
+   * @param matchIds, the ids of the matches.
+   * @param request, the columns of dota_matches to read.
+   * @return the rows of the matches that exist, in the order of the ids.
+   */
+  public List<KijiRowData> fetch(List<Long> matchIds, KijiDataRequest request)
+      throws IOException {
+    final List<EntityId> eids = new ArrayList<EntityId>(matchIds.size());
+    for (Long matchId : matchIds) {
+      eids.add(table.getEntityId(matchId));
+    }
+    final List<KijiRowData> rows = new ArrayList<KijiRowData>(eids.size());
+    for (KijiRowData row : reader.bulkGet(eids, request)) {
+      if (row != null && hasAnyColumn(row, request)) {
+        rows.add(row);
+      }
+    }
+    return rows;
+  }
+
+  // Whether the row holds any of the requested columns
+  private static boolean hasAnyColumn(KijiRowData row, KijiDataRequest request) {
+    for (KijiDataRequest.Column column : request.getColumns()) {
+      final boolean found = column.getQualifier() == null
+          ? row.containsColumn(column.getFamily())
+          : row.containsColumn(column.getFamily(), column.getQualifier());
+      if (found) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param playerMatch, a match from a compact dota_players row.
+   * @param request, the columns of dota_matches to read.
+   * @return the row of the match.
+   */
+  public KijiRowData fetch(PlayerMatch playerMatch, KijiDataRequest request)
+      throws IOException {
+    return fetch(playerMatch.getMatchId(), request);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      reader.close();
+    } finally {
+      table.release();
+      kiji.release();
+    }
+  }
+}
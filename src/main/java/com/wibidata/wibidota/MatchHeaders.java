@@ -0,0 +1,132 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+
+import com.wibidata.wibidota.avro.MatchHeader;
+import org.apache.avro.Schema;
+import org.apache.hadoop.conf.Configuration;
+
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Reads the scalar fields of a match from the dota_matches table.
+ *
+ * <p>Matches can be stored either with one cell per field (the original layout) or with all
+ * of them packed into a single MatchHeader in the data:header column, which is what the
+ * importers write when wibidota.matches.packed.header is true. Jobs reading the table set the
+ * same property to request only the header column.
+ */
+public final class MatchHeaders {
+
+  /** True if the scalar fields of the matches are packed into data:header. */
+  public static final String CONF_PACKED = "wibidota.matches.packed.header";
+
+  /** Column holding the packed header. */
+  public static final String HEADER_COLUMN = "header";
+
+  // The scalar columns, these match the fields of MatchHeader except for match_id
+  // which is only part of the row key
+  private static final String[] COLUMNS = new String[]{
+      "match_seq_num", "start_time", "game_mode", "lobby_type", "dire_towers_status",
+      "radiant_towers_status", "dire_barracks_status", "radiant_barracks_status", "cluster",
+      "season", "league_id", "first_blood_time", "negative_votes", "positive_votes",
+      "duration", "radiant_win", "human_players"
+  };
+
+  // This utility class should not be instantiated
+  private MatchHeaders() {}
+
+  /**
+   * @param conf, the job configuration.
+   * @return true if the job should read packed headers.
+   */
+  public static boolean isPacked(Configuration conf) {
+    return conf != null && conf.getBoolean(CONF_PACKED, false);
+  }
+
+  /**
+   * Adds the columns needed to read the header of a match to a request.
+   *
+   * @param def, the columns being requested.
+   * @param packed, true to request data:header rather than the scalar columns.
+   * @return def
+   */
+  public static KijiDataRequestBuilder.ColumnsDef addColumns(
+      KijiDataRequestBuilder.ColumnsDef def, boolean packed) {
+    if (packed) {
+      def.add("data", HEADER_COLUMN);
+    } else {
+      for (String column : COLUMNS) {
+        def.add("data", column);
+      }
+    }
+    return def;
+  }
+
+  /**
+   * Reads the most recent header of a match. Uses data:header if the row has it and
+   * the scalar columns otherwise, columns that are missing are left at zero (or null for
+   * season).
+   *
+   * @param row, a row of dota_matches requested with addColumns().
+   * @return the header, null if the row has none of its columns.
+   */
+  public static MatchHeader read(KijiRowData row) throws IOException {
+    if (row.containsColumn("data", HEADER_COLUMN)) {
+      return row.getMostRecentValue("data", HEADER_COLUMN);
+    }
+    final MatchHeader header = new MatchHeader();
+    boolean found = false;
+    for (String column : COLUMNS) {
+      final Object value = row.getMostRecentValue("data", column);
+      if (value != null) {
+        header.put(header.getSchema().getField(column).pos(), value);
+        found = true;
+      }
+    }
+    if (!found) {
+      return null;
+    }
+    header.setMatchId(row.getEntityId().<Long>getComponentByIndex(0));
+    return header;
+  }
+
+  /**
+   * Gets a field of a header by its column name.
+   *
+   * @param header, the header.
+   * @param column, the name of a dota_matches column such as game_mode.
+   * @return the value, null if the header has no such field.
+   */
+  public static Object get(MatchHeader header, String column) {
+    final Schema.Field field = header.getSchema().getField(column);
+    return field == null ? null : header.get(field.pos());
+  }
+
+  /**
+   * @param column, the name of a dota_matches column.
+   * @return true if that column is part of the header.
+   */
+  public static boolean isHeaderColumn(String column) {
+    return MatchHeader.SCHEMA$.getField(column) != null;
+  }
+}
@@ -0,0 +1,253 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.wibidata.wibidota.avro.MatchHistory;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.PlayerMatch;
+import org.apache.hadoop.conf.Configuration;
+
+import org.kiji.mapreduce.produce.KijiProducer;
+import org.kiji.mapreduce.produce.ProducerContext;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Packs the matches of each player in dota_players into one MatchHistory in history:matches,
+ * so analyses over a player's timeline such as StreakCounter read a single cell rather than
+ * several per match. Reads data:match if wibidota.players.compact is true.
+ *
+ * A player that already has a history only has the matches it lacks added, which are found
+ * by their timestamps (the start time of the match) so the cells of the other matches are
+ * never decoded. Only a cell whose timestamp the history already has is read, to compare
+ * its match id, as two matches may start at the same time. Rows with nothing to add are not
+ * written.
+ */
+public class MatchHistoryProducer extends KijiProducer {
+
+  /** True for jobs to read history:matches instead of the per match columns. */
+  public static final String CONF_USE_HISTORY = "wibidota.players.history";
+
+  public static final String FAMILY = "history";
+
+  public static final String COLUMN = "matches";
+
+  static enum Counters {
+    PLAYERS,        // Histories written
+    MATCHES_ADDED,  // Matches added to the histories
+    OUT_OF_ORDER    // Histories that had a match added before their last one
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return true if jobs should read the histories.
+   */
+  public static boolean useHistory(Configuration conf) {
+    return conf != null && conf.getBoolean(CONF_USE_HISTORY, false);
+  }
+
+  // One match of the player
+  private static final class Entry implements Comparable<Entry> {
+    private long startTime;
+    private long matchId;
+    private int duration;
+    private int gameMode;
+    private int lobbyType;
+    private boolean win;
+    private int heroId;
+    private int leaverStatus;
+
+    @Override
+    public int compareTo(Entry other) {
+      if (startTime != other.startTime) {
+        return startTime < other.startTime ? -1 : 1;
+      }
+      return matchId < other.matchId ? -1 : (matchId == other.matchId ? 0 : 1);
+    }
+  }
+
+  @Override
+  public KijiDataRequest getDataRequest() {
+    KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    builder.addColumns(builder.newColumnsDef().withMaxVersions(1).add(FAMILY, COLUMN));
+    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef()
+        .withMaxVersions(Integer.MAX_VALUE);
+    if (DotaPlayersBulkImporter.isCompact(getConf())) {
+      def.add("data", DotaPlayersBulkImporter.MATCH_COLUMN);
+    } else {
+      def.add("data", "match_id")
+          .add("data", "radiant_win")
+          .add("data", "game_mode")
+          .add("data", "duration")
+          .add("data", "lobby_type")
+          .add("data", "player");
+    }
+    return builder.addColumns(def).build();
+  }
+
+  @Override
+  public String getOutputColumn() {
+    return FAMILY + ":" + COLUMN;
+  }
+
+  // Reads the match a player played at the given time
+  private static Entry readEntry(KijiRowData row, long time, boolean compact)
+      throws IOException {
+    final Entry entry = new Entry();
+    entry.startTime = time;
+    final Player self;
+    final boolean radiantWin;
+    if (compact) {
+      final PlayerMatch match = row.getValue("data", DotaPlayersBulkImporter.MATCH_COLUMN, time);
+      entry.matchId = match.getMatchId();
+      entry.duration = match.getDuration();
+      entry.gameMode = match.getGameMode();
+      entry.lobbyType = match.getLobbyType();
+      radiantWin = match.getRadiantWin();
+      self = match.getPlayer();
+    } else {
+      entry.matchId = row.<Long>getValue("data", "match_id", time);
+      entry.duration = row.<Integer>getValue("data", "duration", time);
+      entry.gameMode = row.<Integer>getValue("data", "game_mode", time);
+      final Integer lobbyType = row.getValue("data", "lobby_type", time);
+      entry.lobbyType = lobbyType == null ? -1 : lobbyType;
+      radiantWin = row.<Boolean>getValue("data", "radiant_win", time);
+      self = row.getValue("data", "player", time);
+    }
+    entry.win = radiantWin == DotaValues.radiantPlayer(self.getPlayerSlot());
+    entry.heroId = self.getHeroId();
+    entry.leaverStatus = self.getLeaverStatus() == null ? -1 : self.getLeaverStatus();
+    return entry;
+  }
+
+  // Whether the history holds the match the player played at the given time
+  private static boolean contains(MatchHistory history, KijiRowData row, long time,
+      boolean compact) throws IOException {
+    final List<Long> startTimes = history.getStartTime();
+    final int i = Collections.binarySearch(startTimes, time);
+    if (i < 0) {
+      return false;
+    }
+    final long matchId = compact
+        ? row.<PlayerMatch>getValue("data", DotaPlayersBulkImporter.MATCH_COLUMN, time)
+            .getMatchId()
+        : row.<Long>getValue("data", "match_id", time);
+    // The matches that started at the same time are next to each other
+    int first = i;
+    while (first > 0 && startTimes.get(first - 1) == time) {
+      first--;
+    }
+    for (int j = first; j < startTimes.size() && startTimes.get(j) == time; j++) {
+      if (history.getMatchId().get(j) == matchId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Reads the entries of an existing history
+  private static List<Entry> readHistory(MatchHistory history) {
+    final int n = history.getStartTime().size();
+    final List<Entry> entries = new ArrayList<Entry>(n);
+    for (int i = 0; i < n; i++) {
+      final Entry entry = new Entry();
+      entry.startTime = history.getStartTime().get(i);
+      entry.matchId = history.getMatchId().get(i);
+      entry.duration = history.getDuration().get(i);
+      entry.gameMode = history.getGameMode().get(i);
+      entry.lobbyType = history.getLobbyType().get(i);
+      entry.win = history.getWin().get(i);
+      entry.heroId = history.getHeroId().get(i);
+      entry.leaverStatus = history.getLeaverStatus().get(i);
+      entries.add(entry);
+    }
+    return entries;
+  }
+
+  @Override
+  public void produce(KijiRowData row, ProducerContext context) throws IOException {
+    final boolean compact = DotaPlayersBulkImporter.isCompact(getConf());
+    final String timeColumn = compact ? DotaPlayersBulkImporter.MATCH_COLUMN : "player";
+    final MatchHistory old = row.containsColumn(FAMILY, COLUMN)
+        ? row.<MatchHistory>getMostRecentValue(FAMILY, COLUMN) : null;
+    final List<Entry> entries = old == null ? new ArrayList<Entry>() : readHistory(old);
+    final long last = entries.isEmpty() ? Long.MIN_VALUE
+        : entries.get(entries.size() - 1).startTime;
+
+    // Most new matches come after the last one in the history, the rest are looked up in it
+    int added = 0;
+    boolean outOfOrder = false;
+    for (Long time : row.getTimestamps("data", timeColumn).descendingSet()) {
+      if (time <= last) {
+        if (contains(old, row, time, compact)) {
+          continue;
+        }
+        outOfOrder = true;
+      }
+      entries.add(readEntry(row, time, compact));
+      added++;
+    }
+    if (added == 0) {
+      return;
+    }
+    if (outOfOrder) {
+      Collections.sort(entries);
+      context.incrementCounter(Counters.OUT_OF_ORDER);
+    }
+
+    final int n = entries.size();
+    final List<Long> startTimes = new ArrayList<Long>(n);
+    final List<Long> matchIds = new ArrayList<Long>(n);
+    final List<Integer> durations = new ArrayList<Integer>(n);
+    final List<Integer> gameModes = new ArrayList<Integer>(n);
+    final List<Integer> lobbyTypes = new ArrayList<Integer>(n);
+    final List<Boolean> wins = new ArrayList<Boolean>(n);
+    final List<Integer> heroIds = new ArrayList<Integer>(n);
+    final List<Integer> leaverStatuses = new ArrayList<Integer>(n);
+    for (Entry entry : entries) {
+      startTimes.add(entry.startTime);
+      matchIds.add(entry.matchId);
+      durations.add(entry.duration);
+      gameModes.add(entry.gameMode);
+      lobbyTypes.add(entry.lobbyType);
+      wins.add(entry.win);
+      heroIds.add(entry.heroId);
+      leaverStatuses.add(entry.leaverStatus);
+    }
+    final MatchHistory history = MatchHistory.newBuilder()
+        .setStartTime(startTimes)
+        .setMatchId(matchIds)
+        .setDuration(durations)
+        .setGameMode(gameModes)
+        .setLobbyType(lobbyTypes)
+        .setWin(wins)
+        .setHeroId(heroIds)
+        .setLeaverStatus(leaverStatuses)
+        .build();
+    context.put(startTimes.get(n - 1), history);
+    context.incrementCounter(Counters.PLAYERS);
+    context.incrementCounter(Counters.MATCHES_ADDED, added);
+  }
+}
@@ -0,0 +1,486 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * A compressed set of match ids, split Roaring style into chunks of 2^16 ids that share
+ * their high bits. A chunk with few ids keeps them as a sorted array of their low 16 bits,
+ * a fuller one as a 2^16 bit bitmap, so the set takes at most about two bytes per id and
+ * 8KB per chunk. Sets are combined chunk by chunk with and(), or() and andNot(), which
+ * return new sets and leave their arguments alone.
+ */
+public class MatchIdBitmap implements Writable {
+
+  // Chunks with more ids than this are kept as bitmaps, where an array would be larger
+  private static final int MAX_ARRAY = 4096;
+
+  private static final int BITMAP_WORDS = 1 << 10;
+
+  // The chunks in order of their high bits, each either an array or a bitmap
+  private int size;
+  private long[] highs = new long[4];
+  private char[][] arrays = new char[4][];
+  private long[][] bitmaps = new long[4][];
+  private int[] cards = new int[4];
+
+  /**
+   * Iterates over the ids of a set in increasing order.
+   */
+  public interface IdIterator {
+    boolean hasNext();
+
+    long next();
+  }
+
+  // Finds the chunk with the given high bits, or -(insertion point) - 1
+  private int find(long high) {
+    int lo = 0;
+    int hi = size - 1;
+    while (lo <= hi) {
+      final int mid = (lo + hi) >>> 1;
+      if (highs[mid] < high) {
+        lo = mid + 1;
+      } else if (highs[mid] > high) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  // Appends a chunk, which must come after the last one and not be empty
+  private void append(long high, char[] array, long[] bitmap, int card) {
+    insert(size, high, array, bitmap, card);
+  }
+
+  private void insert(int i, long high, char[] array, long[] bitmap, int card) {
+    if (size == highs.length) {
+      final int capacity = 2 * size;
+      highs = Arrays.copyOf(highs, capacity);
+      arrays = Arrays.copyOf(arrays, capacity);
+      bitmaps = Arrays.copyOf(bitmaps, capacity);
+      cards = Arrays.copyOf(cards, capacity);
+    }
+    System.arraycopy(highs, i, highs, i + 1, size - i);
+    System.arraycopy(arrays, i, arrays, i + 1, size - i);
+    System.arraycopy(bitmaps, i, bitmaps, i + 1, size - i);
+    System.arraycopy(cards, i, cards, i + 1, size - i);
+    highs[i] = high;
+    arrays[i] = array;
+    bitmaps[i] = bitmap;
+    cards[i] = card;
+    size++;
+  }
+
+  /**
+   * Adds an id to the set.
+   */
+  public void add(long id) {
+    final long high = id >>> 16;
+    final char low = (char) id;
+    int i = find(high);
+    if (i < 0) {
+      i = -i - 1;
+      insert(i, high, new char[4], null, 0);
+    }
+    if (bitmaps[i] != null) {
+      final long[] bitmap = bitmaps[i];
+      final long bit = 1L << low;
+      if ((bitmap[low >>> 6] & bit) == 0) {
+        bitmap[low >>> 6] |= bit;
+        cards[i]++;
+      }
+      return;
+    }
+    final int at = Arrays.binarySearch(arrays[i], 0, cards[i], low);
+    if (at >= 0) {
+      return;
+    }
+    final int card = cards[i];
+    if (card == MAX_ARRAY) {
+      final long[] bitmap = toBitmap(arrays[i], card);
+      bitmap[low >>> 6] |= 1L << low;
+      arrays[i] = null;
+      bitmaps[i] = bitmap;
+      cards[i]++;
+      return;
+    }
+    char[] array = arrays[i];
+    if (card == array.length) {
+      array = Arrays.copyOf(array, Math.min(MAX_ARRAY, 2 * card));
+      arrays[i] = array;
+    }
+    final int insertAt = -at - 1;
+    System.arraycopy(array, insertAt, array, insertAt + 1, card - insertAt);
+    array[insertAt] = low;
+    cards[i]++;
+  }
+
+  /**
+   * @return whether the set holds the id.
+   */
+  public boolean contains(long id) {
+    final int i = find(id >>> 16);
+    if (i < 0) {
+      return false;
+    }
+    final char low = (char) id;
+    if (bitmaps[i] != null) {
+      return (bitmaps[i][low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch(arrays[i], 0, cards[i], low) >= 0;
+  }
+
+  /** @return the number of ids in the set. */
+  public long getCardinality() {
+    long cardinality = 0;
+    for (int i = 0; i < size; i++) {
+      cardinality += cards[i];
+    }
+    return cardinality;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private static long[] toBitmap(char[] array, int card) {
+    final long[] bitmap = new long[BITMAP_WORDS];
+    for (int j = 0; j < card; j++) {
+      bitmap[array[j] >>> 6] |= 1L << array[j];
+    }
+    return bitmap;
+  }
+
+  private static char[] toArray(long[] bitmap, int card) {
+    final char[] array = new char[card];
+    int n = 0;
+    for (int w = 0; w < BITMAP_WORDS; w++) {
+      long word = bitmap[w];
+      while (word != 0) {
+        array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return array;
+  }
+
+  private static int cardinality(long[] bitmap) {
+    int card = 0;
+    for (long word : bitmap) {
+      card += Long.bitCount(word);
+    }
+    return card;
+  }
+
+  // Appends a chunk built as a bitmap, as an array if it is small enough
+  private void appendBitmap(long high, long[] bitmap) {
+    final int card = cardinality(bitmap);
+    if (card > MAX_ARRAY) {
+      append(high, null, bitmap, card);
+    } else if (card > 0) {
+      append(high, toArray(bitmap, card), null, card);
+    }
+  }
+
+  // Appends chunk i of a set unchanged
+  private void appendCopy(MatchIdBitmap from, int i) {
+    append(from.highs[i],
+        from.arrays[i] == null ? null : Arrays.copyOf(from.arrays[i], from.cards[i]),
+        from.bitmaps[i] == null ? null : from.bitmaps[i].clone(),
+        from.cards[i]);
+  }
+
+  private long[] bitmapOf(int i) {
+    return bitmaps[i] != null ? bitmaps[i].clone() : toBitmap(arrays[i], cards[i]);
+  }
+
+  /**
+   * @return the ids in either set.
+   */
+  public static MatchIdBitmap or(MatchIdBitmap a, MatchIdBitmap b) {
+    final MatchIdBitmap out = new MatchIdBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size || j < b.size) {
+      if (j == b.size || (i < a.size && a.highs[i] < b.highs[j])) {
+        out.appendCopy(a, i++);
+      } else if (i == a.size || b.highs[j] < a.highs[i]) {
+        out.appendCopy(b, j++);
+      } else {
+        if (a.bitmaps[i] == null && b.bitmaps[j] == null
+            && a.cards[i] + b.cards[j] <= MAX_ARRAY) {
+          final char[] merged = new char[a.cards[i] + b.cards[j]];
+          final int n = union(a.arrays[i], a.cards[i], b.arrays[j], b.cards[j], merged);
+          out.append(a.highs[i], merged, null, n);
+        } else {
+          final long[] bitmap = a.bitmapOf(i);
+          if (b.bitmaps[j] != null) {
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+              bitmap[w] |= b.bitmaps[j][w];
+            }
+          } else {
+            for (int k = 0; k < b.cards[j]; k++) {
+              bitmap[b.arrays[j][k] >>> 6] |= 1L << b.arrays[j][k];
+            }
+          }
+          out.appendBitmap(a.highs[i], bitmap);
+        }
+        i++;
+        j++;
+      }
+    }
+    return out;
+  }
+
+  private static int union(char[] a, int aCard, char[] b, int bCard, char[] out) {
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < aCard && j < bCard) {
+      if (a[i] < b[j]) {
+        out[n++] = a[i++];
+      } else if (b[j] < a[i]) {
+        out[n++] = b[j++];
+      } else {
+        out[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < aCard) {
+      out[n++] = a[i++];
+    }
+    while (j < bCard) {
+      out[n++] = b[j++];
+    }
+    return n;
+  }
+
+  /**
+   * @return the ids in both sets.
+   */
+  public static MatchIdBitmap and(MatchIdBitmap a, MatchIdBitmap b) {
+    final MatchIdBitmap out = new MatchIdBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < a.size && j < b.size) {
+      if (a.highs[i] < b.highs[j]) {
+        i++;
+      } else if (b.highs[j] < a.highs[i]) {
+        j++;
+      } else {
+        if (a.bitmaps[i] != null && b.bitmaps[j] != null) {
+          final long[] bitmap = new long[BITMAP_WORDS];
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            bitmap[w] = a.bitmaps[i][w] & b.bitmaps[j][w];
+          }
+          out.appendBitmap(a.highs[i], bitmap);
+        } else if (a.bitmaps[i] != null || b.bitmaps[j] != null) {
+          // Keep the ids of the array that are in the bitmap
+          final MatchIdBitmap arraySet = a.bitmaps[i] == null ? a : b;
+          final int k = a.bitmaps[i] == null ? i : j;
+          final long[] bitmap = a.bitmaps[i] == null ? b.bitmaps[j] : a.bitmaps[i];
+          out.appendFiltered(a.highs[i], arraySet.arrays[k], arraySet.cards[k], bitmap, true);
+        } else {
+          final char[] common = new char[Math.min(a.cards[i], b.cards[j])];
+          int x = 0;
+          int y = 0;
+          int n = 0;
+          while (x < a.cards[i] && y < b.cards[j]) {
+            if (a.arrays[i][x] < b.arrays[j][y]) {
+              x++;
+            } else if (b.arrays[j][y] < a.arrays[i][x]) {
+              y++;
+            } else {
+              common[n++] = a.arrays[i][x++];
+              y++;
+            }
+          }
+          if (n > 0) {
+            out.append(a.highs[i], common, null, n);
+          }
+        }
+        i++;
+        j++;
+      }
+    }
+    return out;
+  }
+
+  // Appends the ids of an array that are (or are not) in a bitmap
+  private void appendFiltered(long high, char[] array, int card, long[] bitmap, boolean in) {
+    final char[] kept = new char[card];
+    int n = 0;
+    for (int k = 0; k < card; k++) {
+      final char low = array[k];
+      if (((bitmap[low >>> 6] & (1L << low)) != 0) == in) {
+        kept[n++] = low;
+      }
+    }
+    if (n > 0) {
+      append(high, kept, null, n);
+    }
+  }
+
+  /**
+   * @return the ids in a that are not in b.
+   */
+  public static MatchIdBitmap andNot(MatchIdBitmap a, MatchIdBitmap b) {
+    final MatchIdBitmap out = new MatchIdBitmap();
+    int j = 0;
+    for (int i = 0; i < a.size; i++) {
+      while (j < b.size && b.highs[j] < a.highs[i]) {
+        j++;
+      }
+      if (j == b.size || b.highs[j] != a.highs[i]) {
+        out.appendCopy(a, i);
+      } else if (a.bitmaps[i] == null) {
+        out.appendFiltered(a.highs[i], a.arrays[i], a.cards[i], b.bitmapOf(j), false);
+      } else {
+        final long[] bitmap = a.bitmaps[i].clone();
+        if (b.bitmaps[j] != null) {
+          for (int w = 0; w < BITMAP_WORDS; w++) {
+            bitmap[w] &= ~b.bitmaps[j][w];
+          }
+        } else {
+          for (int k = 0; k < b.cards[j]; k++) {
+            bitmap[b.arrays[j][k] >>> 6] &= ~(1L << b.arrays[j][k]);
+          }
+        }
+        out.appendBitmap(a.highs[i], bitmap);
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Adds the ids of another set to this one.
+   */
+  public void or(MatchIdBitmap other) {
+    final MatchIdBitmap merged = or(this, other);
+    size = merged.size;
+    highs = merged.highs;
+    arrays = merged.arrays;
+    bitmaps = merged.bitmaps;
+    cards = merged.cards;
+  }
+
+  public void clear() {
+    size = 0;
+    Arrays.fill(arrays, null);
+    Arrays.fill(bitmaps, null);
+  }
+
+  /**
+   * @return an iterator over the ids in increasing order.
+   */
+  public IdIterator iterator() {
+    return new IdIterator() {
+      private int chunk = 0;
+      private int pos = 0;   // The index in an array or the bit in a bitmap
+      private int seen = 0;  // Ids returned from the current chunk
+
+      public boolean hasNext() {
+        while (chunk < size && seen == cards[chunk]) {
+          chunk++;
+          pos = 0;
+          seen = 0;
+        }
+        return chunk < size;
+      }
+
+      public long next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final char low;
+        if (bitmaps[chunk] == null) {
+          low = arrays[chunk][pos++];
+        } else {
+          final long[] bitmap = bitmaps[chunk];
+          long word = bitmap[pos >>> 6] & (-1L << pos);
+          while (word == 0) {
+            pos = ((pos >>> 6) + 1) << 6;
+            word = bitmap[pos >>> 6];
+          }
+          low = (char) (((pos >>> 6) << 6) + Long.numberOfTrailingZeros(word));
+          pos = low + 1;
+        }
+        seen++;
+        return (highs[chunk] << 16) | low;
+      }
+    };
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    WritableUtils.writeVInt(out, size);
+    for (int i = 0; i < size; i++) {
+      WritableUtils.writeVLong(out, highs[i]);
+      WritableUtils.writeVInt(out, cards[i]);
+      if (bitmaps[i] == null) {
+        for (int k = 0; k < cards[i]; k++) {
+          out.writeChar(arrays[i][k]);
+        }
+      } else {
+        for (long word : bitmaps[i]) {
+          out.writeLong(word);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    clear();
+    final int chunks = WritableUtils.readVInt(in);
+    for (int i = 0; i < chunks; i++) {
+      final long high = WritableUtils.readVLong(in);
+      final int card = WritableUtils.readVInt(in);
+      if (card > MAX_ARRAY) {
+        final long[] bitmap = new long[BITMAP_WORDS];
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+          bitmap[w] = in.readLong();
+        }
+        append(high, null, bitmap, card);
+      } else {
+        final char[] array = new char[card];
+        for (int k = 0; k < card; k++) {
+          array[k] = in.readChar();
+        }
+        append(high, array, null, card);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "MatchIdBitmap(" + getCardinality() + " ids in " + size + " chunks)";
+  }
+}
@@ -0,0 +1,307 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+/**
+ * The bitmaps of match ids written by MatchIndexGatherer, one for each value of the indexed
+ * attributes, and the boolean expressions that select matches with them. An expression
+ * combines terms of the form &lt;attribute&gt;=&lt;value&gt; or
+ * &lt;attribute&gt;=&lt;min&gt;..&lt;max&gt; with &amp;, | and ! and parentheses, such as
+ *
+ * <pre>
+ * game_mode=CAPTAINS_MODE &amp; lobby_type=TOURNAMENT &amp; start_time=1367366400..1370044800
+ * </pre>
+ *
+ * The attributes are game_mode, lobby_type and leaver_status (given as numbers or by the
+ * names of DotaValues' enums), cluster, leavers and serious_match (0 or 1) and start_time
+ * (in seconds). A match is under every leaver_status one of its players has, and leavers is
+ * 1 if any of them did not stay. The start times are indexed by buckets of
+ * wibidota.index.bucket seconds (default one day), so a range of start times selects the
+ * whole buckets it overlaps. "all" selects every indexed match.
+ *
+ * The width of the buckets is stored with the index under the reserved key bucket=&lt;n&gt;,
+ * with an empty bitmap, and read() uses it rather than the configuration of the query.
+ */
+public final class MatchIndex {
+
+  /** Width of the start_time buckets in seconds. */
+  public static final String CONF_BUCKET = "wibidota.index.bucket";
+
+  public static final long DEFAULT_BUCKET = 24L * 60 * 60;
+
+  /** The key of the bitmap holding every indexed match. */
+  public static final String ALL = "all";
+
+  public static final String GAME_MODE = "game_mode";
+  public static final String LOBBY_TYPE = "lobby_type";
+  public static final String LEAVER_STATUS = "leaver_status";
+  public static final String LEAVERS = "leavers";
+  public static final String CLUSTER = "cluster";
+  public static final String SERIOUS_MATCH = "serious_match";
+  public static final String START_TIME = "start_time";
+
+  /** The reserved attribute the width of the start_time buckets is stored under. */
+  public static final String BUCKET = "bucket";
+
+  private final Map<String, MatchIdBitmap> bitmaps;
+
+  private final long bucket;
+
+  /**
+   * @param bitmaps, the bitmaps by key.
+   * @param bucket, the width of the start_time buckets.
+   */
+  public MatchIndex(Map<String, MatchIdBitmap> bitmaps, long bucket) {
+    this.bitmaps = bitmaps;
+    this.bucket = bucket;
+  }
+
+  /**
+   * @return the key of the bitmap of an attribute's value.
+   */
+  public static String key(String attribute, long value) {
+    return attribute + "=" + value;
+  }
+
+  /**
+   * Reads the bitmaps written by MatchIndexGatherer, merging those of the same key, so the
+   * index can be extended by indexing new matches into another directory.
+   *
+   * @param paths, the outputs of one or more MatchIndexGatherer jobs, comma separated.
+   * @param conf, the job configuration.
+   * @return the index.
+   * @throws IOException if the directories were built with different bucket widths, or with
+   *     a width other than wibidota.index.bucket when that is set.
+   */
+  public static MatchIndex read(String paths, Configuration conf) throws IOException {
+    final Map<String, MatchIdBitmap> bitmaps = new HashMap<String, MatchIdBitmap>();
+    final String bucketPrefix = BUCKET + "=";
+    final String confBucket = conf.get(CONF_BUCKET);
+    long bucket = confBucket == null ? -1L : Long.parseLong(confBucket.trim());
+    String bucketSource = CONF_BUCKET;
+    for (String dir : paths.split(",")) {
+      final Path path = new Path(dir.trim());
+      long dirBucket = -1L;
+      final FileSystem fs = path.getFileSystem(conf);
+      for (FileStatus status : fs.listStatus(path)) {
+        final String name = status.getPath().getName();
+        if (status.isDirectory() || name.startsWith("_") || name.startsWith(".")) {
+          continue;
+        }
+        final SequenceFile.Reader reader = new SequenceFile.Reader(fs, status.getPath(), conf);
+        try {
+          final Text key = new Text();
+          MatchIdBitmap value = new MatchIdBitmap();
+          while (reader.next(key, value)) {
+            if (key.toString().startsWith(bucketPrefix)) {
+              final long width = Long.parseLong(key.toString().substring(bucketPrefix.length()));
+              if (dirBucket >= 0 && width != dirBucket) {
+                throw new IOException(path + " holds matches indexed with buckets of both "
+                    + dirBucket + " and " + width + " seconds");
+              }
+              dirBucket = width;
+              continue;
+            }
+            final MatchIdBitmap existing = bitmaps.get(key.toString());
+            if (existing == null) {
+              bitmaps.put(key.toString(), value);
+              value = new MatchIdBitmap();
+            } else {
+              existing.or(value);
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      }
+      if (dirBucket < 0) {
+        if (bucket < 0) {
+          throw new IOException(path + " has no " + bucketPrefix + "<n> key, set "
+              + CONF_BUCKET + " to the width it was indexed with");
+        }
+      } else if (bucket < 0) {
+        bucket = dirBucket;
+        bucketSource = path.toString();
+      } else if (bucket != dirBucket) {
+        throw new IOException(path + " was indexed with buckets of " + dirBucket
+            + " seconds, but " + bucketSource + " has " + bucket);
+      }
+    }
+    return new MatchIndex(bitmaps, bucket);
+  }
+
+  /**
+   * @return the bitmap of a key, empty if there is none.
+   */
+  public MatchIdBitmap get(String key) {
+    final MatchIdBitmap bitmap = bitmaps.get(key);
+    return bitmap == null ? new MatchIdBitmap() : bitmap;
+  }
+
+  /**
+   * @param expression, the expression to evaluate.
+   * @return the ids of the matches it selects.
+   * @throws IllegalArgumentException if the expression can not be parsed.
+   */
+  public MatchIdBitmap select(String expression) {
+    final Parser parser = new Parser(expression);
+    final MatchIdBitmap selected = parser.or();
+    if (parser.peek() != Parser.END) {
+      throw parser.error("Unexpected '" + parser.peek() + "'");
+    }
+    return selected;
+  }
+
+  // Converts a value of a term to the number it is indexed by
+  private static long parseValue(String attribute, String value) {
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException nfe) {
+      try {
+        if (GAME_MODE.equals(attribute)) {
+          return DotaValues.GameMode.valueOf(value).getEncoding();
+        } else if (LOBBY_TYPE.equals(attribute)) {
+          return DotaValues.LobbyType.valueOf(value).getEncoding();
+        } else if (LEAVER_STATUS.equals(attribute)
+            && DotaValues.LeaverStatus.valueOf(value).getEncoding() != null) {
+          return DotaValues.LeaverStatus.valueOf(value).getEncoding();
+        }
+      } catch (IllegalArgumentException iae) {
+        // Not one of the names, reported below
+      }
+      throw new IllegalArgumentException("Bad value for " + attribute + ": " + value);
+    }
+  }
+
+  // The matches under a term
+  private MatchIdBitmap term(String term) {
+    if (ALL.equals(term)) {
+      return get(ALL);
+    }
+    final int eq = term.indexOf('=');
+    if (eq <= 0) {
+      throw new IllegalArgumentException("Expected <attribute>=<value>: " + term);
+    }
+    final String attribute = term.substring(0, eq);
+    final String value = term.substring(eq + 1);
+    final int dots = value.indexOf("..");
+    if (dots < 0 && !START_TIME.equals(attribute)) {
+      return get(key(attribute, parseValue(attribute, value)));
+    }
+    long min = parseValue(attribute, dots < 0 ? value : value.substring(0, dots));
+    long max = parseValue(attribute, dots < 0 ? value : value.substring(dots + 2));
+    if (START_TIME.equals(attribute)) {
+      min = min / bucket;
+      max = max / bucket;
+    }
+    // Unions the bitmaps of the attribute's values that fall in the range
+    MatchIdBitmap union = new MatchIdBitmap();
+    final String prefix = attribute + "=";
+    for (Map.Entry<String, MatchIdBitmap> entry : bitmaps.entrySet()) {
+      if (entry.getKey().startsWith(prefix)) {
+        final long v = Long.parseLong(entry.getKey().substring(prefix.length()));
+        if (v >= min && v <= max) {
+          union = MatchIdBitmap.or(union, entry.getValue());
+        }
+      }
+    }
+    return union;
+  }
+
+  /**
+   * Recursive descent parser that evaluates an expression as it reads it, ! binding tighter
+   * than &amp; and &amp; tighter than |.
+   */
+  private final class Parser {
+    static final char END = '\0';
+
+    private final String text;
+    private int pos = 0;
+
+    Parser(String text) {
+      this.text = text;
+    }
+
+    IllegalArgumentException error(String message) {
+      return new IllegalArgumentException(message + " at " + pos + " in: " + text);
+    }
+
+    char peek() {
+      while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+      return pos < text.length() ? text.charAt(pos) : END;
+    }
+
+    MatchIdBitmap or() {
+      MatchIdBitmap result = and();
+      while (peek() == '|') {
+        pos++;
+        result = MatchIdBitmap.or(result, and());
+      }
+      return result;
+    }
+
+    MatchIdBitmap and() {
+      MatchIdBitmap result = not();
+      while (peek() == '&') {
+        pos++;
+        result = MatchIdBitmap.and(result, not());
+      }
+      return result;
+    }
+
+    MatchIdBitmap not() {
+      final char c = peek();
+      if (c == '!') {
+        pos++;
+        return MatchIdBitmap.andNot(get(ALL), not());
+      }
+      if (c == '(') {
+        pos++;
+        final MatchIdBitmap result = or();
+        if (peek() != ')') {
+          throw error("Expected ')'");
+        }
+        pos++;
+        return result;
+      }
+      final int start = pos;
+      while (pos < text.length() && "()&|!".indexOf(text.charAt(pos)) < 0
+          && !Character.isWhitespace(text.charAt(pos))) {
+        pos++;
+      }
+      if (start == pos) {
+        throw error("Expected a term");
+      }
+      return term(text.substring(start, pos));
+    }
+  }
+}
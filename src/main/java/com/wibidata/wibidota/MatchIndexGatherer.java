@@ -0,0 +1,184 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.hadoop.io.Text;
+
+import org.kiji.mapreduce.KijiReducer;
+import org.kiji.mapreduce.gather.GathererContext;
+import org.kiji.mapreduce.gather.KijiGatherer;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiRowData;
+
+/**
+ * Builds the bitmap index of dota_matches read by MatchIndex, a bitmap of match ids for each
+ * value of game_mode, lobby_type, leaver_status, leavers, cluster, serious_match and
+ * start_time bucket. Each task writes the bitmaps of its rows and OrReducer merges them:
+ *
+ * <pre>
+ * kiji gather --gatherer=com.wibidata.wibidota.MatchIndexGatherer \
+ *   --reducer=com.wibidata.wibidota.MatchIndexGatherer\$OrReducer \
+ *   --input="format=kiji table=kiji://.env/wibidota/dota_matches" \
+ *   --output="format=seq file=hdfs://path/to/index/base nsplits=1" \
+ *   --lib={WIBIDOTA_HOME}/target/lib
+ * </pre>
+ *
+ * With wibidota.produce.since set only the matches that started at or after that time are
+ * indexed (the whole table is still read), so the matches of an incremental import can be
+ * indexed into another directory and both read together. serious_match is read from
+ * derived_data, matches without it are under serious_match=0. Every task also writes the
+ * width of the start_time buckets as the key bucket=&lt;n&gt;, so MatchIndex can tell which
+ * width the index was built with. Reads data:header if wibidota.matches.packed.header is
+ * true.
+ */
+public class MatchIndexGatherer extends KijiGatherer<Text, MatchIdBitmap> {
+
+  static enum Counters {
+    MATCHES_INDEXED,
+    MISSING_HEADER
+  }
+
+  // The bitmaps of this task's rows
+  private Map<String, MatchIdBitmap> bitmaps;
+
+  private long bucket;
+
+  // Matches that started before this are skipped
+  private long since;
+
+  @Override
+  public KijiDataRequest getDataRequest() {
+    // No time range even with wibidota.produce.since, serious_match is stamped 0
+    KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef().withMaxVersions(1);
+    MatchHeaders.addColumns(def, MatchHeaders.isPacked(getConf()));
+    def.add("data", "player_data");
+    def.add("derived_data", SeriousMatchProducerMR.SERIOUS_MATCH);
+    return builder.addColumns(def).build();
+  }
+
+  @Override
+  public void setup(GathererContext<Text, MatchIdBitmap> context) throws IOException {
+    bitmaps = new HashMap<String, MatchIdBitmap>();
+    bucket = getConf().getLong(MatchIndex.CONF_BUCKET, MatchIndex.DEFAULT_BUCKET);
+    since = getConf().getLong(SeriousMatchProducerMR.CONF_SINCE, Long.MIN_VALUE);
+  }
+
+  private void add(String key, long matchId) {
+    MatchIdBitmap bitmap = bitmaps.get(key);
+    if (bitmap == null) {
+      bitmap = new MatchIdBitmap();
+      bitmaps.put(key, bitmap);
+    }
+    bitmap.add(matchId);
+  }
+
+  @Override
+  public void gather(KijiRowData row, GathererContext<Text, MatchIdBitmap> context)
+      throws IOException {
+    final MatchHeader header = MatchHeaders.read(row);
+    if (header == null) {
+      context.incrementCounter(Counters.MISSING_HEADER);
+      return;
+    }
+    if (header.getStartTime() < since) {
+      return;
+    }
+    final long matchId = row.getEntityId().<Long>getComponentByIndex(0);
+    add(MatchIndex.ALL, matchId);
+    add(MatchIndex.key(MatchIndex.GAME_MODE, header.getGameMode()), matchId);
+    add(MatchIndex.key(MatchIndex.LOBBY_TYPE, header.getLobbyType()), matchId);
+    add(MatchIndex.key(MatchIndex.CLUSTER, header.getCluster()), matchId);
+    add(MatchIndex.key(MatchIndex.START_TIME, header.getStartTime() / bucket), matchId);
+    final Double serious =
+        row.getMostRecentValue("derived_data", SeriousMatchProducerMR.SERIOUS_MATCH);
+    add(MatchIndex.key(MatchIndex.SERIOUS_MATCH,
+        serious != null && serious == 1.0 ? 1 : 0), matchId);
+
+    final Players players = row.getMostRecentValue("data", "player_data");
+    boolean leavers = false;
+    if (players != null) {
+      for (Player player : players.getPlayers()) {
+        // Bots have no leaver status and are not indexed by it
+        if (player.getLeaverStatus() != null) {
+          add(MatchIndex.key(MatchIndex.LEAVER_STATUS, player.getLeaverStatus()), matchId);
+        }
+        // Compared raw, so statuses the enum does not know of are leavers rather than errors
+        leavers |= !DotaValues.LeaverStatus.STAYED.getEncoding()
+            .equals(player.getLeaverStatus());
+      }
+    }
+    add(MatchIndex.key(MatchIndex.LEAVERS, leavers ? 1 : 0), matchId);
+    context.incrementCounter(Counters.MATCHES_INDEXED);
+  }
+
+  @Override
+  public void cleanup(GathererContext<Text, MatchIdBitmap> context) throws IOException {
+    final Text key = new Text();
+    for (Map.Entry<String, MatchIdBitmap> entry : bitmaps.entrySet()) {
+      key.set(entry.getKey());
+      context.write(key, entry.getValue());
+    }
+    key.set(MatchIndex.key(MatchIndex.BUCKET, bucket));
+    context.write(key, new MatchIdBitmap());
+  }
+
+  @Override
+  public Class<?> getOutputKeyClass() {
+    return Text.class;
+  }
+
+  @Override
+  public Class<?> getOutputValueClass() {
+    return MatchIdBitmap.class;
+  }
+
+  /**
+   * Reducer that ORs the bitmaps of each key.
+   */
+  public static class OrReducer extends KijiReducer<Text, MatchIdBitmap, Text, MatchIdBitmap> {
+
+    public void reduce(Text key, Iterable<MatchIdBitmap> values, Context context)
+        throws IOException, InterruptedException {
+      MatchIdBitmap merged = new MatchIdBitmap();
+      for (MatchIdBitmap bitmap : values) {
+        merged = MatchIdBitmap.or(merged, bitmap);
+      }
+      context.write(key, merged);
+    }
+
+    @Override
+    public Class<?> getOutputKeyClass() {
+      return Text.class;
+    }
+
+    @Override
+    public Class<?> getOutputValueClass() {
+      return MatchIdBitmap.class;
+    }
+  }
+}
@@ -0,0 +1,509 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.wibidata.wibidota.avro.AbilityUpgrade;
+import com.wibidata.wibidota.avro.AdditionalUnit;
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.Players;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.IndexedRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Validation rules for the matches, compiled once into flat arrays and checked without
+ * throwing, so every violation of every row is counted rather than the first. Each rule is
+ * a line of the form
+ *
+ * <pre>
+ * &lt;record&gt;.&lt;field&gt; [nullable] [each] &lt;check&gt; &lt;arguments&gt;
+ * </pre>
+ *
+ * where the record is match (the MatchHeader), player, ability (an AbilityUpgrade of a
+ * player) or unit (the AdditionalUnit of a player), and the check is one of
+ *
+ * <ul>
+ * <li>range &lt;min&gt; &lt;max&gt;, a number from min to max inclusive.</li>
+ * <li>in &lt;value&gt;..., one of the given integers.</li>
+ * <li>enum &lt;name&gt; [&lt;value&gt;...], an encoding of GameMode, LobbyType or
+ * LeaverStatus, or an id in the Hero, Item or Ability lists of DotaValues, or one of the
+ * given integers. The last three are skipped if their lists are not on the classpath.</li>
+ * <li>size &lt;min&gt; &lt;max&gt;, an array with from min to max elements.</li>
+ * <li>type &lt;name&gt;, a value of the Avro type boolean, int, long, double, string, array
+ * or record, for the fields no other check applies to.</li>
+ * </ul>
+ *
+ * A null value is a violation unless the rule is nullable, and with each the check applies to
+ * the elements of an array field. Lines starting with # are comments. DEFAULT_RULES covers
+ * every field, wibidota.check.rules can name a file of rules to use instead.
+ */
+public final class MatchRules {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MatchRules.class);
+
+  /** Path of a file of rules, optional. */
+  public static final String CONF_RULES = "wibidota.check.rules";
+
+  /** The rules used unless wibidota.check.rules is set. */
+  public static final String[] DEFAULT_RULES = new String[]{
+    "match.match_id range 0 9223372036854775807",
+    "match.match_seq_num range 0 9223372036854775807",
+    "match.start_time range 0 9223372036854775807",
+    "match.game_mode enum GameMode",
+    "match.lobby_type enum LobbyType",
+    "match.dire_towers_status range 0 2047",
+    "match.radiant_towers_status range 0 2047",
+    "match.dire_barracks_status range 0 63",
+    "match.radiant_barracks_status range 0 63",
+    "match.cluster range 0 1073741823",
+    "match.season nullable range 0 1073741823",
+    "match.league_id range 0 2147483647",
+    "match.first_blood_time range 0 1073741823",
+    "match.negative_votes range 0 1073741823",
+    "match.positive_votes range 0 1073741823",
+    "match.duration range 0 1073741823",
+    "match.human_players range 0 10",
+    "match.radiant_win type boolean",
+    "player.account_id nullable range -1 2147483647",
+    "player.leaver_status nullable enum LeaverStatus",
+    "player.player_slot in 0 1 2 3 4 128 129 130 131 132",
+    "player.hero_id range 0 200",
+    "player.hero_id enum Hero 0",
+    "player.level range 0 25",
+    "player.kills range 0 1000",
+    "player.deaths range 0 1000",
+    "player.assists range 0 1000",
+    "player.denies range 0 5000",
+    "player.last_hits range 0 214748364",
+    "player.gold range 0 214748364",
+    "player.gold_spent range 0 214748364",
+    "player.hero_damage range 0 214748364",
+    "player.hero_healing range 0 214748364",
+    "player.tower_damage range 0 214748364",
+    "player.gold_per_minute range 0 2000000",
+    "player.exp_per_minute range 0 2000000",
+    "player.item_ids size 6 6",
+    "player.item_ids each enum Item 0",
+    "player.ability_upgrades size 0 25",
+    "player.additional_units nullable type record",
+    "ability.level range 0 25",
+    "ability.time range 0 214748364",
+    "ability.ability_id enum Ability",
+    "unit.name type string",
+    "unit.item_ids size 0 6",
+    "unit.item_ids each enum Item 0",
+  };
+
+  // Records the rules apply to
+  private static final int MATCH = 0;
+  private static final int PLAYER = 1;
+  private static final int ABILITY = 2;
+  private static final int UNIT = 3;
+
+  private static final String[] RECORDS = new String[]{"match", "player", "ability", "unit"};
+
+  private static final Schema[] SCHEMAS = new Schema[]{MatchHeader.SCHEMA$, Player.SCHEMA$,
+      AbilityUpgrade.SCHEMA$, AdditionalUnit.SCHEMA$};
+
+  // Kinds of check
+  private static final int RANGE = 0;
+  private static final int ALLOWED = 1;
+  private static final int SIZE = 2;
+  private static final int TYPE = 3;
+
+  // The names of the types of the type check and the classes of their values
+  private static final String[] TYPE_NAMES =
+      new String[]{"boolean", "int", "long", "double", "string", "array", "record"};
+  private static final Class<?>[] TYPE_CLASSES = new Class<?>[]{Boolean.class, Integer.class,
+      Long.class, Double.class, CharSequence.class, List.class, IndexedRecord.class};
+
+  /** Ways a value can break a rule, in the order they are counted. */
+  private static final String[] VIOLATIONS =
+      new String[]{"null", "below", "above", "not_allowed", "wrong_type"};
+
+  private static final int NULL = 0;
+  private static final int BELOW = 1;
+  private static final int ABOVE = 2;
+  private static final int NOT_ALLOWED = 3;
+  private static final int WRONG_TYPE = 4;
+
+  // The compiled rules, indexed by rule
+  private final String[] names;
+  private final int[] positions;
+  private final int[] kinds;
+  private final boolean[] nullable;
+  private final boolean[] each;
+  private final double[] mins;
+  private final double[] maxes;
+  private final long[] offsets;
+  private final boolean[][] allowed;
+  private final Class<?>[] types;
+
+  // The rules of each record
+  private final int[][] byRecord;
+
+  // Violations by rule * VIOLATIONS.length + violation
+  private final long[] counts;
+
+  private long rows;
+
+  // Violations of all rules, for telling how many a single match had
+  private long violations;
+
+  private MatchRules(List<String> rules) {
+    final List<String[]> parsed = new ArrayList<String[]>();
+    for (String rule : rules) {
+      final String line = rule.trim();
+      if (!line.isEmpty() && !line.startsWith("#")) {
+        parsed.add(line.split("\\s+"));
+      }
+    }
+    final int n = parsed.size();
+    names = new String[n];
+    positions = new int[n];
+    kinds = new int[n];
+    nullable = new boolean[n];
+    each = new boolean[n];
+    mins = new double[n];
+    maxes = new double[n];
+    offsets = new long[n];
+    allowed = new boolean[n][];
+    types = new Class<?>[n];
+    final int[] records = new int[n];
+    int kept = 0;
+    for (String[] words : parsed) {
+      if (compile(kept, words, records)) {
+        kept++;
+      }
+    }
+    byRecord = new int[RECORDS.length][];
+    for (int record = 0; record < RECORDS.length; record++) {
+      int count = 0;
+      for (int r = 0; r < kept; r++) {
+        if (records[r] == record) {
+          count++;
+        }
+      }
+      byRecord[record] = new int[count];
+      count = 0;
+      for (int r = 0; r < kept; r++) {
+        if (records[r] == record) {
+          byRecord[record][count++] = r;
+        }
+      }
+    }
+    counts = new long[kept * VIOLATIONS.length];
+  }
+
+  // Compiles one rule into slot r, false if it is skipped
+  private boolean compile(int r, String[] words, int[] records) {
+    final String rule = Arrays.toString(words);
+    final int dot = words[0].indexOf('.');
+    final int record = dot < 0 ? -1 : Arrays.asList(RECORDS).indexOf(words[0].substring(0, dot));
+    if (record < 0) {
+      throw new IllegalArgumentException("Unknown record in rule " + rule);
+    }
+    final Schema.Field field = SCHEMAS[record].getField(words[0].substring(dot + 1));
+    if (field == null) {
+      throw new IllegalArgumentException("Unknown field in rule " + rule);
+    }
+    int w = 1;
+    nullable[r] = false;
+    each[r] = false;
+    while (w < words.length && ("nullable".equals(words[w]) || "each".equals(words[w]))) {
+      if ("nullable".equals(words[w])) {
+        nullable[r] = true;
+      } else {
+        each[r] = true;
+      }
+      w++;
+    }
+    if (w >= words.length) {
+      throw new IllegalArgumentException("No check in rule " + rule);
+    }
+    final String check = words[w++];
+    names[r] = words[0] + " " + check;
+    try {
+      if ("range".equals(check) || "size".equals(check)) {
+        kinds[r] = "range".equals(check) ? RANGE : SIZE;
+        mins[r] = Double.parseDouble(words[w]);
+        maxes[r] = Double.parseDouble(words[w + 1]);
+      } else if ("in".equals(check) || "enum".equals(check)) {
+        kinds[r] = ALLOWED;
+        long[] values = new long[0];
+        if ("enum".equals(check)) {
+          values = enumValues(words[w++]);
+          if (values == null) {
+            LOG.warn("Skipping rule " + rule + ", the ids are not on the classpath");
+            return false;
+          }
+        }
+        final int known = values.length;
+        values = Arrays.copyOf(values, known + words.length - w);
+        for (int i = known; i < values.length; i++) {
+          values[i] = Long.parseLong(words[w++]);
+        }
+        setAllowed(r, values);
+      } else if ("type".equals(check)) {
+        kinds[r] = TYPE;
+        final int type = Arrays.asList(TYPE_NAMES).indexOf(words[w]);
+        if (type < 0) {
+          throw new IllegalArgumentException("Unknown type in rule " + rule);
+        }
+        types[r] = TYPE_CLASSES[type];
+      } else {
+        throw new IllegalArgumentException("Unknown check in rule " + rule);
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Missing arguments in rule " + rule);
+    }
+    positions[r] = field.pos();
+    records[r] = record;
+    return true;
+  }
+
+  // The encodings of an enum of DotaValues, null if they are not available
+  private static long[] enumValues(String name) {
+    final List<Long> values = new ArrayList<Long>();
+    if ("GameMode".equals(name)) {
+      for (DotaValues.GameMode mode : DotaValues.GameMode.values()) {
+        values.add((long) mode.getEncoding());
+      }
+    } else if ("LobbyType".equals(name)) {
+      for (DotaValues.LobbyType lobby : DotaValues.LobbyType.values()) {
+        values.add((long) lobby.getEncoding());
+      }
+    } else if ("LeaverStatus".equals(name)) {
+      for (DotaValues.LeaverStatus status : DotaValues.LeaverStatus.values()) {
+        // BOT is a null leaver_status, which the rule takes with nullable
+        if (status.getEncoding() != null) {
+          values.add((long) status.getEncoding());
+        }
+      }
+    } else {
+      final int[] ids;
+      if ("Hero".equals(name)) {
+        ids = DotaValues.heroIds();
+      } else if ("Item".equals(name)) {
+        ids = DotaValues.itemIds();
+      } else if ("Ability".equals(name)) {
+        ids = DotaValues.abilityIds();
+      } else {
+        throw new IllegalArgumentException("Unknown enum " + name);
+      }
+      if (ids == null) {
+        return null;
+      }
+      for (int id : ids) {
+        values.add((long) id);
+      }
+    }
+    final long[] longs = new long[values.size()];
+    for (int i = 0; i < longs.length; i++) {
+      longs[i] = values.get(i);
+    }
+    return longs;
+  }
+
+  // Builds the lookup table of the allowed values of a rule
+  private void setAllowed(int r, long[] values) {
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (long value : values) {
+      min = Math.min(min, value);
+      max = Math.max(max, value);
+    }
+    if (values.length == 0 || max - min >= Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Bad allowed values for " + names[r]);
+    }
+    offsets[r] = min;
+    allowed[r] = new boolean[(int) (max - min) + 1];
+    for (long value : values) {
+      allowed[r][(int) (value - min)] = true;
+    }
+  }
+
+  /**
+   * @param rules, the rules one per string.
+   * @return the compiled rules.
+   * @throws IllegalArgumentException if a rule can not be parsed.
+   */
+  public static MatchRules compile(List<String> rules) {
+    return new MatchRules(rules);
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return the rules of the file named by wibidota.check.rules, or DEFAULT_RULES.
+   */
+  public static MatchRules fromConf(Configuration conf) throws IOException {
+    final String file = conf == null ? null : conf.get(CONF_RULES);
+    if (file == null) {
+      return compile(Arrays.asList(DEFAULT_RULES));
+    }
+    final Path path = new Path(file);
+    final List<String> rules = new ArrayList<String>();
+    final BufferedReader in =
+        new BufferedReader(new InputStreamReader(path.getFileSystem(conf).open(path), "UTF-8"));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        rules.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    return compile(rules);
+  }
+
+  private void fail(int counter) {
+    counts[counter]++;
+    violations++;
+  }
+
+  // Checks one value against rule r
+  private void check(int r, Object value) {
+    final int base = r * VIOLATIONS.length;
+    if (value == null) {
+      if (!nullable[r]) {
+        fail(base + NULL);
+      }
+      return;
+    }
+    switch (kinds[r]) {
+      case RANGE:
+        if (!(value instanceof Number)) {
+          fail(base + WRONG_TYPE);
+        } else {
+          final double d = ((Number) value).doubleValue();
+          if (d < mins[r]) {
+            fail(base + BELOW);
+          } else if (d > maxes[r]) {
+            fail(base + ABOVE);
+          }
+        }
+        break;
+      case ALLOWED:
+        if (!(value instanceof Integer || value instanceof Long)) {
+          fail(base + WRONG_TYPE);
+        } else {
+          final long i = ((Number) value).longValue() - offsets[r];
+          if (i < 0 || i >= allowed[r].length || !allowed[r][(int) i]) {
+            fail(base + NOT_ALLOWED);
+          }
+        }
+        break;
+      case TYPE:
+        if (!types[r].isInstance(value)) {
+          fail(base + WRONG_TYPE);
+        }
+        break;
+      default:
+        if (!(value instanceof List)) {
+          fail(base + WRONG_TYPE);
+        } else {
+          final int size = ((List<?>) value).size();
+          if (size < mins[r]) {
+            fail(base + BELOW);
+          } else if (size > maxes[r]) {
+            fail(base + ABOVE);
+          }
+        }
+        break;
+    }
+  }
+
+  // Checks a record against its rules
+  private void check(int[] rules, IndexedRecord record) {
+    for (int r : rules) {
+      final Object value = record.get(positions[r]);
+      if (each[r] && value instanceof List) {
+        for (Object element : (List<?>) value) {
+          check(r, element);
+        }
+      } else {
+        check(r, value);
+      }
+    }
+  }
+
+  /**
+   * Checks a match, counting every rule it breaks.
+   *
+   * @param header, the header of the match, null if the row had none.
+   * @param players, the players of the match, null if the row had none.
+   * @return the number of violations found in this match, 0 if it passed every rule.
+   */
+  public long check(MatchHeader header, Players players) {
+    rows++;
+    final long before = violations;
+    if (header != null) {
+      check(byRecord[MATCH], header);
+    }
+    if (players == null) {
+      return violations - before;
+    }
+    for (Player player : players.getPlayers()) {
+      check(byRecord[PLAYER], player);
+      if (byRecord[ABILITY].length > 0 && player.getAbilityUpgrades() != null) {
+        for (AbilityUpgrade upgrade : player.getAbilityUpgrades()) {
+          check(byRecord[ABILITY], upgrade);
+        }
+      }
+      if (byRecord[UNIT].length > 0 && player.getAdditionalUnits() != null) {
+        check(byRecord[UNIT], player.getAdditionalUnits());
+      }
+    }
+    return violations - before;
+  }
+
+  /** @return the number of matches checked. */
+  public long getRows() {
+    return rows;
+  }
+
+  /** @return the number of counters, the rules times the kinds of violation. */
+  public int getCounterCount() {
+    return counts.length;
+  }
+
+  /**
+   * @return the name of a counter, the field, the check and the violation such as
+   *     "player.kills range above".
+   */
+  public String getCounterName(int i) {
+    return names[i / VIOLATIONS.length] + " " + VIOLATIONS[i % VIOLATIONS.length];
+  }
+
+  /** @return the value of a counter. */
+  public long getCount(int i) {
+    return counts[i];
+  }
+}
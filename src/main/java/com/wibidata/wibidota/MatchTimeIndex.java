@@ -0,0 +1,167 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiRowScanner;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+import org.kiji.schema.KijiURI;
+
+/**
+ * The dota_match_times table (see build_match_times_table.ddl), which lists the matches by
+ * start time so a time range can be resolved without scanning dota_matches, whose rows are
+ * ordered by a hash of the match id. Its rows are keyed by (bucket, match_id), where the
+ * bucket is the start time divided by wibidota.times.bucket (default one hour), and hold
+ * the start time in data:start_time. The row keys are hashed through the bucket only, so
+ * the buckets are spread over the regions while the matches of each stay together.
+ *
+ * The importers of dota_matches write it directly while they run when wibidota.times.uri
+ * names the table, the matches of one bucket are then read with a single scan. As those
+ * writes are not part of the HFiles the matches are loaded from, an import that fails or
+ * whose HFiles are never loaded leaves ids here with no row in dota_matches. MatchFetcher
+ * skips those rows, IndexedGather counts them as ROWS_MISSING, and importing the matches
+ * again fills them in.
+ */
+public final class MatchTimeIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MatchTimeIndex.class);
+
+  /** URI of the dota_match_times table. */
+  public static final String CONF_URI = "wibidota.times.uri";
+
+  /** Width of the buckets in seconds, must be the same when writing and reading. */
+  public static final String CONF_BUCKET = "wibidota.times.bucket";
+
+  public static final long DEFAULT_BUCKET = 60L * 60;
+
+  static final String FAMILY = "data";
+
+  static final String COLUMN = "start_time";
+
+  // This utility class should not be instantiated
+  private MatchTimeIndex() {}
+
+  /**
+   * Writes the matches of an import to dota_match_times, must be closed once done.
+   */
+  public static final class Writer implements Closeable {
+    private final CellSink.TableSink sink;
+    private final long bucket;
+
+    Writer(KijiURI uri, Configuration conf) throws IOException {
+      sink = new CellSink.TableSink(uri, conf);
+      bucket = conf.getLong(CONF_BUCKET, DEFAULT_BUCKET);
+    }
+
+    /**
+     * Adds a match to the index, stamped with its start time like the cells of the match.
+     */
+    public void put(ParsedMatch match) throws IOException {
+      final long startTime = match.getStartTime();
+      sink.put(sink.getEntityId(startTime / bucket, match.getMatchId()), FAMILY, COLUMN,
+          startTime, startTime);
+    }
+
+    @Override
+    public void close() throws IOException {
+      sink.close();
+    }
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return a writer to the table named by wibidota.times.uri, or null if it is not set.
+   */
+  public static Writer open(Configuration conf) throws IOException {
+    final String uri = conf.get(CONF_URI);
+    if (uri == null) {
+      return null;
+    }
+    LOG.info("Indexing the start times in " + uri);
+    return new Writer(KijiURI.newBuilder(uri).build(), conf);
+  }
+
+  /**
+   * Finds the matches that started in a range of time, scanning the buckets it overlaps.
+   *
+   * @param conf, the configuration naming the table with wibidota.times.uri.
+   * @param minTime, the start of the range in seconds, inclusive.
+   * @param maxTime, the end of the range in seconds, exclusive.
+   * @return the ids of the matches.
+   */
+  public static MatchIdBitmap select(Configuration conf, long minTime, long maxTime)
+      throws IOException {
+    final String uri = conf.get(CONF_URI);
+    if (uri == null) {
+      throw new IOException(CONF_URI + " must be set to select matches by time");
+    }
+    final long bucket = conf.getLong(CONF_BUCKET, DEFAULT_BUCKET);
+    final MatchIdBitmap selected = new MatchIdBitmap();
+    if (maxTime <= minTime) {
+      return selected;
+    }
+    final KijiURI kijiUri = KijiURI.newBuilder(uri).build();
+    final Kiji kiji = Kiji.Factory.open(kijiUri, conf);
+    try {
+      final KijiTable table = kiji.openTable(kijiUri.getTable());
+      try {
+        final KijiTableReader reader = table.openTableReader();
+        try {
+          final KijiDataRequest request = KijiDataRequest.create(FAMILY, COLUMN);
+          for (long b = minTime / bucket; b <= (maxTime - 1) / bucket; b++) {
+            // The rows of a bucket are contiguous, match ids are never negative
+            final KijiRowScanner scanner = reader.getScanner(request,
+                new KijiTableReader.KijiScannerOptions()
+                    .setStartRow(table.getEntityId(b, 0L))
+                    .setStopRow(table.getEntityId(b, Long.MAX_VALUE)));
+            try {
+              for (KijiRowData row : scanner) {
+                final Long startTime = row.getMostRecentValue(FAMILY, COLUMN);
+                if (startTime != null && startTime >= minTime && startTime < maxTime) {
+                  final EntityId eid = row.getEntityId();
+                  selected.add(eid.<Long>getComponentByIndex(1));
+                }
+              }
+            } finally {
+              scanner.close();
+            }
+          }
+        } finally {
+          reader.close();
+        }
+      } finally {
+        table.release();
+      }
+    } finally {
+      kiji.release();
+    }
+    return selected;
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import com.wibidata.wibidota.avro.Match;
+import com.wibidata.wibidota.avro.MatchHeader;
+import com.wibidata.wibidota.avro.Players;
+
+/**
+ * The values of a single match as read from the raw JSON, before they are written
+ * to Kiji. Holds every field the bulk importers store, under the names of the
+ * dota_matches columns they end up in.
+ */
+public final class ParsedMatch {
+
+  long matchId;
+  long matchSeqNum;
+  long startTime;
+  int gameMode;
+  int lobbyType;
+  int direTowersStatus;
+  int radiantTowersStatus;
+  int direBarracksStatus;
+  int radiantBarracksStatus;
+  int cluster;
+  Integer season;
+  int leagueId;
+  int firstBloodTime;
+  int negativeVotes;
+  int positiveVotes;
+  int duration;
+  boolean radiantWin;
+  int humanPlayers;
+  Players players;
+
+  public long getMatchId() {
+    return matchId;
+  }
+
+  public long getMatchSeqNum() {
+    return matchSeqNum;
+  }
+
+  public long getStartTime() {
+    return startTime;
+  }
+
+  public int getGameMode() {
+    return gameMode;
+  }
+
+  public int getLobbyType() {
+    return lobbyType;
+  }
+
+  public int getDireTowersStatus() {
+    return direTowersStatus;
+  }
+
+  public int getRadiantTowersStatus() {
+    return radiantTowersStatus;
+  }
+
+  public int getDireBarracksStatus() {
+    return direBarracksStatus;
+  }
+
+  public int getRadiantBarracksStatus() {
+    return radiantBarracksStatus;
+  }
+
+  public int getCluster() {
+    return cluster;
+  }
+
+  /**
+   * @return the season, null if the API did not report one.
+   */
+  public Integer getSeason() {
+    return season;
+  }
+
+  public int getLeagueId() {
+    return leagueId;
+  }
+
+  public int getFirstBloodTime() {
+    return firstBloodTime;
+  }
+
+  public int getNegativeVotes() {
+    return negativeVotes;
+  }
+
+  public int getPositiveVotes() {
+    return positiveVotes;
+  }
+
+  public int getDuration() {
+    return duration;
+  }
+
+  public boolean getRadiantWin() {
+    return radiantWin;
+  }
+
+  public int getHumanPlayers() {
+    return humanPlayers;
+  }
+
+  public Players getPlayers() {
+    return players;
+  }
+
+  /**
+   * @return the scalar fields of this match as a MatchHeader.
+   */
+  public MatchHeader toHeader() {
+    return MatchHeader.newBuilder()
+        .setMatchId(matchId)
+        .setMatchSeqNum(matchSeqNum)
+        .setStartTime(startTime)
+        .setGameMode(gameMode)
+        .setLobbyType(lobbyType)
+        .setDireTowersStatus(direTowersStatus)
+        .setRadiantTowersStatus(radiantTowersStatus)
+        .setDireBarracksStatus(direBarracksStatus)
+        .setRadiantBarracksStatus(radiantBarracksStatus)
+        .setCluster(cluster)
+        .setSeason(season)
+        .setLeagueId(leagueId)
+        .setFirstBloodTime(firstBloodTime)
+        .setNegativeVotes(negativeVotes)
+        .setPositiveVotes(positiveVotes)
+        .setDuration(duration)
+        .setRadiantWin(radiantWin)
+        .setHumanPlayers(humanPlayers)
+        .build();
+  }
+
+  /**
+   * @return this match as a Match record, shares the Players.
+   */
+  public Match toMatch() {
+    return new Match(toHeader(), players);
+  }
+
+  /**
+   * Reads a match back from a Match record.
+   *
+   * @param match, the record, its Players are shared rather than copied.
+   * @return the match.
+   */
+  public static ParsedMatch fromMatch(Match match) {
+    final MatchHeader header = match.getHeader();
+    final ParsedMatch parsed = new ParsedMatch();
+    parsed.matchId = header.getMatchId();
+    parsed.matchSeqNum = header.getMatchSeqNum();
+    parsed.startTime = header.getStartTime();
+    parsed.gameMode = header.getGameMode();
+    parsed.lobbyType = header.getLobbyType();
+    parsed.direTowersStatus = header.getDireTowersStatus();
+    parsed.radiantTowersStatus = header.getRadiantTowersStatus();
+    parsed.direBarracksStatus = header.getDireBarracksStatus();
+    parsed.radiantBarracksStatus = header.getRadiantBarracksStatus();
+    parsed.cluster = header.getCluster();
+    parsed.season = header.getSeason();
+    parsed.leagueId = header.getLeagueId();
+    parsed.firstBloodTime = header.getFirstBloodTime();
+    parsed.negativeVotes = header.getNegativeVotes();
+    parsed.positiveVotes = header.getPositiveVotes();
+    parsed.duration = header.getDuration();
+    parsed.radiantWin = header.getRadiantWin();
+    parsed.humanPlayers = header.getHumanPlayers();
+    parsed.players = match.getPlayers();
+    return parsed;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ParsedMatch)) {
+      return false;
+    }
+    ParsedMatch other = (ParsedMatch) o;
+    return matchId == other.matchId
+        && matchSeqNum == other.matchSeqNum
+        && startTime == other.startTime
+        && gameMode == other.gameMode
+        && lobbyType == other.lobbyType
+        && direTowersStatus == other.direTowersStatus
+        && radiantTowersStatus == other.radiantTowersStatus
+        && direBarracksStatus == other.direBarracksStatus
+        && radiantBarracksStatus == other.radiantBarracksStatus
+        && cluster == other.cluster
+        && (season == null ? other.season == null : season.equals(other.season))
+        && leagueId == other.leagueId
+        && firstBloodTime == other.firstBloodTime
+        && negativeVotes == other.negativeVotes
+        && positiveVotes == other.positiveVotes
+        && duration == other.duration
+        && radiantWin == other.radiantWin
+        && humanPlayers == other.humanPlayers
+        && (players == null ? other.players == null : players.equals(other.players));
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (matchId ^ (matchId >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return "match_id=" + matchId + ",match_seq_num=" + matchSeqNum + ",start_time=" + startTime;
+  }
+}
@@ -0,0 +1,466 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+
+import com.wibidata.wibidota.avro.MatchHistory;
+import com.wibidata.wibidota.avro.Player;
+import com.wibidata.wibidota.avro.PlayerMatch;
+import org.apache.hadoop.conf.Configuration;
+
+import org.kiji.mapreduce.framework.KijiConfKeys;
+import org.kiji.schema.EntityId;
+import org.kiji.schema.Kiji;
+import org.kiji.schema.KijiDataRequest;
+import org.kiji.schema.KijiDataRequestBuilder;
+import org.kiji.schema.KijiPager;
+import org.kiji.schema.KijiRowData;
+import org.kiji.schema.KijiTable;
+import org.kiji.schema.KijiTableReader;
+import org.kiji.schema.KijiURI;
+
+/**
+ * The matches of one player in dota_players in order of start_time, for gatherers that walk
+ * a player's timeline such as StreakCounter and WinRateGatherer. Use request() as the data
+ * request of the gatherer and load() each row, then call next() until it returns false and
+ * read the matches of each window by index. Must be closed once done.
+ *
+ * The matches are handed out in windows of at most wibidota.players.page.size matches, oldest
+ * first, so a task holds one window whatever the length of a player's history. Kiji's pagers
+ * return the cells newest first, so load() pages through one column of the row to find the
+ * start_time at which each window begins, and next() reads the window's columns with a get
+ * of that range from the table, which is wibidota.players.uri or else the gatherer's input.
+ * The paged column is therefore transferred from HBase twice, though only decoded once as
+ * load() reads nothing but its timestamps, and one long per window is kept between the two.
+ *
+ * wibidota.players.start.time and wibidota.players.end.time limit the matches to a range of
+ * start_time, [start, end), which for the per match columns is applied by the region servers.
+ * Reads data:match if wibidota.players.compact is true, or history:matches if
+ * wibidota.players.history is true (see MatchHistoryProducer), whose single cell is already
+ * in memory and is handed out in windows without reading the table again.
+ */
+public final class PlayerTimeline implements Closeable {
+
+  /** Maximum number of matches in a window, and of cells fetched at a time. */
+  public static final String CONF_PAGE_SIZE = "wibidota.players.page.size";
+
+  /** Earliest start_time to read, inclusive. */
+  public static final String CONF_START_TIME = "wibidota.players.start.time";
+
+  /** Latest start_time to read, exclusive. */
+  public static final String CONF_END_TIME = "wibidota.players.end.time";
+
+  /** URI of the dota_players table, the input table of the job if not set. */
+  public static final String CONF_URI = "wibidota.players.uri";
+
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private final Configuration conf;
+  private final boolean history;
+  private final boolean compact;
+  private final long startTime;
+  private final long endTime;
+  private final int pageSize;
+
+  // Opened by the first load() of the per match columns
+  private Kiji kiji;
+  private KijiTable table;
+  private KijiTableReader reader;
+
+  // The player being read and the start of each of its windows, newest first
+  private EntityId entityId;
+  private long[] windowStarts = new long[16];
+  private int window;
+
+  // The history of the player being read and the position of the next window in it
+  private MatchHistory matchHistory;
+  private int historyPos;
+
+  // The matches of the current window
+  private int size;
+  private long[] times = new long[64];
+  private int[] durations = new int[64];
+  private int[] gameModes = new int[64];
+  private int[] lobbyTypes = new int[64];
+  private int[] heroIds = new int[64];
+  private boolean[] wins = new boolean[64];
+
+  // For the per match columns, which side the player was on until radiant_win is read
+  private boolean[] radiant = new boolean[64];
+
+  /**
+   * @param conf, the job configuration.
+   */
+  public PlayerTimeline(Configuration conf) {
+    this.conf = conf;
+    history = MatchHistoryProducer.useHistory(conf);
+    compact = DotaPlayersBulkImporter.isCompact(conf);
+    startTime = conf.getLong(CONF_START_TIME, 0L);
+    endTime = conf.getLong(CONF_END_TIME, Long.MAX_VALUE);
+    pageSize = conf.getInt(CONF_PAGE_SIZE, DEFAULT_PAGE_SIZE);
+  }
+
+  // The column whose pages split the matches into windows
+  private static String windowColumn(Configuration conf) {
+    return DotaPlayersBulkImporter.isCompact(conf) ? DotaPlayersBulkImporter.MATCH_COLUMN
+        : "player";
+  }
+
+  /**
+   * @param conf, the job configuration.
+   * @return the data request for the columns load() reads.
+   */
+  public static KijiDataRequest request(Configuration conf) {
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    final KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef();
+    if (MatchHistoryProducer.useHistory(conf)) {
+      // The history is one cell stamped with its last match, so the range is applied in next()
+      def.withMaxVersions(1).add(MatchHistoryProducer.FAMILY, MatchHistoryProducer.COLUMN);
+      return builder.addColumns(def).build();
+    }
+    def.withMaxVersions(Integer.MAX_VALUE)
+        .withPageSize(conf.getInt(CONF_PAGE_SIZE, DEFAULT_PAGE_SIZE))
+        .add("data", windowColumn(conf));
+    final long start = conf.getLong(CONF_START_TIME, 0L);
+    final long end = conf.getLong(CONF_END_TIME, Long.MAX_VALUE);
+    if (start > 0 || end < Long.MAX_VALUE) {
+      builder.withTimeRange(start, end);
+    }
+    return builder.addColumns(def).build();
+  }
+
+  // The request for the columns of the matches in [start, end)
+  private KijiDataRequest windowRequest(long start, long end) {
+    final KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    final KijiDataRequestBuilder.ColumnsDef def =
+        builder.newColumnsDef().withMaxVersions(Integer.MAX_VALUE);
+    if (compact) {
+      def.add("data", DotaPlayersBulkImporter.MATCH_COLUMN);
+    } else {
+      def.add("data", "player")
+          .add("data", "radiant_win")
+          .add("data", "game_mode")
+          .add("data", "duration")
+          .add("data", "lobby_type");
+    }
+    return builder.withTimeRange(start, end).addColumns(def).build();
+  }
+
+  private void openTable() throws IOException {
+    String uri = conf.get(CONF_URI);
+    if (uri == null) {
+      uri = conf.get(KijiConfKeys.KIJI_INPUT_TABLE_URI);
+    }
+    if (uri == null) {
+      throw new IOException(CONF_URI + " must be set to read the matches of the players");
+    }
+    final KijiURI kijiUri = KijiURI.newBuilder(uri).build();
+    kiji = Kiji.Factory.open(kijiUri, conf);
+    table = kiji.openTable(kijiUri.getTable());
+    reader = table.openTableReader();
+  }
+
+  /**
+   * Starts on the matches of a player, replacing those of the last one loaded.
+   *
+   * @param row, the row of the player, read with request().
+   */
+  public void load(KijiRowData row) throws IOException {
+    size = 0;
+    window = 0;
+    matchHistory = null;
+    historyPos = 0;
+    if (history) {
+      matchHistory = row.getMostRecentValue(
+          MatchHistoryProducer.FAMILY, MatchHistoryProducer.COLUMN);
+      return;
+    }
+    if (reader == null) {
+      openTable();
+    }
+    entityId = row.getEntityId();
+    // Each page holds at most a window of matches, its oldest start_time begins the window
+    final String column = windowColumn(conf);
+    final KijiPager pager = row.getPager("data", column);
+    try {
+      while (pager.hasNext()) {
+        // Only the timestamps are needed, which are read without decoding the cells
+        final NavigableSet<Long> page = pager.next().getTimestamps("data", column);
+        if (!page.isEmpty()) {
+          // Kiji orders them newest first, the minimum does not rely on that
+          final long oldest = Collections.min(page);
+          if (window == windowStarts.length) {
+            windowStarts = Arrays.copyOf(windowStarts, window * 2);
+          }
+          windowStarts[window++] = oldest;
+        }
+      }
+    } finally {
+      pager.close();
+    }
+  }
+
+  /**
+   * Reads the next window of the player's matches.
+   *
+   * @return false once every match has been read.
+   */
+  public boolean next() throws IOException {
+    size = 0;
+    if (history) {
+      nextHistory();
+      return size > 0;
+    }
+    // The windows run from the start of one to that of the next newer one
+    while (size == 0 && window > 0) {
+      window--;
+      final long end = window == 0 ? endTime : windowStarts[window - 1];
+      final KijiRowData row = reader.get(entityId, windowRequest(windowStarts[window], end));
+      if (compact) {
+        loadCompact(row);
+      } else {
+        loadColumns(row);
+      }
+      sort();
+    }
+    return size > 0;
+  }
+
+  /** @return the number of matches in the current window. */
+  public int size() {
+    return size;
+  }
+
+  public long getStartTime(int i) {
+    return times[i];
+  }
+
+  public int getDuration(int i) {
+    return durations[i];
+  }
+
+  public int getGameMode(int i) {
+    return gameModes[i];
+  }
+
+  /** @return the lobby type, -1 for the matches that have none. */
+  public int getLobbyType(int i) {
+    return lobbyTypes[i];
+  }
+
+  public int getHeroId(int i) {
+    return heroIds[i];
+  }
+
+  public boolean getWin(int i) {
+    return wins[i];
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (reader == null) {
+      return;
+    }
+    try {
+      reader.close();
+    } finally {
+      table.release();
+      kiji.release();
+    }
+  }
+
+  private boolean inRange(long time) {
+    return time >= startTime && time < endTime;
+  }
+
+  // Makes room for one more match and returns its index
+  private int append(long time) {
+    if (size == times.length) {
+      final int n = size * 2;
+      times = Arrays.copyOf(times, n);
+      durations = Arrays.copyOf(durations, n);
+      gameModes = Arrays.copyOf(gameModes, n);
+      lobbyTypes = Arrays.copyOf(lobbyTypes, n);
+      heroIds = Arrays.copyOf(heroIds, n);
+      wins = Arrays.copyOf(wins, n);
+      radiant = Arrays.copyOf(radiant, n);
+    }
+    times[size] = time;
+    durations[size] = 0;
+    gameModes[size] = -1;
+    lobbyTypes[size] = -1;
+    heroIds[size] = -1;
+    wins[size] = false;
+    radiant[size] = false;
+    return size++;
+  }
+
+  // The history is kept in order of start_time by MatchHistoryProducer
+  private void nextHistory() {
+    if (matchHistory == null) {
+      return;
+    }
+    final List<Long> startTimes = matchHistory.getStartTime();
+    while (size < pageSize && historyPos < startTimes.size()) {
+      final int j = historyPos++;
+      final long time = startTimes.get(j);
+      if (!inRange(time)) {
+        continue;
+      }
+      final int i = append(time);
+      durations[i] = matchHistory.getDuration().get(j);
+      gameModes[i] = matchHistory.getGameMode().get(j);
+      lobbyTypes[i] = matchHistory.getLobbyType().get(j);
+      heroIds[i] = matchHistory.getHeroId().get(j);
+      wins[i] = matchHistory.getWin().get(j);
+    }
+  }
+
+  private void loadCompact(KijiRowData row) throws IOException {
+    final Map<Long, PlayerMatch> cells =
+        row.getValues("data", DotaPlayersBulkImporter.MATCH_COLUMN);
+    for (Map.Entry<Long, PlayerMatch> cell : cells.entrySet()) {
+      final PlayerMatch match = cell.getValue();
+      final Player self = match.getPlayer();
+      final int i = append(cell.getKey());
+      durations[i] = match.getDuration();
+      gameModes[i] = match.getGameMode();
+      lobbyTypes[i] = match.getLobbyType();
+      heroIds[i] = self.getHeroId();
+      wins[i] = match.getRadiantWin() == DotaValues.radiantPlayer(self.getPlayerSlot());
+    }
+  }
+
+  // Finds the match at the given time in the sorted matches, -1 if there is none
+  private int indexOf(long time) {
+    final int i = Arrays.binarySearch(times, 0, size, time);
+    return i < 0 ? -1 : i;
+  }
+
+  private void loadColumns(KijiRowData row) throws IOException {
+    // data:player holds a cell for every match, the other columns are matched up by timestamp
+    final Map<Long, Player> players = row.getValues("data", "player");
+    for (Map.Entry<Long, Player> cell : players.entrySet()) {
+      final int i = append(cell.getKey());
+      heroIds[i] = cell.getValue().getHeroId();
+      radiant[i] = DotaValues.radiantPlayer(cell.getValue().getPlayerSlot());
+    }
+    sort();
+
+    for (String column : new String[]{"radiant_win", "game_mode", "duration", "lobby_type"}) {
+      final Map<Long, Object> cells = row.getValues("data", column);
+      for (Map.Entry<Long, Object> cell : cells.entrySet()) {
+        final int i = indexOf(cell.getKey());
+        if (i < 0 || cell.getValue() == null) {
+          continue;
+        }
+        if ("radiant_win".equals(column)) {
+          wins[i] = (Boolean) cell.getValue() == radiant[i];
+        } else {
+          final int value = ((Number) cell.getValue()).intValue();
+          if ("game_mode".equals(column)) {
+            gameModes[i] = value;
+          } else if ("duration".equals(column)) {
+            durations[i] = value;
+          } else {
+            lobbyTypes[i] = value;
+          }
+        }
+      }
+    }
+  }
+  private void swap(int i, int j) {
+    final long time = times[i];
+    times[i] = times[j];
+    times[j] = time;
+    int v = durations[i];
+    durations[i] = durations[j];
+    durations[j] = v;
+    v = gameModes[i];
+    gameModes[i] = gameModes[j];
+    gameModes[j] = v;
+    v = lobbyTypes[i];
+    lobbyTypes[i] = lobbyTypes[j];
+    lobbyTypes[j] = v;
+    v = heroIds[i];
+    heroIds[i] = heroIds[j];
+    heroIds[j] = v;
+    boolean b = wins[i];
+    wins[i] = wins[j];
+    wins[j] = b;
+    b = radiant[i];
+    radiant[i] = radiant[j];
+    radiant[j] = b;
+  }
+
+  // Puts the matches in order of start_time, Kiji returns the cells newest first
+  private void sort() {
+    boolean ascending = true;
+    boolean descending = true;
+    for (int i = 1; i < size && (ascending || descending); i++) {
+      ascending &= times[i - 1] <= times[i];
+      descending &= times[i - 1] >= times[i];
+    }
+    if (ascending) {
+      return;
+    }
+    if (descending) {
+      for (int i = 0, j = size - 1; i < j; i++, j--) {
+        swap(i, j);
+      }
+      return;
+    }
+    final Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    final long[] keys = times;
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer a, Integer b) {
+        return keys[a] < keys[b] ? -1 : (keys[a] == keys[b] ? 0 : 1);
+      }
+    });
+    final long[] t = times.clone();
+    final int[] d = durations.clone();
+    final int[] g = gameModes.clone();
+    final int[] l = lobbyTypes.clone();
+    final int[] h = heroIds.clone();
+    final boolean[] w = wins.clone();
+    final boolean[] r = radiant.clone();
+    for (int i = 0; i < size; i++) {
+      final int j = order[i];
+      times[i] = t[j];
+      durations[i] = d[j];
+      gameModes[i] = g[j];
+      lobbyTypes[i] = l[j];
+      heroIds[i] = h[j];
+      wins[i] = w[j];
+      radiant[i] = r[j];
+    }
+  }
+}
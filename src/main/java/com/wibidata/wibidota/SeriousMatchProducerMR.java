@@ -26,7 +26,9 @@
 
 package com.wibidata.wibidota;
 
+import com.wibidata.wibidota.avro.MatchHeader;
 import com.wibidata.wibidota.avro.Players;
+import org.kiji.mapreduce.KijiContext;
 import org.kiji.mapreduce.produce.KijiProduceJobBuilder;
 import org.kiji.mapreduce.produce.KijiProducer;
 import org.kiji.mapreduce.produce.ProducerContext;
@@ -48,11 +50,22 @@ import java.util.List;
  * Adds a 'serious_match' column to the derived data field that is 1.0 iff the match is a
  * a public mathmaking, tournament, team_match, solo_queue game played with game modes
  * AP, CP, AR, RD, LP, or Compendium and has no leavers. Timestamp is always 0.
+ * If wibidota.matches.packed.header is true the game mode and lobby type are read from
+ * data:header. Setting wibidota.produce.since limits the job to the matches that started
+ * at or after that time, such as those added by an incremental import (see ImportWatermark).
+ * The importers write the same column as they load when wibidota.import.derive is set, in
+ * which case this job need not be run.
  */
 public class SeriousMatchProducerMR extends KijiProducer {
 
   private static final Logger LOG = LoggerFactory.getLogger(SeriousMatchProducerMR.class);
 
+  /** If set, only matches that started at or after this time are processed. */
+  public static final String CONF_SINCE = "wibidota.produce.since";
+
+  /** The derived_data column written, 1.0 for the serious matches and absent otherwise. */
+  static final String SERIOUS_MATCH = "serious_match";
+
   static enum Counters {
     GOOD_MATCHES,  // Number of matches considered 'real'
     BAD_GAME_MODE, // Number of mathes with discounted due to game_mode
@@ -65,6 +78,17 @@ public class SeriousMatchProducerMR extends KijiProducer {
   @Override
   public KijiDataRequest getDataRequest() {
     KijiDataRequestBuilder builder = KijiDataRequest.builder();
+    if(getConf() != null && getConf().get(CONF_SINCE) != null){
+      // Cells are stamped with the start time, so older matches have none in range
+      builder.withTimeRange(getConf().getLong(CONF_SINCE, 0L), Long.MAX_VALUE);
+    }
+    if(MatchHeaders.isPacked(getConf())){
+      return builder.addColumns(builder.newColumnsDef()
+          .withMaxVersions(1)
+          .add("data", MatchHeaders.HEADER_COLUMN)
+          .add(Columns.PLAYER_DATA.columnName())
+      ).build();
+    }
     return builder.addColumns(builder.newColumnsDef()
         .withMaxVersions(1)
         .add(Columns.GAME_MODE.columnName())
@@ -79,41 +103,69 @@ public class SeriousMatchProducerMR extends KijiProducer {
     return "derived_data";
   }
 
-  @Override
-  public void produce(KijiRowData kijiRowData, ProducerContext producerContext) throws IOException {
+  /**
+   * Classifies a match as serious or not, counting the reasons in Counters. Shared with the
+   * bulk importers, which can classify the matches as they are loaded.
+   *
+   * @param gameMode, the encoded game mode, may be null.
+   * @param lobbyType, the encoded lobby type, may be null.
+   * @param players, the players of the match, may be null.
+   * @param context, where to count.
+   * @return whether the match is serious.
+   */
+  static boolean isSerious(Integer gameMode, Integer lobbyType, Players players,
+      KijiContext context) {
     boolean realMatch = true;
-
-    // Check if this match passes
-    int gameMode = (Integer) kijiRowData.getMostRecentCell("data", "game_mode").getData();
-    if(!DotaValues.GameMode.seriousGame(DotaValues.GameMode.fromInt(gameMode))){
-      producerContext.incrementCounter(Counters.BAD_GAME_MODE);
+    // Values the enums do not know of, or missing ones, are never serious
+    if(gameMode == null || gameMode < 0 || gameMode >= DotaValues.GameMode.values().length
+        || !DotaValues.GameMode.seriousGame(DotaValues.GameMode.fromInt(gameMode))){
+      context.incrementCounter(Counters.BAD_GAME_MODE);
       realMatch = false;
     }
-    Integer o = kijiRowData.getMostRecentValue("data", "lobby_type");
-    LobbyType lobbyType = LobbyType.fromInt(o);
-    if(!LobbyType.seriousLobby(lobbyType)){
-      producerContext.incrementCounter(Counters.BAD_LOBBY);
+    if(lobbyType == null || lobbyType < -1 || lobbyType + 1 >= LobbyType.values().length
+        || !LobbyType.seriousLobby(LobbyType.fromInt(lobbyType))){
+      context.incrementCounter(Counters.BAD_LOBBY);
       realMatch = false;
     }
-    Players player_data = kijiRowData.getMostRecentValue("data", "player_data");
-    List<Player> players = player_data.getPlayers();
-    for(Player player : players){
-      if(LeaverStatus.fromInt(player.getLeaverStatus()) != LeaverStatus.STAYED){
-        producerContext.incrementCounter(Counters.LEAVERS);
-        if(realMatch){
-          producerContext.incrementCounter(Counters.REAL_MATCH_WITH_LEAVERS);
+    final List<Player> playerList = players == null ? null : players.getPlayers();
+    if(playerList == null){
+      realMatch = false;
+    } else {
+      for(Player player : playerList){
+        // Anything but STAYED, including a missing or unknown status, is a leaver
+        final Integer leaverStatus = player.getLeaverStatus();
+        if(leaverStatus == null || !leaverStatus.equals(LeaverStatus.STAYED.getEncoding())){
+          context.incrementCounter(Counters.LEAVERS);
+          if(realMatch){
+            context.incrementCounter(Counters.REAL_MATCH_WITH_LEAVERS);
+          }
+          realMatch = false;
+          break;
         }
-        realMatch = false;
-        break;
       }
     }
+    context.incrementCounter(realMatch ? Counters.GOOD_MATCHES : Counters.BAD_MATCHES);
+    return realMatch;
+  }
 
-    // Write the result
-    if(realMatch){
-      producerContext.incrementCounter(Counters.GOOD_MATCHES);
-      producerContext.put("serious_match", 0L, 1.0);
+  @Override
+  public void produce(KijiRowData kijiRowData, ProducerContext producerContext) throws IOException {
+    // Check if this match passes
+    Integer gameMode;
+    Integer o;
+    if(MatchHeaders.isPacked(getConf())){
+      MatchHeader header = kijiRowData.getMostRecentValue("data", MatchHeaders.HEADER_COLUMN);
+      gameMode = header.getGameMode();
+      o = header.getLobbyType();
     } else {
-      producerContext.incrementCounter(Counters.BAD_MATCHES);
+      gameMode = kijiRowData.getMostRecentValue("data", "game_mode");
+      o = kijiRowData.getMostRecentValue("data", "lobby_type");
+    }
+    Players player_data = kijiRowData.getMostRecentValue("data", "player_data");
+
+    // Write the result
+    if(isSerious(gameMode, o, player_data, producerContext)){
+      producerContext.put(SERIOUS_MATCH, 0L, 1.0);
     }
   }
 }
@@ -1,12 +1,10 @@
 package com.wibidata.wibidota;
 
-import com.wibidata.wibidota.avro.Player;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.LongWritable;
-import org.apache.hadoop.io.Text;
 import org.kiji.mapreduce.gather.GathererContext;
 import org.kiji.mapreduce.gather.KijiGatherer;
 import org.kiji.schema.KijiDataRequest;
-import org.kiji.schema.KijiDataRequestBuilder;
 import org.kiji.schema.KijiRowData;
 
 import java.io.IOException;
@@ -15,11 +13,35 @@ import java.util.Arrays;
 /**
  * Class to gather statistics about a player's likelihood to win or lose a match
  * depending on the number of matches won or lost in a row before. Gather's this data
- * for multiple ranges of time between matches.
+ * for multiple ranges of time between matches. The matches are read with PlayerTimeline, a
+ * window at a time from oldest to newest, so wibidota.players.page.size and the start_time
+ * range it takes apply.
+ *
+ * Several configurations can be counted in one pass over the table by listing their ids in
+ * wibidota.streaks.configs, the output keys are then tagged with the id. Each takes the
+ * options below from wibidota.streaks.&lt;id&gt;.&lt;option&gt;, or from
+ * wibidota.streaks.&lt;option&gt; if no ids are listed:
+ *
+ * <ul>
+ * <li>burn.in, the number of a player's first matches that are not counted (default 40).</li>
+ * <li>intervals, the gaps between matches in seconds a streak may have (default 15 minutes
+ * to 14 days, and unlimited).</li>
+ * <li>game.modes and lobby.types, the matches to count (default the serious ones).</li>
+ * <li>max.streak, streaks longer than this are counted with those of this length (default 0,
+ * no limit).</li>
+ * </ul>
+ *
+ * Each task adds up its counts in memory and writes them once it is done, keyed by StreakKey,
+ * so the job should still be run with LongSumReducer to combine the tasks.
  */
 // TODO: Should case some of this work in the derived_data column
 public class StreakCounter extends KijiGatherer {
 
+  /** Ids of the configurations to count. */
+  public static final String CONF_CONFIGS = "wibidota.streaks.configs";
+
+  private static final String CONF_PREFIX = "wibidota.streaks.";
+
   // We discards a player's first n matches
   private static final int BURN_IN =  40;
 
@@ -29,71 +51,171 @@ public class StreakCounter extends KijiGatherer {
 
   private static final long DAY = HOUR * 24;
 
-  long[] INTERVALS = new long[]{MIN *15, MIN * 30, HOUR, HOUR * 2,
+  private static final long[] INTERVALS = new long[]{MIN *15, MIN * 30, HOUR, HOUR * 2,
       HOUR * 6, HOUR * 12, DAY, DAY * 2, DAY * 3, DAY * 7, DAY * 14,
       Integer.MAX_VALUE};
 
-  private static final LongWritable ONE = new LongWritable(1l);
+  private static final int[] SERIOUS_GAME_MODES = new int[]{0, 1, 2, 3, 4, 5, 6, 12, 14};
 
-  @Override
-  public KijiDataRequest getDataRequest() {
-    KijiDataRequestBuilder builder = KijiDataRequest.builder();
-    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef();
-    def.withMaxVersions(Integer.MAX_VALUE)
-        .add("data", "radiant_win")
-        .add("data", "game_mode")
-        .add("data", "duration")
-        .add("data", "lobby_type")
-        .add("data", "player");
-    return builder.addColumns(def).build();
+  private static final int[] SERIOUS_LOBBY_TYPES = new int[]{
+      DotaValues.LobbyType.PUBLIC_MATCHMAKING.getEncoding(),
+      DotaValues.LobbyType.TOURNAMENT.getEncoding(),
+      DotaValues.LobbyType.TEAM_MATCH.getEncoding(),
+      DotaValues.LobbyType.SOLO_QUEUE.getEncoding()};
+
+  private static long[] getLongs(Configuration conf, String name, long[] defaults){
+    String[] values = conf.getTrimmedStrings(name);
+    if(values.length == 0){
+      return defaults;
+    }
+    long[] longs = new long[values.length];
+    for(int i = 0; i < values.length; i++){
+      longs[i] = Long.parseLong(values[i]);
+    }
+    return longs;
   }
 
-  @Override
-  public void gather(KijiRowData kijiRowData, GathererContext gathererContext) throws IOException {
-    int game = 0;
-    int score = 0;
-    boolean[] streaking = new boolean[INTERVALS.length];
-    long prevTime = 0;
+  private static int[] getSortedInts(Configuration conf, String name, int[] defaults){
+    String[] values = conf.getTrimmedStrings(name);
+    int[] ints = defaults.clone();
+    if(values.length > 0){
+      ints = new int[values.length];
+      for(int i = 0; i < values.length; i++){
+        ints[i] = Integer.parseInt(values[i]);
+      }
+    }
+    Arrays.sort(ints);
+    return ints;
+  }
+
+  // The options of one configuration and its counts for this task
+  private static final class Config {
+    private final String id;
+    private final int burnIn;
+    private final long[] intervals;
+    private final int[] gameModes;
+    private final int[] lobbyTypes;
+    private final int maxStreak;
+
+    // Counts by interval, then win, then score + maxScore
+    private long[][][] counts;
+
+    // Largest streak the counts have room for
+    private int maxScore;
 
-    for(Long time : kijiRowData.getTimestamps("data", "game_mode").descendingSet()){
+    Config(String id, Configuration conf){
+      this.id = id;
+      final String prefix = id.isEmpty() ? CONF_PREFIX : CONF_PREFIX + id + ".";
+      burnIn = conf.getInt(prefix + "burn.in", BURN_IN);
+      intervals = getLongs(conf, prefix + "intervals", INTERVALS);
+      gameModes = getSortedInts(conf, prefix + "game.modes", SERIOUS_GAME_MODES);
+      lobbyTypes = getSortedInts(conf, prefix + "lobby.types", SERIOUS_LOBBY_TYPES);
+      maxStreak = conf.getInt(prefix + "max.streak", 0);
+      maxScore = maxStreak > 0 ? maxStreak : 16;
+      counts = new long[intervals.length][2][2 * maxScore + 1];
+    }
+
+    boolean accepts(int gameMode, int lobbyType){
+      return Arrays.binarySearch(gameModes, gameMode) >= 0
+          && Arrays.binarySearch(lobbyTypes, lobbyType) >= 0;
+    }
 
-      // Make sure this is a 'serious' game
-      Integer gameMode = kijiRowData.getValue("data", "game_mode", time);
-      if(gameMode > 6 && gameMode != 12 && gameMode != 14){
-        continue;
+    // Makes room in the counts for the given streak
+    void grow(int score){
+      int newMax = maxScore;
+      while(newMax < Math.abs(score)){
+        newMax *= 2;
       }
-      DotaValues.LobbyType lobbyType = DotaValues.
-          LobbyType.fromInt((Integer)
-          kijiRowData.getValue("data", "lobby_type", time));
-      if(!(lobbyType == DotaValues.LobbyType.PUBLIC_MATCHMAKING ||
-          lobbyType == DotaValues.LobbyType.TOURNAMENT ||
-          lobbyType == DotaValues.LobbyType.TEAM_MATCH ||
-          lobbyType == DotaValues.LobbyType.SOLO_QUEUE)){
-        continue;
+      for(long[][] byWin : counts){
+        for(int w = 0; w < 2; w++){
+          long[] grown = new long[2 * newMax + 1];
+          System.arraycopy(byWin[w], 0, grown, newMax - maxScore, byWin[w].length);
+          byWin[w] = grown;
+        }
       }
+      maxScore = newMax;
+    }
 
-      // Check if we won
-      Player self = kijiRowData.getValue("data", "player", time);
-      boolean radiantWin = (Boolean) kijiRowData.getValue("data", "radiant_win", time);
-      boolean radiantPlayer = DotaValues.radiantPlayer(self.getPlayerSlot());
-      boolean winner = (radiantWin && radiantPlayer) || (!radiantWin && !radiantPlayer);
+    void count(int interval, boolean winner, int score){
+      if(maxStreak > 0){
+        score = Math.max(-maxStreak, Math.min(maxStreak, score));
+      } else if(Math.abs(score) > maxScore){
+        grow(score);
+      }
+      counts[interval][winner ? 1 : 0][score + maxScore]++;
+    }
+  }
+
+  // The configurations being counted
+  private Config[] configs;
+
+  // The streaks of the player being gathered, one per configuration
+  private Timeline[] timelines;
+
+  // The matches of the player being gathered
+  private PlayerTimeline matches;
+
+  @Override
+  public void setup(GathererContext context) throws IOException {
+    String[] ids = getConf().getTrimmedStrings(CONF_CONFIGS);
+    if(ids.length == 0){
+      ids = new String[]{""};
+    }
+    configs = new Config[ids.length];
+    timelines = new Timeline[ids.length];
+    for(int i = 0; i < ids.length; i++){
+      configs[i] = new Config(ids[i], getConf());
+      timelines[i] = new Timeline(configs[i]);
+    }
+    matches = new PlayerTimeline(getConf());
+  }
+
+  @Override
+  public KijiDataRequest getDataRequest() {
+    return PlayerTimeline.request(getConf());
+  }
+
+  // The streaks of one player for one configuration
+  private static final class Timeline {
+    private final Config config;
+    private final boolean[] streaking;
+    private int game;
+    private int score;
+    private long prevTime;
+
+    Timeline(Config config){
+      this.config = config;
+      streaking = new boolean[config.intervals.length];
+    }
+
+    // Starts on the next player
+    void reset(){
+      game = 0;
+      score = 0;
+      prevTime = 0;
+      Arrays.fill(streaking, false);
+    }
+
+    // Adds the player's next match
+    void add(long time, int gameMode, int lobbyType, boolean winner, long duration){
+      if(!config.accepts(gameMode, lobbyType)){
+        return;
+      }
 
       // Check what streaks still apply
       game++;
-      long diff = time - prevTime -
-          ((Number) kijiRowData.getValue("data", "duration", time)).longValue();
-      for(int i = 0; i < INTERVALS.length; i++){
-        if(diff > INTERVALS[i]){
+      long diff = time - prevTime - duration;
+      for(int i = 0; i < streaking.length; i++){
+        if(diff > config.intervals[i]){
           streaking[i] = false;
         }
       }
 
       // Write updates for the streaks we are tracking
-      if(game > BURN_IN){
-        for(int i = 0; i < INTERVALS.length; i++){
+      if(game > config.burnIn){
+        for(int i = 0; i < streaking.length; i++){
           if(streaking[i]){
-            String key = "interval=" + INTERVALS[i] + ",score=" + score + ",win=" + winner;
-            gathererContext.write(new Text(key), ONE);
+            config.count(i, winner, score);
           }
         }
       }
@@ -118,9 +240,51 @@ public class StreakCounter extends KijiGatherer {
     }
   }
 
+  // Adds a match to the streaks of every configuration
+  private void add(long time, int gameMode, int lobbyType, boolean winner, long duration){
+    for(Timeline timeline : timelines){
+      timeline.add(time, gameMode, lobbyType, winner, duration);
+    }
+  }
+
+  @Override
+  public void gather(KijiRowData kijiRowData, GathererContext gathererContext) throws IOException {
+    for(Timeline timeline : timelines){
+      timeline.reset();
+    }
+    matches.load(kijiRowData);
+    while(matches.next()){
+      for(int i = 0; i < matches.size(); i++){
+        add(matches.getStartTime(i), matches.getGameMode(i), matches.getLobbyType(i),
+            matches.getWin(i), matches.getDuration(i));
+      }
+    }
+  }
+
+  @Override
+  public void cleanup(GathererContext context) throws IOException {
+    matches.close();
+    final StreakKey key = new StreakKey();
+    final LongWritable count = new LongWritable();
+    for(Config config : configs){
+      for(int i = 0; i < config.intervals.length; i++){
+        for(int w = 0; w < 2; w++){
+          final long[] byScore = config.counts[i][w];
+          for(int j = 0; j < byScore.length; j++){
+            if(byScore[j] != 0){
+              key.set(config.id, config.intervals[i], j - config.maxScore, w == 1);
+              count.set(byScore[j]);
+              context.write(key, count);
+            }
+          }
+        }
+      }
+    }
+  }
+
   @Override
   public Class<?> getOutputKeyClass() {
-    return Text.class;
+    return StreakKey.class;
   }
 
   @Override
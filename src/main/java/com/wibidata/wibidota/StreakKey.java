@@ -0,0 +1,173 @@
+/**
+ * (c) Copyright 2013 WibiData, Inc.
+ *
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.wibidata.wibidota;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * Key of the counts StreakCounter outputs, the id of the configuration counted, the interval
+ * between matches, the number of matches won (positive) or lost (negative) in a row and
+ * whether the next was won. Written as the id and a few bytes of variable length ints.
+ * toString() gives the "interval=..,score=..,win=.." form the text output has always had,
+ * prefixed by "config=..," unless the id is empty, which
+ * results/analysis_scripts/parse_streak_counts.py reads.
+ */
+public class StreakKey implements WritableComparable<StreakKey> {
+
+  private String config = "";
+  private long interval;
+  private int score;
+  private boolean win;
+
+  public StreakKey() {}
+
+  public StreakKey(String config, long interval, int score, boolean win) {
+    set(config, interval, score, win);
+  }
+
+  public void set(String config, long interval, int score, boolean win) {
+    this.config = config;
+    this.interval = interval;
+    this.score = score;
+    this.win = win;
+  }
+
+  public String getConfig() {
+    return config;
+  }
+
+  public long getInterval() {
+    return interval;
+  }
+
+  public int getScore() {
+    return score;
+  }
+
+  public boolean getWin() {
+    return win;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    Text.writeString(out, config);
+    WritableUtils.writeVLong(out, interval);
+    WritableUtils.writeVInt(out, score);
+    out.writeBoolean(win);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    config = Text.readString(in);
+    interval = WritableUtils.readVLong(in);
+    score = WritableUtils.readVInt(in);
+    win = in.readBoolean();
+  }
+
+  private static int compare(long interval1, int score1, boolean win1,
+      long interval2, int score2, boolean win2) {
+    if (interval1 != interval2) {
+      return interval1 < interval2 ? -1 : 1;
+    }
+    if (score1 != score2) {
+      return score1 < score2 ? -1 : 1;
+    }
+    return win1 == win2 ? 0 : (win1 ? 1 : -1);
+  }
+
+  @Override
+  public int compareTo(StreakKey other) {
+    final int c = config.compareTo(other.config);
+    if (c != 0) {
+      return c;
+    }
+    return compare(interval, score, win, other.interval, other.score, other.win);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof StreakKey)) {
+      return false;
+    }
+    final StreakKey other = (StreakKey) o;
+    return config.equals(other.config) && interval == other.interval && score == other.score
+        && win == other.win;
+  }
+
+  @Override
+  public int hashCode() {
+    return ((config.hashCode() * 31 + (int) (interval ^ (interval >>> 32))) * 31 + score) * 31
+        + (win ? 1 : 0);
+  }
+
+  @Override
+  public String toString() {
+    return (config.isEmpty() ? "" : "config=" + config + ",")
+        + "interval=" + interval + ",score=" + score + ",win=" + win;
+  }
+
+  /**
+   * Compares the serialized keys without deserializing them.
+   */
+  public static class Comparator extends WritableComparator {
+    public Comparator() {
+      super(StreakKey.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      try {
+        // The ids are a length and UTF-8 bytes, compared as bytes which for ASCII ids is the
+        // order of the Strings
+        final int length1 = readVInt(b1, s1);
+        s1 += WritableUtils.decodeVIntSize(b1[s1]);
+        final int length2 = readVInt(b2, s2);
+        s2 += WritableUtils.decodeVIntSize(b2[s2]);
+        final int c = compareBytes(b1, s1, length1, b2, s2, length2);
+        if (c != 0) {
+          return c;
+        }
+        s1 += length1;
+        s2 += length2;
+        final long interval1 = readVLong(b1, s1);
+        s1 += WritableUtils.decodeVIntSize(b1[s1]);
+        final long interval2 = readVLong(b2, s2);
+        s2 += WritableUtils.decodeVIntSize(b2[s2]);
+        final int score1 = readVInt(b1, s1);
+        s1 += WritableUtils.decodeVIntSize(b1[s1]);
+        final int score2 = readVInt(b2, s2);
+        s2 += WritableUtils.decodeVIntSize(b2[s2]);
+        return StreakKey.compare(interval1, score1, b1[s1] != 0, interval2, score2, b2[s2] != 0);
+      } catch (IOException ioe) {
+        throw new IllegalArgumentException(ioe);
+      }
+    }
+  }
+
+  static {
+    WritableComparator.define(StreakKey.class, new Comparator());
+  }
+}
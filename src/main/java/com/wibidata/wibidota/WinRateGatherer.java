@@ -5,27 +5,152 @@ import org.apache.hadoop.io.Text;
 import org.kiji.mapreduce.gather.GathererContext;
 import org.kiji.mapreduce.gather.KijiGatherer;
 import org.kiji.schema.KijiDataRequest;
-import org.kiji.schema.KijiDataRequestBuilder;
 import org.kiji.schema.KijiRowData;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
+/**
+ * Counts the matches won and lost with each hero in dota_players, optionally by periods of
+ * start_time. Output is of the form:
+ *
+ * hero=<hero_id>,bucket=<start of period>,win=<true|false>  <number of matches>
+ *
+ * and should be summed with LongSumReducer. As dota_players only holds the accounts that are
+ * not anonymous, so do the counts. Options:
+ *
+ * <ul>
+ * <li>wibidota.winrate.bucket, the length of the periods in seconds (default 0, one period
+ * and no bucket in the output).</li>
+ * <li>wibidota.winrate.serious.game.mode and wibidota.winrate.serious.lobby, only count the
+ * matches that pass GameMode.seriousGame and LobbyType.seriousLobby (default true).</li>
+ * </ul>
+ *
+ * The matches are read with PlayerTimeline, so the layout and start_time range options it
+ * takes apply. Each task adds up its counts in arrays indexed by hero_id and writes them once
+ * it is done.
+ */
 public class WinRateGatherer extends KijiGatherer {
+
+  public static final String CONF_BUCKET = "wibidota.winrate.bucket";
+
+  public static final String CONF_SERIOUS_GAME_MODE = "wibidota.winrate.serious.game.mode";
+
+  public static final String CONF_SERIOUS_LOBBY = "wibidota.winrate.serious.lobby";
+
+  static enum Counters {
+    MATCHES_COUNTED,
+    MATCHES_FILTERED
+  }
+
+  // Length of the periods, 0 for one
+  private long bucket;
+
+  // Whether only the serious game modes and lobbies are counted
+  private boolean seriousGameMode;
+  private boolean seriousLobby;
+
+  // Whether each game mode and lobby type is counted, by encoding (+1 for the lobbies)
+  private boolean[] gameModes;
+  private boolean[] lobbyTypes;
+
+  // Wins and losses by period, then by hero_id
+  private Map<Long, long[][]> counts;
+
+  private long counted;
+  private long filtered;
+
+  // The matches of the player being gathered
+  private PlayerTimeline matches;
+
   @Override
   public KijiDataRequest getDataRequest() {
-    KijiDataRequestBuilder builder = KijiDataRequest.builder();
-    KijiDataRequestBuilder.ColumnsDef def = builder.newColumnsDef();
-    def.withMaxVersions(Integer.MAX_VALUE)
-        .add("data", "radiant_win")
-        .add("data", "game_mode")
-        .add("data", "lobby_type")
-        .add("data", "player");
-    return builder.addColumns(def).build();
+    return PlayerTimeline.request(getConf());
+  }
+
+  @Override
+  public void setup(GathererContext context) throws IOException {
+    bucket = getConf().getLong(CONF_BUCKET, 0L);
+    seriousGameMode = getConf().getBoolean(CONF_SERIOUS_GAME_MODE, true);
+    seriousLobby = getConf().getBoolean(CONF_SERIOUS_LOBBY, true);
+    DotaValues.GameMode[] modes = DotaValues.GameMode.values();
+    gameModes = new boolean[modes.length];
+    for(int i = 0; i < modes.length; i++){
+      gameModes[i] = !seriousGameMode || DotaValues.GameMode.seriousGame(modes[i]);
+    }
+    DotaValues.LobbyType[] lobbies = DotaValues.LobbyType.values();
+    lobbyTypes = new boolean[lobbies.length];
+    for(int i = 0; i < lobbies.length; i++){
+      lobbyTypes[i] = !seriousLobby || DotaValues.LobbyType.seriousLobby(lobbies[i]);
+    }
+    counts = new HashMap<Long, long[][]>();
+    counted = 0;
+    filtered = 0;
+    matches = new PlayerTimeline(getConf());
+  }
+
+  // Counts one match, values the enums do not know are only counted if not filtering
+  private void add(long time, int gameMode, int lobbyType, int heroId, boolean winner){
+    boolean modeOk = gameMode >= 0 && gameMode < gameModes.length ? gameModes[gameMode]
+        : !seriousGameMode;
+    boolean lobbyOk = lobbyType >= -1 && lobbyType + 1 < lobbyTypes.length
+        ? lobbyTypes[lobbyType + 1] : !seriousLobby;
+    if(!modeOk || !lobbyOk || heroId < 0){
+      filtered++;
+      return;
+    }
+    long start = bucket > 0 ? time - time % bucket : 0L;
+    long[][] byHero = counts.get(start);
+    if(byHero == null){
+      byHero = new long[2][128];
+      counts.put(start, byHero);
+    }
+    if(heroId >= byHero[0].length){
+      int size = byHero[0].length;
+      while(size <= heroId){
+        size *= 2;
+      }
+      byHero[0] = Arrays.copyOf(byHero[0], size);
+      byHero[1] = Arrays.copyOf(byHero[1], size);
+    }
+    byHero[winner ? 1 : 0][heroId]++;
+    counted++;
   }
 
   @Override
   public void gather(KijiRowData kijiRowData, GathererContext gathererContext) throws IOException {
+    matches.load(kijiRowData);
+    while(matches.next()){
+      for(int i = 0; i < matches.size(); i++){
+        add(matches.getStartTime(i), matches.getGameMode(i), matches.getLobbyType(i),
+            matches.getHeroId(i), matches.getWin(i));
+      }
+    }
+  }
 
+  @Override
+  public void cleanup(GathererContext context) throws IOException {
+    matches.close();
+    final Text key = new Text();
+    final LongWritable count = new LongWritable();
+    for(Map.Entry<Long, long[][]> entry : new TreeMap<Long, long[][]>(counts).entrySet()){
+      String period = bucket > 0 ? ",bucket=" + entry.getKey() : "";
+      long[][] byHero = entry.getValue();
+      for(int hero = 0; hero < byHero[0].length; hero++){
+        for(int w = 0; w < 2; w++){
+          if(byHero[w][hero] != 0){
+            key.set("hero=" + hero + period + ",win=" + (w == 1));
+            count.set(byHero[w][hero]);
+            context.write(key, count);
+          }
+        }
+      }
+    }
+    context.incrementCounter(Counters.MATCHES_COUNTED, counted);
+    context.incrementCounter(Counters.MATCHES_FILTERED, filtered);
   }
 
   @Override